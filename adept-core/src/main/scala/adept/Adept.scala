@@ -1,7 +1,6 @@
 package adept
 
 import java.io.File
-import net.sf.ehcache.CacheManager
 import org.eclipse.jgit.lib.ProgressMonitor
 import adept.logging.Logging
 import adept.resolution.models.Id
@@ -14,41 +13,79 @@ import org.eclipse.jgit.lib.TextProgressMonitor
 import adept.repository.AttributeConstraintFilter
 import adept.repository.Repository
 import adept.lockfile.Lockfile
-import java.io.FileOutputStream
 import adept.lockfile.LockfileConverters
 import adept.resolution.models.Variant
 import adept.resolution.models.Requirement
 import adept.repository.GitLoader
+import adept.repository.VariantCache
+import adept.repository.ResolutionCache
+import adept.repository.ResolutionCacheKey
 import adept.resolution.Resolver
+import adept.resolution.resolver.models.ResolveResult
 import adept.models.GitSearchResult
 
-class Adept(baseDir: File, cacheManager: CacheManager, passphrase: Option[String] = None,
-            progress: ProgressMonitor = new TextProgressMonitor) extends Logging {
+class Adept(baseDir: File, variantCache: VariantCache, passphrase: Option[String] = None,
+            progress: ProgressMonitor = new TextProgressMonitor, resolutionCache: Option[ResolutionCache] = None) extends Logging {
 
   private[adept] def matches(term: String, id: Id) = {
     (id.value + Id.Sep).contains(term)
   }
 
+  /**
+   * The resolver of the last context resolved in (without unversioned base dirs), kept so that what it has loaded
+   * (e.g. the ids each variant requires) is reused by the next resolve in the same context.
+   */
+  private var lastResolver: Option[((Set[ContextValue], Set[Variant]), Resolver)] = None //guarded by this
+
+  private def resolver(context: Set[ContextValue], providedVariants: Set[Variant], unversionedBaseDirs: Set[File]) = {
+    def newResolver = {
+      val loader = new GitLoader(baseDir, context, variantCache = variantCache, unversionedBaseDirs =
+        unversionedBaseDirs, loadedVariants = providedVariants, progress = progress)
+      new Resolver(loader)
+    }
+    if (unversionedBaseDirs.nonEmpty) newResolver //unversioned base dirs can change without changing the context
+    else synchronized {
+      val key = context -> providedVariants
+      lastResolver match {
+        case Some((`key`, resolver)) => resolver
+        case _ =>
+          val resolver = newResolver
+          lastResolver = Some(key -> resolver)
+          resolver
+      }
+    }
+  }
+
+  /**
+   * Resolves requirements in a context.
+   *
+   * If a `previous` resolve and its result are given, and it was in the same context with the same provided variants,
+   * only what changed since is resolved again (see `Resolver.resolveIncrementally`).
+   * Otherwise, results are looked up in (and added to) the `resolutionCache`, if there is one,
+   * unless there are `unversionedBaseDirs` (which can change without changing the context).
+   */
   def localResolve(requirements: Set[Requirement], inputContext: Set[ContextValue], overriddenInputContext:
   Set[ContextValue], overriddenContext: Set[ContextValue], providedVariants: Set[Variant], overrides:
-                   Set[ContextValue] = Set.empty, unversionedBaseDirs: Set[File] = Set.empty) = {
-    val loader = new GitLoader(baseDir, overriddenContext, cacheManager = cacheManager, unversionedBaseDirs =
-      unversionedBaseDirs, loadedVariants = providedVariants, progress = progress)
-    val resolver = new Resolver(loader)
-    val result = resolver.resolve(requirements)
+                   Set[ContextValue] = Set.empty, unversionedBaseDirs: Set[File] = Set.empty,
+                   previous: Option[(ResolutionCacheKey, ResolveResult)] = None) = {
+    def resolver = this.resolver(overriddenContext, providedVariants, unversionedBaseDirs)
+    val result = (previous, resolutionCache) match {
+      case (Some((previousKey, previousResult)), _) if previousKey.context == overriddenContext &&
+        previousKey.providedVariants == providedVariants =>
+        resolver.resolveIncrementally(previousResult, previousKey.requirements, requirements)
+      case (_, Some(resolutionCache)) if unversionedBaseDirs.isEmpty =>
+        resolutionCache.getOrResolve(ResolutionCacheKey(requirements, overriddenContext, providedVariants)) {
+          resolver.resolve(requirements)
+        }
+      case _ =>
+        resolver.resolve(requirements)
+    }
     if (result.isResolved) Right(result)
     else Left(result)
   }
 
   def writeLockfile(lockfile: Lockfile, file: File) = {
-    var fos: FileOutputStream = null
-    try {
-      var fos = new FileOutputStream(file)
-      fos.write(LockfileConverters.toJsonString(lockfile).getBytes)
-      fos.flush()
-    } finally {
-      if (fos != null) fos.close()
-    }
+    LockfileConverters.write(lockfile, file)
   }
 
   def searchLocalRepository(term: String, name: RepositoryName, constraints: Set[Constraint] = Set.empty):
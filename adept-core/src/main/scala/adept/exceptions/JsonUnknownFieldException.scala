@@ -0,0 +1,5 @@
+package adept.exceptions
+
+case class JsonUnknownFieldException(fieldName: String) extends Exception(
+  s"JSON has unknown field $fieldName") {
+}
@@ -6,6 +6,7 @@ import adept.artifact.models.ArtifactAttribute
 import adept.repository.models.ContextValue
 import adept.services.JsonService
 import com.fasterxml.jackson.core.JsonGenerator
+import java.io.File
 
 private[adept] object LockfileConverters {
   import collection.JavaConverters._
@@ -66,11 +67,18 @@ private[adept] object LockfileConverters {
     new LockfileArtifact(hash, size, locations.asJava, attributes.asJava, filename)
   }
 
+  private def writeFields(lockfile: Lockfile)(generator: JsonGenerator) = {
+    val reqs = lockfile.requirements.asScala.toSet
+    JsonService.writeArrayField("requirements", reqs, generator)
+  }
+
   def toJsonString(lockfile: Lockfile) = {
-    JsonService.writeJson({ generator: JsonGenerator =>
-      val reqs = lockfile.requirements.asScala.toSet
-      JsonService.writeArrayField("requirements", reqs, generator)
-    })
+    JsonService.writeJson(writeFields(lockfile) _)
+  }
+
+  /** Writes lockfile directly to file, compactly since lockfiles are not hashed */
+  def write(lockfile: Lockfile, file: File) = {
+    JsonService.writeJson(file, pretty = false)(writeFields(lockfile))
   }
 }
 
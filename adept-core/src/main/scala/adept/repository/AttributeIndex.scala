@@ -0,0 +1,88 @@
+package adept.repository
+
+import adept.resolution.models._
+import java.util.BitSet
+
+/**
+ * An inverted index of the attributes of variants (of the same id): from an
+ * attribute name and value to the bit set of the variants having it.
+ *
+ * Filtering on constraints (see `filter`) is then a union of bit sets per
+ * constraint and an intersection over constraints, instead of matching
+ * every variant on every constraint, but gives the same variants as
+ * `AttributeConstraintFilter.matches` does.
+ *
+ * Is immutable, so it can be shared by threads.
+ */
+private[adept] class AttributeIndex(variants: IndexedSeq[Variant]) {
+
+  /**
+   * The variants with attributes of one name. Variants having more than one
+   * attribute with the name (which is rare) must match all of them, so they
+   * are not indexed but matched directly.
+   */
+  private class Postings {
+    val withEmptyValues = new BitSet(variants.size)
+    val byValue = collection.mutable.Map.empty[String, BitSet]
+    val repeated = new BitSet(variants.size)
+  }
+
+  private val postingsByName: Map[String, Postings] = {
+    val postingsByName = collection.mutable.Map.empty[String, Postings]
+    for ((variant, i) <- variants.zipWithIndex) {
+      for ((name, attributes) <- variant.attributes.groupBy(_.name)) {
+        val postings = postingsByName.getOrElseUpdate(name, new Postings)
+        if (attributes.size > 1) postings.repeated.set(i)
+        else for (attribute <- attributes) {
+          if (attribute.values.isEmpty) postings.withEmptyValues.set(i)
+          for (value <- attribute.values) {
+            postings.byValue.getOrElseUpdate(value, new BitSet(variants.size)).set(i)
+          }
+        }
+      }
+    }
+    postingsByName.toMap
+  }
+
+  /** The variants matching a constraint (like AttributeConstraintFilter.matches) */
+  private def matching(constraint: Constraint): BitSet = {
+    postingsByName.get(constraint.name) match {
+      case Some(postings) =>
+        val matching = new BitSet(variants.size)
+        //a match if constraints and attributes are both empty:
+        if (constraint.values.isEmpty) matching.or(postings.withEmptyValues)
+        else for (value <- constraint.values; variantsWithValue <- postings.byValue.get(value)) {
+          matching.or(variantsWithValue)
+        }
+        var i = postings.repeated.nextSetBit(0)
+        while (i >= 0) {
+          if (AttributeConstraintFilter.matches(variants(i).attributes, Set(constraint))) matching.set(i)
+          i = postings.repeated.nextSetBit(i + 1)
+        }
+        matching
+      case None => //no variants have this attribute
+        new BitSet(0)
+    }
+  }
+
+  /** Returns the variants matching all constraints */
+  def filter(constraints: Set[Constraint]): Set[Variant] = {
+    if (constraints.isEmpty) {
+      variants.toSet
+    } else {
+      val matchingAll = new BitSet(variants.size)
+      matchingAll.set(0, variants.size)
+      val constraintsIterator = constraints.iterator
+      while (constraintsIterator.hasNext && !matchingAll.isEmpty) {
+        matchingAll.and(matching(constraintsIterator.next()))
+      }
+      val matchingVariants = Set.newBuilder[Variant]
+      var i = matchingAll.nextSetBit(0)
+      while (i >= 0) {
+        matchingVariants += variants(i)
+        i = matchingAll.nextSetBit(i + 1)
+      }
+      matchingVariants.result()
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package adept.repository
+
+import org.eclipse.jgit.lib.AnyObjectId
+import org.eclipse.jgit.lib.ObjectId
+import org.eclipse.jgit.lib.ObjectIdSubclassMap
+import org.eclipse.jgit.lib.{ Repository => JGitRepository }
+import org.eclipse.jgit.revwalk.RevWalk
+import org.eclipse.jgit.revwalk.filter.RevFilter
+import adept.repository.models.Commit
+
+/**
+ * The order of the (non-merge) commits in the history of a HEAD: 0 is the latest, 1 the one before and so on.
+ *
+ * It is the same order `GitRepository.compareCommits` finds commits in, but it is computed with one walk
+ * for all commits, so comparing many commits does not walk the history again for each pair.
+ */
+private[repository] class GitAncestry private (val head: ObjectId, positions: ObjectIdSubclassMap[GitAncestry.Position]) {
+
+  /** The position of `commit` in the history, None if it is not in it (or is a merge) */
+  def position(commit: Commit): Option[Int] = {
+    if (ObjectId.isId(commit.value)) {
+      Option(positions.get(ObjectId.fromString(commit.value))).map(_.value)
+    } else None
+  }
+
+  /** The latest of `commits` which are in the history and all the `commits` which are not */
+  def latest(commits: Set[Commit]): Set[Commit] = {
+    val known = commits.flatMap(commit => position(commit).map(commit -> _))
+    if (known.isEmpty) commits
+    else commits -- known.map(_._1) + known.minBy(_._2)._1
+  }
+}
+
+private[repository] object GitAncestry {
+  /** Max number of HEADs kept in memory for all repositories */
+  val MaxCachedHeads = 16
+
+  private class Position(id: AnyObjectId, val value: Int) extends ObjectId(id)
+
+  private val cache = new java.util.LinkedHashMap[(String, String), GitAncestry](16, 0.75f, true) { //access ordered
+    override def removeEldestEntry(eldest: java.util.Map.Entry[(String, String), GitAncestry]) = size > MaxCachedHeads
+  }
+
+  /** The ancestry of `head`, walked once and cached afterwards */
+  def apply(gitRepo: JGitRepository, head: ObjectId): GitAncestry = {
+    val key = gitRepo.getDirectory.getCanonicalPath -> head.name
+    cache.synchronized { Option(cache.get(key)) }.getOrElse {
+      val ancestry = walk(gitRepo, head)
+      cache.synchronized { cache.put(key, ancestry) }
+      ancestry
+    }
+  }
+
+  private def walk(gitRepo: JGitRepository, head: ObjectId): GitAncestry = {
+    val positions = new ObjectIdSubclassMap[Position]()
+    val revWalk = new RevWalk(gitRepo)
+    try {
+      revWalk.markStart(revWalk.parseCommit(head))
+      revWalk.setRevFilter(RevFilter.NO_MERGES)
+      revWalk.setRetainBody(false) //we only need the ids
+      val it = revWalk.iterator()
+      var position = 0
+      while (it.hasNext) {
+        positions.add(new Position(it.next(), position))
+        position += 1
+      }
+    } finally {
+      revWalk.release()
+    }
+    new GitAncestry(head.copy, positions)
+  }
+}
@@ -11,20 +11,12 @@ import adept.repository.models.Commit
 import adept.logging.Logging
 
 private[adept] object GitHelpers extends Logging {
+  /**
+   * Returns the latest of the `commits` which are in the history of HEAD and all the ones which are not
+   */
   def lastestCommits(repository: GitRepository, commits: Set[Commit]): Set[Commit] = {
     if (commits.isEmpty) Set.empty
-    else {
-      val latest = commits.tail.foldLeft(commits) { (allCurrentLatest, current) =>
-        allCurrentLatest.flatMap { currentLatest =>
-          repository.compareCommits(currentLatest, current) match {
-            case (Some(first), Some(second)) => Set(first)
-            case commits =>
-              allCurrentLatest + current
-          }
-        }
-      }
-      latest
-    }
+    else repository.ancestry.latest(commits)
   }
 
   /**
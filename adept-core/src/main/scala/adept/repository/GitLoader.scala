@@ -4,9 +4,7 @@ import adept.resolution.models._
 import adept.repository.models._
 import adept.repository.metadata.VariantMetadata
 import java.io.File
-import net.sf.ehcache.CacheManager
 import adept.hash.Hasher
-import net.sf.ehcache.Ehcache
 import org.eclipse.jgit.lib.ProgressMonitor
 import adept.repository.metadata.ContextMetadata
 import adept.logging.Logging
@@ -16,25 +14,8 @@ import org.eclipse.jgit.lib.NullProgressMonitor
 
 object GitLoader extends Logging {
 
-  private def hash(id: Id, constraints: Set[Constraint], uniqueId: String): String = {
-    val uniqueString = "idc" + (id.value + constraints.toSeq.sorted.map(c => c.name + c.values.mkString(",").mkString(";")) + uniqueId)
-    Hasher.hash(uniqueString.getBytes)
-  }
-
-  private val CacheName = "adept-cache"
-
-  private def getCache(cacheManager: CacheManager): Ehcache = {
-    cacheManager.addCacheIfAbsent(CacheName)
-    cacheManager.getEhcache(CacheName)
-  }
-
-  private def hash(requirements: Set[(RepositoryName, Requirement, Commit)]): String = {
-    val uniqueString = "rrc" + requirements.map {
-      case (repository, requirement, commit) =>
-        hash(requirement.id, requirement.constraints, repository.value + commit.value)
-    }.toSeq.sorted.mkString("$")
-    Hasher.hash(uniqueString.getBytes)
-  }
+  /** Where to load a variant from: a commit in a git repository or an unversioned repository if commit is None */
+  private case class VariantLocation(id: Id, hash: VariantHash, repository: Repository, commit: Option[Commit])
 
   //TODO: private because I might want to move this to another class? 
   private[adept] def computeTransitiveContext(baseDir: File, context: Set[ContextValue], unversionedBaseDir: Option[File] = None): Set[ContextValue] = {
@@ -100,20 +81,17 @@ object GitLoader extends Logging {
 
 }
 
-private[adept] class GitLoader(baseDir: File, private[adept] val context: Set[ContextValue], cacheManager: CacheManager, unversionedBaseDirs: Set[File] = Set.empty, private[adept] val loadedVariants: Set[Variant] = Set.empty, progress: ProgressMonitor = NullProgressMonitor.INSTANCE) extends VariantsLoader with Logging {
+private[adept] class GitLoader(baseDir: File, private[adept] val context: Set[ContextValue], variantCache: VariantCache, unversionedBaseDirs: Set[File] = Set.empty, private[adept] val loadedVariants: Set[Variant] = Set.empty, progress: ProgressMonitor = NullProgressMonitor.INSTANCE) extends VariantsLoader with Logging {
   import GitLoader._
-  import adept.utils.CacheHelpers.usingCache
 
   private val thisUniqueId = Hasher.hash((
     context.map { cv => cv.id.value + "-" + cv.repository.value + "-" + cv.variant.value + "-" + cv.commit.map(_.value).mkString }.toSeq.sorted.mkString("#") ++
     loadedVariants.map(variant => VariantMetadata.fromVariant(variant).hash.value).toSeq.sorted.mkString("#")).getBytes)
 
-  private val cache: Ehcache = getCache(cacheManager)
-
-  private lazy val cachedById = { //lazy this might take a while
-    context.groupBy(_.id).map {
+  private lazy val cachedById: Map[Id, Set[Variant]] = { //lazy this might take a while
+    val locations = context.groupBy(_.id).toSeq.flatMap {
       case (id, contextValues) =>
-        val variantsLazyLoad = contextValues.groupBy(_.repository).flatMap {
+        contextValues.groupBy(_.repository).toSeq.flatMap {
           case (repositoryName, contextValues) =>
             val gitRepository = new GitRepository(baseDir, repositoryName)
             //use only latest commit:
@@ -150,60 +128,65 @@ private[adept] class GitLoader(baseDir: File, private[adept] val context: Set[Co
             val gitHashes = gitRankings.flatMap(_.variants)
             val unversionedHashes = unversionedRankings.flatMap(_.variants)
 
-            //return variant lazy loaders for everything (might return None)
-            chosenVariants.flatMap { variant =>
+            //return where to load each chosen variant from
+            chosenVariants.toSeq.flatMap { variant =>
               if (gitHashes(variant) && !unversionedHashes(variant)) {
                 onlyLatestCommits.map { commit =>
-                  () => {
-                    VariantMetadata.read(id, variant, gitRepository, commit, checkHash = true).map(_.toVariant(id))
-                  }
+                  VariantLocation(id, variant, gitRepository, Some(commit))
                 }
               } else if (unversionedHashes(variant) && !gitHashes(variant)) {
                 logger.warn("Using unversioned (imported?) variant " + variant + " for " + id + " - contribute to git repositories to avoid this warning")
                 repositories.map { repository =>
-                  () => {
-                    VariantMetadata.read(id, variant, repository, checkHash = true).map(_.toVariant(id))
-                  }
+                  VariantLocation(id, variant, repository, None)
                 }
               } else if (unversionedHashes(variant) && gitHashes(variant)) {
                 logger.warn("Using unversioned (imported?) variant: " + variant + " in " + repositories.map(_.dir.getAbsolutePath).mkString(",") + " and versioned ones from: " + gitRepository.dir.getAbsolutePath())
                 repositories.map { repository =>
-                  () => {
-                    VariantMetadata.read(id, variant, repository, checkHash = true).map(_.toVariant(id))
-                  }
+                  VariantLocation(id, variant, repository, None)
                 } ++ onlyLatestCommits.map { commit =>
-                  () => {
-                    VariantMetadata.read(id, variant, gitRepository, commit, checkHash = true).map(_.toVariant(id))
-                  }
+                  VariantLocation(id, variant, gitRepository, Some(commit))
                 }
               } else {
                 throw new Exception("Expected to hash: " + variant + " to be in a rankig in either: " + repositories.map(_.dir.getAbsolutePath).mkString(",") + " or " + gitRepository.dir.getAbsolutePath() + ". Rankings:\n" + allRankings.mkString("\n"))
               }
-
             }
-        }.toSet
-        id -> variantsLazyLoad
+        }
+    }
+
+    //every read in git walks the tree of the commit, so read all variants in the same commit at once:
+    val versionedVariants = locations.collect {
+      case VariantLocation(id, hash, gitRepository: GitRepository, Some(commit)) =>
+        (gitRepository.name, commit) -> (id -> hash)
+    }.groupBy(_._1).toSeq.par.flatMap {
+      case ((repositoryName, commit), variants) =>
+        val gitRepository = new GitRepository(baseDir, repositoryName)
+        VariantMetadata.read(variants.map(_._2).toSet, gitRepository, commit, checkHash = true).map {
+          case ((id, _), variantMetadata) => variantMetadata.toVariant(id)
+        }
     }
+    val unversionedVariants = locations.collect {
+      case VariantLocation(id, hash, repository, None) => (id, hash, repository)
+    }.par.flatMap {
+      case (id, hash, repository) =>
+        VariantMetadata.read(id, hash, repository, checkHash = true).map(_.toVariant(id))
+    }
+    (versionedVariants ++ unversionedVariants).seq.toSet.groupBy(_.id)
   }
 
   private lazy val preloadedById: Map[Id, Set[Variant]] = {
     loadedVariants.groupBy(_.id)
   }
 
-  private def locateRepositoryIdentifiers(id: Id) = {
-    cachedById.getOrElse(id, Set.empty)
+  private lazy val indexById: Map[Id, AttributeIndex] = {
+    (cachedById.keySet ++ preloadedById.keySet).map { id =>
+      val variants = cachedById.getOrElse(id, Set.empty) ++ preloadedById.getOrElse(id, Set.empty)
+      id -> new AttributeIndex(variants.toIndexedSeq)
+    }.toMap
   }
 
   def loadVariants(id: Id, constraints: Set[Constraint]): Set[Variant] = {
-    val cacheKey = "loadVariants" + hash(id, constraints, thisUniqueId)
-    usingCache(cacheKey, cache) {
-      val repositoryVariants = locateRepositoryIdentifiers(id).flatMap { variantsLazyLoad =>
-        variantsLazyLoad()
-      }
-
-      val variants = repositoryVariants ++ preloadedById.getOrElse(id, Set.empty)
-
-      AttributeConstraintFilter.filter(id, variants, constraints)
+    variantCache.getOrLoad(VariantCacheKey(id, constraints, thisUniqueId)) {
+      indexById.get(id).map(_.filter(constraints)).getOrElse(Set.empty)
     }
   }
 
@@ -0,0 +1,195 @@
+package adept.repository
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import scala.util.control.NonFatal
+import org.eclipse.jgit.lib.ObjectId
+import org.eclipse.jgit.lib.{ Repository => JGitRepository }
+import org.eclipse.jgit.revwalk.RevTree
+import org.eclipse.jgit.treewalk.TreeWalk
+import adept.logging.Logging
+
+/**
+ * All the files (paths and blob ids) of a commit, sorted by path.
+ *
+ * Commits never change, so the index of a commit is built once, with one tree walk,
+ * and is used for all later listings and reads instead of walking the tree again.
+ */
+private[repository] class GitPathIndex private (paths: Array[String], objectIds: Array[ObjectId]) {
+
+  def size = paths.length
+
+  /** The blob of `path` if it is in this commit */
+  def get(path: String): Option[ObjectId] = {
+    val i = java.util.Arrays.binarySearch(paths.asInstanceOf[Array[AnyRef]], path)
+    if (i >= 0) Some(objectIds(i)) else None
+  }
+
+  /** All files which are `path` or are in the directory `path` */
+  def under(path: String): Iterator[(String, ObjectId)] = {
+    val dirPrefix = path + GitRepository.GitPathSep
+    val first = java.util.Arrays.binarySearch(paths.asInstanceOf[Array[AnyRef]], path) match {
+      case i if i >= 0 => i
+      case i => -(i + 1)
+    }
+    //paths in the directory are sorted right after path, but other paths (e.g. path + "-" + ...) may be in between
+    Iterator.range(first, paths.length)
+      .takeWhile(i => paths(i).startsWith(path))
+      .filter(i => paths(i) == path || paths(i).startsWith(dirPrefix))
+      .map(i => paths(i) -> objectIds(i))
+  }
+
+  def all: Iterator[(String, ObjectId)] = {
+    Iterator.range(0, paths.length).map(i => paths(i) -> objectIds(i))
+  }
+}
+
+private[repository] object GitPathIndex extends Logging {
+  /** Max number of paths kept in memory for all indexes */
+  val MaxCachedPaths = 500000
+
+  private val FormatVersion = 1
+  private val HeaderBytes = 8 //the format version and the number of paths
+  private val MinEntryBytes = 2 + org.eclipse.jgit.lib.Constants.OBJECT_ID_LENGTH //an empty path and an object id
+  private val IndexDirName = "adept-paths" //in the .git dir, so that it is not part of the work tree
+
+  private val cache = new java.util.LinkedHashMap[(String, String), GitPathIndex](16, 0.75f, true) //access ordered
+  private var cachedPaths = 0 //guarded by cache
+
+  private def key(gitRepo: JGitRepository, commitId: ObjectId) = gitRepo.getDirectory.getCanonicalPath -> commitId.name
+
+  /** The index of `commitId` (which must be a resolved commit) if it is in memory */
+  def cached(gitRepo: JGitRepository, commitId: ObjectId): Option[GitPathIndex] = cache.synchronized {
+    Option(cache.get(key(gitRepo, commitId)))
+  }
+
+  /**
+   * The index of `commitId` (which must be a resolved commit) read from disk or built from its `tree`
+   * (and written to disk), if `GitRepository.pathIndexesOnDisk`
+   */
+  def apply(gitRepo: JGitRepository, commitId: ObjectId, tree: RevTree): GitPathIndex = {
+    val index = if (GitRepository.pathIndexesOnDisk) {
+      val file = new File(new File(gitRepo.getDirectory, IndexDirName), commitId.name)
+      readIndex(file).getOrElse {
+        val index = build(gitRepo, tree)
+        writeIndex(index, file)
+        evictFromDisk(file.getParentFile)
+        index
+      }
+    } else build(gitRepo, tree)
+    cache.synchronized {
+      val previous = cache.put(key(gitRepo, commitId), index)
+      if (previous != null) cachedPaths -= previous.size
+      cachedPaths += index.size
+      val it = cache.values.iterator
+      while (cachedPaths > MaxCachedPaths && cache.size > 1 && it.hasNext) { //evict least recently used
+        cachedPaths -= it.next().size
+        it.remove()
+      }
+    }
+    index
+  }
+
+  private def build(gitRepo: JGitRepository, tree: RevTree): GitPathIndex = {
+    val paths = new collection.mutable.ArrayBuffer[String]()
+    val objectIds = new collection.mutable.ArrayBuffer[ObjectId]()
+    val treeWalk = new TreeWalk(gitRepo)
+    try {
+      treeWalk.addTree(tree)
+      treeWalk.setRecursive(true) //without recursive Git will return the directory, not the file
+      while (treeWalk.next()) {
+        paths += treeWalk.getPathString
+        objectIds += treeWalk.getObjectId(0) //nth == 0, means we are reading the 0th tree
+      }
+    } finally {
+      treeWalk.release()
+    }
+    sorted(paths.toArray, objectIds.toArray)
+  }
+
+  //tree walks are in git order, which is not the same as string order (directories are compared as if they end with a /)
+  private def sorted(paths: Array[String], objectIds: Array[ObjectId]) = {
+    val order = paths.indices.sortBy(paths(_))
+    new GitPathIndex(order.map(paths).toArray, order.map(objectIds).toArray)
+  }
+
+  private def readIndex(file: File): Option[GitPathIndex] = {
+    if (file.isFile) {
+      try {
+        val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))
+        try {
+          if (in.readInt() != FormatVersion) None
+          else {
+            val size = in.readInt()
+            if (size < 0 || size > (file.length - HeaderBytes) / MinEntryBytes) {
+              throw new java.io.IOException("Corrupt index with " + size + " paths in " + file.length + " bytes")
+            }
+            val paths = new Array[String](size)
+            val objectIds = new Array[ObjectId](size)
+            val raw = new Array[Byte](org.eclipse.jgit.lib.Constants.OBJECT_ID_LENGTH)
+            for (i <- 0 until size) {
+              paths(i) = in.readUTF()
+              in.readFully(raw)
+              objectIds(i) = ObjectId.fromRaw(raw)
+            }
+            file.setLastModified(System.currentTimeMillis) //recently used
+            Some(new GitPathIndex(paths, objectIds))
+          }
+        } finally {
+          in.close()
+        }
+      } catch {
+        case NonFatal(e) => //corrupt or truncated (e.g. if the disk was full)
+          logger.warn("Could not read git path index: " + file.getAbsolutePath + ". Rebuilding it. Got error: " + e)
+          None
+      }
+    } else None
+  }
+
+  private def writeIndex(index: GitPathIndex, file: File): Unit = {
+    try {
+      if (file.getParentFile.isDirectory || file.getParentFile.mkdirs()) {
+        val tmpFile = File.createTempFile(file.getName, ".tmp", file.getParentFile) //unique, also across processes
+        try {
+          val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))
+          try {
+            out.writeInt(FormatVersion)
+            out.writeInt(index.size)
+            index.all.foreach {
+              case (path, objectId) =>
+                out.writeUTF(path)
+                objectId.copyRawTo(out)
+            }
+          } finally {
+            out.close()
+          }
+          if (!tmpFile.renameTo(file) && !file.isFile) {
+            logger.warn("Could not move git path index: " + tmpFile.getAbsolutePath + " to " + file.getAbsolutePath)
+          }
+        } finally {
+          if (tmpFile.exists) tmpFile.delete()
+        }
+      }
+    } catch {
+      case e: java.io.IOException =>
+        logger.warn("Could not write git path index: " + file.getAbsolutePath + ". Got error: " + e)
+    }
+  }
+
+  /** Removes the least recently used indexes, if there are more than `GitRepository.maxPathIndexesOnDisk` */
+  private def evictFromDisk(dir: File): Unit = {
+    val maxIndexes = GitRepository.maxPathIndexesOnDisk
+    val files = Option(dir.listFiles).toSeq.flatten.filter(file => ObjectId.isId(file.getName))
+    if (files.size > maxIndexes) {
+      files.map(file => file -> file.lastModified).sortBy(_._2).take(files.size - maxIndexes).foreach {
+        case (file, _) =>
+          if (!file.delete() && file.isFile) logger.warn("Could not remove git path index: " + file.getAbsolutePath)
+      }
+    }
+  }
+}
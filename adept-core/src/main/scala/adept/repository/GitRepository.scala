@@ -9,12 +9,9 @@ import org.eclipse.jgit.lib.{ Constants, Repository => JGitRepository }
 import org.eclipse.jgit.api.Git
 import org.eclipse.jgit.revwalk.RevWalk
 import org.eclipse.jgit.treewalk.TreeWalk
-import org.eclipse.jgit.treewalk.filter.PathFilter
 import org.eclipse.jgit.lib.ProgressMonitor
 import org.eclipse.jgit.lib.NullProgressMonitor
 import adept.logging.Logging
-import org.eclipse.jgit.revwalk.RevCommit
-import org.eclipse.jgit.revwalk.filter.RevFilter
 import org.eclipse.jgit.lib.ConfigConstants
 
 /**
@@ -30,12 +27,13 @@ class GitRepository(override val baseDir: File, override val name: RepositoryNam
   }
 
   def gc(): Unit = {
-    git.gc().call() //TODO: .setProgressMonitor(progress)?
+    usingGit(_.gc().call()) //TODO: .setProgressMonitor(progress)?
   }
 
   def hasCommit(commit: Commit): Boolean = {
     exists && usingRevWalk { (gitRepo, revWalk) =>
-      lookup(gitRepo, revWalk, commit.value).isDefined
+      //resolve returns full hashes without looking them up, so check that the commit is in the repository:
+      lookup(gitRepo, revWalk, commit.value).exists(revCommit => gitRepo.getObjectDatabase.has(revCommit))
     }
   }
 
@@ -43,41 +41,48 @@ class GitRepository(override val baseDir: File, override val name: RepositoryNam
     if (remoteName != GitRepository.DefaultRemote) throw new Exception(
       "Cannot get " + remoteName + " remote uri because we only support: " +
         DefaultRemote + ".") //TODO: support other names
-    val repoConfig = git.getRepository.getConfig
-    Option(repoConfig.getString(
-      ConfigConstants.CONFIG_REMOTE_SECTION, remoteName,
-      ConfigConstants.CONFIG_KEY_URL))
+    usingGitRepo { gitRepo =>
+      Option(gitRepo.getConfig.getString(
+        ConfigConstants.CONFIG_REMOTE_SECTION, remoteName,
+        ConfigConstants.CONFIG_KEY_URL))
+    }
   }
 
   def addRemoteUri(remoteName: String, uri: String) = {
     if (remoteName != GitRepository.DefaultRemote)
       throw new Exception("Cannot get " + remoteName + " remote uri because we only support: " +
         DefaultRemote + ".") //TODO: support other names
-    val repoConfig = git.getRepository.getConfig
-    repoConfig.setString(ConfigConstants.CONFIG_REMOTE_SECTION, GitRepository.DefaultRemote,
-      ConfigConstants.CONFIG_KEY_URL, uri)
-    repoConfig.setString(ConfigConstants.CONFIG_REMOTE_SECTION, GitRepository.DefaultRemote,
-      "fetch", "+refs/heads/*:refs/remotes/origin/*")
-    repoConfig.save()
+    usingGitRepo { gitRepo =>
+      val repoConfig = gitRepo.getConfig
+      repoConfig.setString(ConfigConstants.CONFIG_REMOTE_SECTION, GitRepository.DefaultRemote,
+        ConfigConstants.CONFIG_KEY_URL, uri)
+      repoConfig.setString(ConfigConstants.CONFIG_REMOTE_SECTION, GitRepository.DefaultRemote,
+        "fetch", "+refs/heads/*:refs/remotes/origin/*")
+      repoConfig.save()
+    }
   }
 
   def push(passphrase: Option[String] = None, progress: ProgressMonitor = NullProgressMonitor.INSTANCE) = {
     GitHelpers.withGitSshCredentials(passphrase) {
-      git.push()
-        .setProgressMonitor(progress)
-        .call()
+      usingGit { git =>
+        git.push()
+          .setProgressMonitor(progress)
+          .call()
+      }
     }
   }
 
   def pull(remoteName: String, branch: String, passphrase: Option[String] = None, progress: ProgressMonitor = NullProgressMonitor.INSTANCE) = {
     GitHelpers.withGitSshCredentials(passphrase) {
-      val repoConfig = git.getRepository.getConfig //
-      repoConfig.setString(ConfigConstants.CONFIG_BRANCH_SECTION, GitRepository.DefaultBranchName,
-        "remote", GitRepository.DefaultRemote)
-      repoConfig.setString(ConfigConstants.CONFIG_BRANCH_SECTION, GitRepository.DefaultBranchName,
-        "merge", "refs/heads/" + GitRepository.DefaultBranchName)
-      repoConfig.save()
-      val pullResults = git.pull().setProgressMonitor(progress).call()
+      val pullResults = usingGit { git =>
+        val repoConfig = git.getRepository.getConfig //
+        repoConfig.setString(ConfigConstants.CONFIG_BRANCH_SECTION, GitRepository.DefaultBranchName,
+          "remote", GitRepository.DefaultRemote)
+        repoConfig.setString(ConfigConstants.CONFIG_BRANCH_SECTION, GitRepository.DefaultBranchName,
+          "merge", "refs/heads/" + GitRepository.DefaultBranchName)
+        repoConfig.save()
+        git.pull().setProgressMonitor(progress).call()
+      }
       if (pullResults.isSuccessful)
         getHead //TODO: is this right?
       else {
@@ -89,16 +94,19 @@ class GitRepository(override val baseDir: File, override val name: RepositoryNam
 
   def clone(uri: String, passphrase: Option[String] = None, progress: ProgressMonitor = NullProgressMonitor.INSTANCE) = {
     GitHelpers.withGitSshCredentials(passphrase) {
-      Git.cloneRepository()
+      GitRepositoryPool.remove(dir)
+      val git = Git.cloneRepository()
         .setURI(uri)
         .setDirectory(dir)
         .setProgressMonitor(progress)
         .call()
+      git.getRepository.close() //it will be opened again (and kept open) by the pool when used
+      git
     }
   }
 
   def checkout(branch: String) = { //TODO: REMOVE this one and manage remote uris properly
-    git.checkout().setName(branch).call()
+    usingGit(_.checkout().setName(branch).call())
   }
 
   def getHead: Commit = usingRevWalk { (gitRepo, revWalk) =>
@@ -115,8 +123,10 @@ class GitRepository(override val baseDir: File, override val name: RepositoryNam
   }
 
   def add(files: File*): Set[File] = synchronized { //this is synchronized because git locks when it writes and we do not want to try to break that one, feels bad but that is the way it is
-    files.foreach { file =>
-      git.add().addFilepattern(asGitPath(file)).call()
+    usingGit { git =>
+      files.foreach { file =>
+        git.add().addFilepattern(asGitPath(file)).call()
+      }
     }
     files.toSet
   }
@@ -126,23 +136,30 @@ class GitRepository(override val baseDir: File, override val name: RepositoryNam
   }
 
   def rm(files: File*): Set[File] = synchronized { //this is synchronized because git locks when it writes and we do not want to try to break that one, feels bad but that is the way it is
-    files.foreach { file =>
-      git.rm().addFilepattern(asGitPath(file)).call()
+    usingGit { git =>
+      files.foreach { file =>
+        git.rm().addFilepattern(asGitPath(file)).call()
+      }
     }
     files.toSet
   }
 
   def init() = {
+    GitRepositoryPool.remove(dir)
     val git = Git.init().setDirectory(dir).call()
-    val revCommit = git.commit().setMessage("Initialized " + name.value).call
-    val initCommit = Commit(revCommit.name)
-    git.tag().setName(InitTag).call()
-    initCommit
+    try {
+      val revCommit = git.commit().setMessage("Initialized " + name.value).call
+      val initCommit = Commit(revCommit.name)
+      git.tag().setName(InitTag).call()
+      initCommit
+    } finally {
+      git.getRepository.close()
+    }
   }
 
   def isClean: Boolean = {
     //    println(name + " status: " + git.status.call().getModified().asScala)
-    git.status().call().isClean
+    usingGit(_.status().call().isClean)
   }
 
   def commit(msg: String): Commit = {
@@ -150,7 +167,7 @@ class GitRepository(override val baseDir: File, override val name: RepositoryNam
       logger.debug("Tried to commit to empty repository, ignoring... Message was: " + msg)
       getHead
     } else {
-      val revCommit = git.commit().setMessage(msg).call
+      val revCommit = usingGit(_.commit().setMessage(msg).call)
       Commit(revCommit.name)
     }
   }
@@ -161,15 +178,14 @@ class GitRepository(override val baseDir: File, override val name: RepositoryNam
   }
 
   //Members private to repository:
-  private[repository] def git = Git.open(dir)
-
+  /** Uses the (pooled) repository, which must not be closed. See [[adept.repository.GitRepositoryPool]] */
   private[repository] def usingGitRepo[A](func: JGitRepository => A): A = {
-    var repo: JGitRepository = null
-    try {
-      repo = git.getRepository
-      func(repo)
-    } finally {
-      if (repo != null) repo.close()
+    GitRepositoryPool.using(dir)(func)
+  }
+
+  private[repository] def usingGit[A](func: Git => A): A = {
+    usingGitRepo { gitRepo =>
+      func(new Git(gitRepo))
     }
   }
 
@@ -205,54 +221,21 @@ class GitRepository(override val baseDir: File, override val name: RepositoryNam
     }
   }
 
-  private[repository] def readBlob[A](treeWalk: TreeWalk, gitRepo: JGitRepository)(f: InputStream => A) = {
-    val objectId = treeWalk.getObjectId(0) //nth == 0, means we are reading the 0th tree
-    val loader = gitRepo.open(objectId)
-    val stream = loader.openStream()
-    try {
-      f(loader.openStream())
-    } finally {
-      stream.close()
-    }
+  /** The ancestry of the current HEAD (see [[adept.repository.GitAncestry]]) */
+  private[repository] def ancestry: GitAncestry = usingGitRepo { gitRepo =>
+    val head = gitRepo.resolve(Head)
+    if (head == null) throw new Exception("Cannot find " + Head + " in git repo: " + dir.getAbsolutePath)
+    GitAncestry(gitRepo, head)
   }
 
+  /** Returns the commits which are in the history of HEAD (ignoring merges), latest first */
   private[repository] def compareCommits(thisCommit: Commit, thatCommit: Commit): (Option[Commit], Option[Commit]) = {
-    def equalCommits(commit: Commit, revCommit: RevCommit): Boolean = {
-      commit.value == revCommit.name
-    }
-
-    def checkMatch(current: RevCommit, thisCommit: Commit, thatCommit: Commit): Option[Commit] = {
-      if (equalCommits(thisCommit, current)) {
-        Some(thisCommit)
-      } else if (equalCommits(thatCommit, current)) {
-        Some(thatCommit)
-      } else None
-    }
-
-    usingRevWalk { (gitRepo, revWalk) =>
-      try {
-        val start = lookup(gitRepo, revWalk, Head).getOrElse(throw new Exception("Cannot find " + Head + " in git repo: " + dir.getAbsolutePath))
-        revWalk.markStart(start)
-        revWalk.setRevFilter(RevFilter.NO_MERGES)
-        val it = revWalk.iterator()
-
-        var first: Option[Commit] = None
-        var second: Option[Commit] = None
-
-        while (it.hasNext && (first.isEmpty || second.isEmpty)) {
-          val current = it.next()
-          if (first.isEmpty) {
-            first = checkMatch(current, thisCommit, thatCommit)
-            if (first.nonEmpty && thisCommit == thatCommit) {
-              second = first
-            }
-          } else if (first.nonEmpty && second.isEmpty) {
-            second = checkMatch(current, thisCommit, thatCommit)
-          }
-        }
-        first -> second
-      }
-    }
+    val currentAncestry = ancestry
+    val found = Seq(thisCommit, thatCommit).distinct.flatMap { commit =>
+      currentAncestry.position(commit).map(commit -> _)
+    }.sortBy(_._2).map(_._1)
+    if (thisCommit == thatCommit) found.headOption -> found.headOption
+    else found.headOption -> found.drop(1).headOption
   }
 
   private[repository] def usingContextInputStream[A](id: Id, hash: VariantHash, commit: Commit)(block: Either[String, Option[InputStream]] => A): A = {
@@ -280,64 +263,88 @@ class GitRepository(override val baseDir: File, override val name: RepositoryNam
   }
 
   private[repository] def usePath[A](path: Option[String], commit: Commit)(accumulate: String => Option[A]): Set[A] = {
-    usingTreeWalk { (gitRepo, revWalk, treeWalk) =>
-      var accumulator = Set.empty[A]
-      val revCommit = lookup(gitRepo, revWalk, commit.value).getOrElse {
-        throw new Exception("Could not find: " + commit + " in " + dir.getAbsolutePath)
+    usingRevWalk { (gitRepo, revWalk) =>
+      pathIndex(gitRepo, revWalk, commit) match {
+        case Some(index) =>
+          val files = path match {
+            case Some(p) => index.under(p)
+            case None => index.all
+          }
+          var accumulator = Set.empty[A]
+          files.foreach {
+            case (filePath, _) =>
+              accumulator ++= accumulate(filePath)
+          }
+          accumulator
+        case None =>
+          logger.warn("Could not find get tree for path: " + path + " in " + commit.value)
+          Set.empty
       }
+    }
+  }
+
+  /**
+   * Reads the contents of all the `paths` found in `commit`, which is much faster than
+   * using an input stream per path when there are many of them.
+   *
+   * Paths that are not in the commit are not in the result.
+   */
+  private[repository] def readBlobs(paths: Set[String], commit: Commit): Map[String, Array[Byte]] = {
+    if (paths.isEmpty) Map.empty
+    else usingRevWalk { (gitRepo, revWalk) =>
+      pathIndex(gitRepo, revWalk, commit) match {
+        case Some(index) =>
+          paths.flatMap { path =>
+            index.get(path).map { objectId =>
+              path -> gitRepo.open(objectId).getBytes
+            }
+          }.toMap
+        case None =>
+          logger.warn("Could not find get tree for paths: " + paths.mkString(",") + " in " + commit.value)
+          Map.empty
+      }
+    }
+  }
+
+  //Private members
+
+  /**
+   * The path index of `commit` (see [[adept.repository.GitPathIndex]]) or None if the commit does not have a tree (empty commit)
+   */
+  private def pathIndex(gitRepo: JGitRepository, revWalk: RevWalk, commit: Commit): Option[GitPathIndex] = {
+    val revCommit = lookup(gitRepo, revWalk, commit.value).getOrElse {
+      throw new Exception("Could not find: " + commit + " in " + dir.getAbsolutePath)
+    }
+    GitPathIndex.cached(gitRepo, revCommit).orElse {
       try {
         revWalk.markStart(revCommit)
       } catch {
         case e: org.eclipse.jgit.errors.MissingObjectException =>
           throw new Exception("Could not mark commit: " + revCommit + " in " + dir.getAbsolutePath, e)
       }
-      val currentTree = revCommit.getTree
-      if (currentTree != null) {
-        treeWalk.addTree(currentTree)
-        path.foreach(p => treeWalk.setFilter(PathFilter.create(p)))
-        treeWalk.setRecursive(true) //without recursive Git will return the directory, not the file
-        while (treeWalk.next()) {
-          if (!treeWalk.isSubtree) {
-            accumulator ++= accumulate(treeWalk.getPathString)
-          }
-        }
-      } else {
-        logger.warn("Could not find get tree: " + revCommit + " for path: " + path + " in " + commit.value)
+      Option(revCommit.getTree).map { tree =>
+        GitPathIndex(gitRepo, revCommit, tree)
       }
-      accumulator
     }
   }
 
-  //Private members
-
   private def usingInputStream[A](commit: Commit, path: String)(block: Either[String, Option[InputStream]] => A): A = {
-    usingTreeWalk { (gitRepo, revWalk, treeWalk) =>
-      val revCommit = lookup(gitRepo, revWalk, commit.value).getOrElse {
-        throw new Exception("Could not find: " + commit + " in " + dir.getAbsolutePath)
-      }
-      try {
-        revWalk.markStart(revCommit)
-      } catch {
-        case _: org.eclipse.jgit.errors.MissingObjectException =>
-          block(Left("Cannot find commit: " + commit + " in " + dir))
-      }
-      val currentTree = revCommit.getTree
-      if (currentTree != null) { //if null means we on an empty commit (no tree)
-        treeWalk.addTree(currentTree)
-        treeWalk.setFilter(PathFilter.create(path))
-        treeWalk.setRecursive(true) //without recursive Git will return the directory, not the file
-        val res = if (treeWalk.next()) {
-          readBlob(treeWalk, gitRepo) { is =>
-            block(Right(Some(is)))
+    usingRevWalk { (gitRepo, revWalk) =>
+      pathIndex(gitRepo, revWalk, commit) match {
+        case Some(index) =>
+          index.get(path) match {
+            case Some(objectId) =>
+              val stream = gitRepo.open(objectId).openStream()
+              try {
+                block(Right(Some(stream)))
+              } finally {
+                stream.close()
+              }
+            case None =>
+              block(Right(None))
           }
-        } else {
-          block(Right(None))
-        }
-        if (treeWalk.next()) throw new Exception("Found too many files matching path: " + path +
-          " this one was: " + treeWalk.getPathString)
-        else res
-      } else {
-        block(Left("Could not create git tree for commit: " + commit + " for dir: " + dir.getAbsolutePath))
+        case None => //if no tree, means we on an empty commit
+          block(Left("Could not create git tree for commit: " + commit + " for dir: " + dir.getAbsolutePath))
       }
     }
   }
@@ -350,4 +357,15 @@ object GitRepository {
   val Head = Constants.HEAD
 
   val GitPathSep = "/" //the character that separates paths in Git
+
+  val DefaultMaxPathIndexesOnDisk = 100
+
+  /**
+   * Whether the path indexes of commits (see [[adept.repository.GitPathIndex]]) are also kept on disk
+   * (in the .git dir), so that they are not built again by other processes.
+   */
+  @volatile var pathIndexesOnDisk = true
+
+  /** The max number of path indexes kept on disk per repository: the least recently used are removed first */
+  @volatile var maxPathIndexesOnDisk = DefaultMaxPathIndexesOnDisk
 }
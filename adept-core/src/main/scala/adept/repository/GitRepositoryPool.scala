@@ -0,0 +1,127 @@
+package adept.repository
+
+import java.io.File
+import java.util.Timer
+import java.util.TimerTask
+import org.eclipse.jgit.api.Git
+import org.eclipse.jgit.lib.{ Repository => JGitRepository }
+import adept.logging.Logging
+
+/**
+ * Keeps JGit repositories open between calls, so what JGit has already read
+ * (refs, pack indexes, cached objects) is reused instead of opening the repository again every time.
+ *
+ * A repository is borrowed with `using` and is reference counted while in use.
+ * Repositories that are not in use are closed when they have been idle for more than `IdleTimeoutMillis`
+ * (checked every `IdleTimeoutMillis` by a daemon timer, so a repository is closed at the latest after twice that),
+ * or, least recently used first, when there are more than `MaxOpenRepositories` open.
+ *
+ * Repositories are opened outside of the lock of the pool, so opening one does not hold up the others.
+ *
+ * JGit repositories can be shared between threads, but RevWalks, TreeWalks and ObjectReaders cannot
+ * so these are still created for each call (they are cheap compared to opening the repository).
+ *
+ * Is thread-safe.
+ */
+private[repository] object GitRepositoryPool extends Logging {
+  val MaxOpenRepositories = 32
+  val IdleTimeoutMillis = 60 * 1000L
+
+  private class Handle(val key: String, val repository: JGitRepository) {
+    var references = 0
+    var lastUsed = System.currentTimeMillis
+    var evicted = false
+  }
+
+  //guarded by this
+  private val handles = collection.mutable.Map.empty[String, Handle]
+
+  def using[A](dir: File)(func: JGitRepository => A): A = {
+    val handle = acquire(dir)
+    try {
+      func(handle.repository)
+    } finally {
+      release(handle)
+    }
+  }
+
+  /** Stops using the repository in `dir`, which should be called if it is (re-)created */
+  def remove(dir: File): Unit = synchronized {
+    handles.get(dir.getCanonicalPath).foreach(evict)
+  }
+
+  /** Closes all repositories that are not in use (those in use are closed when they are released) */
+  def clear(): Unit = synchronized {
+    handles.values.toList.foreach(evict)
+  }
+
+  private lazy val evictionTimer = {
+    val timer = new Timer("adept-git-repository-pool", true)
+    timer.schedule(new TimerTask {
+      def run() = GitRepositoryPool.synchronized {
+        evictUnused(System.currentTimeMillis)
+      }
+    }, IdleTimeoutMillis, IdleTimeoutMillis)
+    timer
+  }
+
+  private def isValid(handle: Handle) = !handle.evicted && handle.repository.getDirectory.isDirectory
+
+  /** Marks `handle` as used and returns it */
+  private def use(handle: Handle): Handle = {
+    handle.references += 1
+    handle.lastUsed = System.currentTimeMillis
+    handle
+  }
+
+  private def acquire(dir: File): Handle = {
+    val key = dir.getCanonicalPath
+    synchronized {
+      handles.get(key).filter(isValid).map(use)
+    }.getOrElse {
+      val repository = Git.open(dir).getRepository //slow, so it is opened without holding the lock
+      evictionTimer
+      synchronized {
+        handles.get(key) match {
+          case Some(existing) if isValid(existing) => //opened by another thread meanwhile
+            repository.close()
+            use(existing)
+          case existing =>
+            existing.foreach(evict) //the repository was removed, so do not use the old one
+            val handle = new Handle(key, repository)
+            handles += key -> handle
+            use(handle)
+        }
+      }
+    }
+  }
+
+  private def release(handle: Handle): Unit = synchronized {
+    handle.references -= 1
+    handle.lastUsed = System.currentTimeMillis
+    if (handle.evicted && handle.references == 0) {
+      handle.repository.close()
+    }
+    evictUnused(handle.lastUsed)
+  }
+
+  private def evict(handle: Handle): Unit = {
+    if (!handle.evicted) {
+      handle.evicted = true
+      handles -= handle.key
+      if (handle.references == 0) handle.repository.close()
+    }
+  }
+
+  private def evictUnused(now: Long): Unit = {
+    val unused = handles.values.filter(_.references == 0).toList.sortBy(_.lastUsed)
+    var tooMany = handles.size - MaxOpenRepositories
+    unused.foreach { handle =>
+      if (tooMany > 0 || now - handle.lastUsed > IdleTimeoutMillis) {
+        logger.debug("Closing git repository: " + handle.key)
+        evict(handle)
+        tooMany -= 1
+      }
+    }
+  }
+}
@@ -10,8 +10,10 @@ import adept.resolution.models._
 class MemoryLoader(private[adept] val variants: Set[Variant]) extends VariantsLoader {
   val variantsById = variants.groupBy(_.id) //avoid filtering ids that we know won't match
 
+  private lazy val indexById = variantsById.map { case (id, variants) => id -> new AttributeIndex(variants.toIndexedSeq) }
+
   def loadVariants(id: Id, constraints: Set[Constraint]): Set[Variant] = {
-    AttributeConstraintFilter.filter(id, variantsById.get(id).getOrElse(Set.empty).toSet, constraints)
+    indexById.get(id).map(_.filter(constraints)).getOrElse(Set.empty)
   }
 
 }
\ No newline at end of file
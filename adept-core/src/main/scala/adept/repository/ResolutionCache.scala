@@ -0,0 +1,289 @@
+package adept.repository
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicLong
+import adept.hash.Hasher
+import adept.logging.Logging
+import adept.repository.metadata.VariantMetadata
+import adept.repository.models._
+import adept.resolution.models._
+import adept.resolution.resolver.models._
+import scala.util.control.NonFatal
+
+/**
+ * The key of a resolve cached by a `ResolutionCache`: the `requirements`, the `context` they were resolved in
+ * and the `providedVariants` which were loaded as well (see [[adept.repository.GitLoader]]).
+ *
+ * A resolve can only be cached if all of its context has commits (see `isCacheable`),
+ * since what is loaded from a commit never changes.
+ */
+case class ResolutionCacheKey(requirements: Set[Requirement], context: Set[ContextValue], providedVariants: Set[Variant]) {
+  def isCacheable = context.forall(_.commit.isDefined)
+
+  /** The hash of the content of this key, used to name it on disk */
+  lazy val contentHash: String = {
+    //each string is prefixed by its length and each sequence by its size, so different keys never have the same content:
+    def string(value: String) = value.length + ":" + value
+    def strings(values: Seq[String]) = values.size + ":" + values.mkString
+    def constraintsString(constraints: Set[Constraint]) = strings(constraints.toSeq.map(c => string(c.name) + strings(c.values.toSeq.sorted.map(string))).sorted)
+    Hasher.hash(("rcp" +
+      strings(requirements.toSeq.map(r => string(r.id.value) + constraintsString(r.constraints) + strings(r.exclusions.toSeq.map(_.value).sorted.map(string))).sorted) +
+      strings(context.toSeq.map(cv => string(cv.id.value) + string(cv.repository.value) + string(cv.variant.value) + strings(cv.commit.toSeq.map(c => string(c.value)))).sorted) +
+      strings(providedVariants.toSeq.map(variant => string(VariantMetadata.fromVariant(variant).hash.value)).sorted)).getBytes("UTF-8"))
+  }
+}
+
+/**
+ * Hit and miss counts of a `ResolutionCache` since it was created.
+ *
+ * `invalid` is the number of cached resolves which were not used, because a commit of their context was missing
+ * (e.g. the repository was removed or cloned again) or they could not be read.
+ */
+case class ResolutionCacheStats(hits: Long, misses: Long, invalid: Long) {
+  override def toString = "hits: " + hits + ", misses: " + misses + ", invalid: " + invalid
+}
+
+/**
+ * Caches resolved results on disk (in `ResolutionCache.getDir(baseDir)`), so that resolving the same requirements in
+ * the same context again (e.g. on every build) neither loads variants nor resolves.
+ *
+ * Each result is stored in a compact binary format in one file named by the content hash of its key.
+ * A cached result is only used if all commits of its context are still in the repositories in `baseDir`.
+ * At most `maxEntries` results are kept: the least recently used are removed first.
+ *
+ * Only resolved results are cached: failed resolves are resolved again, so the reason they failed is reported again.
+ *
+ * Is thread-safe and can be shared by processes (files are written to a temporary file then moved).
+ */
+class ResolutionCache(baseDir: File, maxEntries: Int = ResolutionCache.DefaultMaxEntries) extends Logging {
+  import ResolutionCache._
+
+  val dir = getDir(baseDir)
+
+  private val hits = new AtomicLong(0)
+  private val misses = new AtomicLong(0)
+  private val invalid = new AtomicLong(0)
+
+  def stats: ResolutionCacheStats = ResolutionCacheStats(hits.get, misses.get, invalid.get)
+
+  /** Returns the cached result of `key` or resolves it with `resolve` (and caches it if it resolved) */
+  def getOrResolve(key: ResolutionCacheKey)(resolve: => ResolveResult): ResolveResult = {
+    if (!key.isCacheable) resolve
+    else get(key).getOrElse {
+      val result = resolve
+      result match {
+        case resolvedResult: ResolvedResult => put(key, resolvedResult)
+        case _ => //only resolved results are cached
+      }
+      result
+    }
+  }
+
+  /** The cached result of `key`, if there is one and all the commits of its context still exist */
+  def get(key: ResolutionCacheKey): Option[ResolvedResult] = {
+    val file = this.file(key)
+    val result = if (!key.isCacheable || !file.isFile) None
+    else if (!hasCommits(key.context)) {
+      invalid.incrementAndGet()
+      None
+    } else {
+      try {
+        val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))
+        val result = try {
+          ResolutionCodec.read(key.requirements, in)
+        } finally {
+          in.close()
+        }
+        if (result.isEmpty) removeInvalid(file) //written in another format
+        result
+      } catch {
+        case NonFatal(e) =>
+          logger.warn("Could not read cached resolution from: " + file.getAbsolutePath + ". Resolving again. Got error: " + e)
+          removeInvalid(file)
+          None
+      }
+    }
+    result match {
+      case Some(_) =>
+        file.setLastModified(System.currentTimeMillis) //recently used
+        hits.incrementAndGet()
+      case None =>
+        misses.incrementAndGet()
+    }
+    result
+  }
+
+  def put(key: ResolutionCacheKey, result: ResolvedResult): Unit = {
+    if (key.isCacheable) {
+      val file = this.file(key)
+      var tmpFile: File = null
+      try {
+        if (dir.isDirectory || dir.mkdirs()) {
+          tmpFile = File.createTempFile(file.getName, ".tmp", dir)
+          val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))
+          try {
+            ResolutionCodec.write(result.state, out)
+          } finally {
+            out.close()
+          }
+          if (file.isFile) file.delete() //renameTo does not replace files on all platforms
+          if (!tmpFile.renameTo(file) && !file.isFile) {
+            logger.warn("Could not move cached resolution: " + tmpFile.getAbsolutePath + " to " + file.getAbsolutePath)
+          }
+          evict()
+        } else {
+          logger.warn("Could not create resolution cache directory: " + dir.getAbsolutePath)
+        }
+      } catch {
+        case e: IOException =>
+          logger.warn("Could not write cached resolution to: " + file.getAbsolutePath + ". Got error: " + e)
+      } finally {
+        if (tmpFile != null && tmpFile.exists) tmpFile.delete()
+      }
+    }
+  }
+
+  private def file(key: ResolutionCacheKey) = new File(dir, key.contentHash + FileEnding)
+
+  private def removeInvalid(file: File) = {
+    invalid.incrementAndGet()
+    if (!file.delete() && file.isFile) logger.warn("Could not remove invalid cached resolution: " + file.getAbsolutePath)
+  }
+
+  private def hasCommits(context: Set[ContextValue]) = {
+    context.collect {
+      case ContextValue(_, repository, Some(commit), _) => repository -> commit
+    }.groupBy(_._1).forall {
+      case (repository, commits) =>
+        val gitRepository = new GitRepository(baseDir, repository)
+        commits.forall { case (_, commit) => gitRepository.hasCommit(commit) }
+    }
+  }
+
+  /** Removes the least recently used results, if there are more than `maxEntries` */
+  private def evict(): Unit = {
+    val files = Option(dir.listFiles).toSeq.flatten.filter(_.getName.endsWith(FileEnding))
+    if (files.size > maxEntries) {
+      files.map(file => file -> file.lastModified).sortBy(_._2).take(files.size - maxEntries).foreach {
+        case (file, _) =>
+          if (!file.delete() && file.isFile) logger.warn("Could not remove cached resolution: " + file.getAbsolutePath)
+      }
+    }
+  }
+}
+
+object ResolutionCache {
+  val DefaultMaxEntries = 1000
+
+  val DirName = "resolutions"
+  private val FileEnding = ".resolution"
+
+  def getDir(baseDir: File) = new File(new File(baseDir, "cache"), DirName)
+}
+
+/**
+ * Reads and writes resolved states in a compact binary format: the variants (see `VariantCodec`),
+ * the nodes (each written once, children refer to them by index) and then what the state knows about each id.
+ */
+private[repository] object ResolutionCodec {
+  private val FormatVersion = 1
+
+  private def ids(state: State): IndexedSeq[Id] = {
+    (state.resolved ++ state.underconstrained ++ state.overconstrained ++ state.resolvedVariants.keys ++
+      state.implicitVariants.keys ++ state.excluded ++ state.constraints.keys ++ state.nodes.keys).toIndexedSeq
+  }
+
+  def write(state: State, out: DataOutputStream): Unit = {
+    out.writeInt(FormatVersion)
+    VariantCodec.write(state.resolvedVariants.values.toSet, out)
+    VariantCodec.write(state.implicitVariants.values.toSet, out)
+    val string = new VariantCodec.StringWriter(out)
+
+    //nodes are shared (also nodes which are no longer in the state), so they are written once, children before parents:
+    val nodeIndexes = collection.mutable.HashMap.empty[Node, Int]
+    val nodes = collection.mutable.ArrayBuffer.empty[Node]
+    def addNode(node: Node): Unit = {
+      if (!nodeIndexes.contains(node)) {
+        node.children.foreach(addNode)
+        nodeIndexes += node -> nodes.size
+        nodes += node
+      }
+    }
+    state.nodes.values.foreach(addNode)
+    out.writeInt(nodes.size)
+    nodes.foreach { node =>
+      string(node.id.value)
+      out.writeInt(node.children.size)
+      node.children.foreach(child => out.writeInt(nodeIndexes(child)))
+    }
+
+    val stateIds = ids(state)
+    out.writeInt(stateIds.size)
+    stateIds.foreach { id =>
+      val idState = state.idState(id)
+      string(id.value)
+      out.writeInt(idState.status)
+      out.writeBoolean(idState.resolvedVariant.isDefined)
+      out.writeBoolean(idState.implicitVariant.isDefined)
+      out.writeBoolean(idState.excluded)
+      out.writeBoolean(idState.constraints.isDefined)
+      idState.constraints.foreach { constraints =>
+        out.writeInt(constraints.size)
+        constraints.foreach { constraint =>
+          string(constraint.name)
+          string(constraint.values)
+        }
+      }
+      out.writeInt(idState.node.map(nodeIndexes).getOrElse(-1))
+    }
+  }
+
+  /** Reads a state written by `write` and returns it as the result of resolving `requirements`, None if it was written in another format */
+  def read(requirements: Set[Requirement], in: DataInputStream): Option[ResolvedResult] = {
+    if (in.readInt() != FormatVersion) None
+    else {
+      for {
+        resolvedVariants <- VariantCodec.read(in)
+        implicitVariants <- VariantCodec.read(in)
+      } yield {
+        val resolvedById = resolvedVariants.map(variant => variant.id -> variant).toMap
+        val implicitById = implicitVariants.map(variant => variant.id -> variant).toMap
+        val string = new VariantCodec.StringReader(in)
+
+        val nodes = new Array[Node](in.readInt())
+        for (i <- 0 until nodes.length) {
+          val id = Id(string())
+          val children = (0 until in.readInt()).map { _ =>
+            val childIndex = in.readInt()
+            if (childIndex < 0 || childIndex >= i) throw new IOException("Invalid node index: " + childIndex) //children are written before parents
+            nodes(childIndex)
+          }.toSet
+          nodes(i) = Node(id, children)
+        }
+
+        val (ids, idStates) = (0 until in.readInt()).map { _ =>
+          val id = Id(string())
+          val status = in.readInt()
+          val resolvedVariant = if (in.readBoolean()) Some(resolvedById(id)) else None
+          val implicitVariant = if (in.readBoolean()) Some(implicitById(id)) else None
+          val excluded = in.readBoolean()
+          val constraints = if (in.readBoolean()) {
+            Some((0 until in.readInt()).map(_ => Constraint(string(), string.set())).toSet)
+          } else None
+          val nodeIndex = in.readInt()
+          val node = if (nodeIndex < 0) None else Some(nodes(nodeIndex))
+          id -> IdState(status, resolvedVariant, implicitVariant, excluded, constraints, node)
+        }.unzip
+        val state = State.empty.replay(ids, idStates)
+        new ResolvedResult(state, requirements.flatMap(requirement => state.nodes.get(requirement.id)))
+      }
+    }
+  }
+}
@@ -0,0 +1,337 @@
+package adept.repository
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import scala.util.control.NonFatal
+import adept.artifact.models.ArtifactAttribute
+import adept.artifact.models.ArtifactHash
+import adept.hash.Hasher
+import adept.logging.Logging
+import adept.resolution.models._
+
+/**
+ * The key of the variants loaded for `id` with `constraints` by a loader:
+ * `loaderId` identifies what the loader loads from (its context and provided variants).
+ */
+case class VariantCacheKey(id: Id, constraints: Set[Constraint], loaderId: String) {
+  override lazy val hashCode = scala.runtime.ScalaRunTime._hashCode(this) //keys are looked up often, constraints are slow to hash
+
+  /** The hash of the content of this key, used to name it on disk */
+  lazy val contentHash: String = {
+    //each string is prefixed by its length and each sequence by its size, so different keys never have the same content:
+    def string(value: String) = value.length + ":" + value
+    def strings(values: Seq[String]) = values.size + ":" + values.mkString
+    Hasher.hash(("idc" + string(id.value) +
+      strings(constraints.toSeq.map(c => string(c.name) + strings(c.values.toSeq.sorted.map(string))).sorted) +
+      string(loaderId)).getBytes("UTF-8"))
+  }
+}
+
+/**
+ * Hit, miss and load time counts of a `VariantCache` since it was created.
+ *
+ * `misses` is the number of loads and `loadTimeNanos` is the total time spent loading (and writing to disk)
+ */
+case class VariantCacheStats(memoryHits: Long, diskHits: Long, misses: Long, loadTimeNanos: Long, variantsInMemory: Long) {
+  def hits = memoryHits + diskHits
+
+  override def toString = {
+    "memory hits: " + memoryHits + ", disk hits: " + diskHits + ", misses: " + misses +
+      ", load time: " + (loadTimeNanos / 1000000) + "ms, variants in memory: " + variantsInMemory
+  }
+}
+
+/**
+ * Caches the variants loaded by loaders (see [[adept.repository.GitLoader]]).
+ *
+ * Variants are first looked up in memory, which keeps at most `maxVariantsInMemory` variants
+ * (the least recently used are evicted first), then in `dir` (if defined) in a compact binary format,
+ * one file per key named by its content hash. `dir` keeps about `maxEntriesOnDisk` files: when it has been
+ * written to `maxEntriesOnDisk / 10` times, the least recently used files over `maxEntriesOnDisk` are removed.
+ * Files which cannot be read (e.g. if they were truncated) are removed and loaded again.
+ *
+ * Variants of a key are only loaded once at a time: if the same key is requested concurrently
+ * (e.g. by resolves running in parallel) the others wait for the first one to load it.
+ *
+ * Is thread-safe.
+ */
+class VariantCache(dir: Option[File], maxVariantsInMemory: Int = VariantCache.DefaultMaxVariantsInMemory,
+  maxEntriesOnDisk: Int = VariantCache.DefaultMaxEntriesOnDisk) extends Logging {
+  import VariantCache._
+
+  private val memory = new java.util.LinkedHashMap[VariantCacheKey, Set[Variant]](16, 0.75f, true) //access ordered
+  private var variantsInMemory = 0L //guarded by memory
+
+  private val loading = new ConcurrentHashMap[VariantCacheKey, FutureTask[Set[Variant]]]()
+
+  private val memoryHits = new AtomicLong(0)
+  private val diskHits = new AtomicLong(0)
+  private val misses = new AtomicLong(0)
+  private val loadTimeNanos = new AtomicLong(0)
+
+  private val writesBetweenEvictions = math.max(1, maxEntriesOnDisk / 10)
+  private val writesUntilEviction = new AtomicInteger(1) //files from earlier runs may have to be evicted
+
+  def stats: VariantCacheStats = {
+    VariantCacheStats(memoryHits.get, diskHits.get, misses.get, loadTimeNanos.get, memory.synchronized { variantsInMemory })
+  }
+
+  private def getFromMemory(key: VariantCacheKey) = {
+    val variants = memory.synchronized { Option(memory.get(key)) }
+    if (variants.isDefined) memoryHits.incrementAndGet()
+    variants
+  }
+
+  def getOrLoad(key: VariantCacheKey)(load: => Set[Variant]): Set[Variant] = {
+    getFromMemory(key) match {
+      case Some(variants) =>
+        variants
+      case None =>
+        val task = new FutureTask[Set[Variant]](new Callable[Set[Variant]] {
+          //checks memory again: another task for the key may have finished since it was checked above
+          def call() = getFromMemory(key).getOrElse {
+            val variants = readFromDisk(key).getOrElse {
+              val start = System.nanoTime
+              val variants = load
+              writeToDisk(key, variants)
+              misses.incrementAndGet()
+              loadTimeNanos.addAndGet(System.nanoTime - start)
+              variants
+            }
+            putInMemory(key, variants)
+            variants
+          }
+        })
+        val existing = loading.putIfAbsent(key, task)
+        if (existing == null) {
+          try {
+            task.run()
+          } finally {
+            loading.remove(key)
+          }
+          get(task)
+        } else {
+          get(existing)
+        }
+    }
+  }
+
+  private def get(task: FutureTask[Set[Variant]]) = {
+    try {
+      task.get()
+    } catch {
+      case e: ExecutionException => throw e.getCause
+    }
+  }
+
+  private def putInMemory(key: VariantCacheKey, variants: Set[Variant]) = memory.synchronized {
+    val previous = memory.put(key, variants)
+    if (previous != null) variantsInMemory -= weight(previous)
+    variantsInMemory += weight(variants)
+    val it = memory.values.iterator
+    while (variantsInMemory > maxVariantsInMemory && memory.size > 1 && it.hasNext) { //evict least recently used
+      variantsInMemory -= weight(it.next())
+      it.remove()
+    }
+  }
+
+  private def file(key: VariantCacheKey) = dir.map(new File(_, key.contentHash + FileEnding))
+
+  private def readFromDisk(key: VariantCacheKey): Option[Set[Variant]] = {
+    file(key).filter(_.isFile).flatMap { file =>
+      try {
+        val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))
+        try {
+          val variants = VariantCodec.read(in)
+          if (variants.isDefined) {
+            diskHits.incrementAndGet()
+            file.setLastModified(System.currentTimeMillis) //recently used
+          }
+          variants
+        } finally {
+          in.close()
+        }
+      } catch {
+        case NonFatal(e) => //the codec fails in all kinds of ways on corrupt or truncated files
+          logger.warn("Could not read cached variants from: " + file.getAbsolutePath + ". Loading them again. Got error: " + e)
+          file.delete()
+          None
+      }
+    }
+  }
+
+  private def writeToDisk(key: VariantCacheKey, variants: Set[Variant]): Unit = {
+    file(key).foreach { file =>
+      try {
+        if (file.getParentFile.isDirectory || file.getParentFile.mkdirs()) {
+          val tmpFile = File.createTempFile(file.getName, ".tmp", file.getParentFile) //unique, also across processes
+          try {
+            val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))
+            try {
+              VariantCodec.write(variants, out)
+            } finally {
+              out.close()
+            }
+            if (!tmpFile.renameTo(file) && !file.isFile) {
+              logger.warn("Could not move cached variants: " + tmpFile.getAbsolutePath + " to " + file.getAbsolutePath)
+            }
+          } finally {
+            if (tmpFile.exists) tmpFile.delete()
+          }
+          if (writesUntilEviction.decrementAndGet() <= 0) {
+            writesUntilEviction.set(writesBetweenEvictions)
+            evictFromDisk(file.getParentFile)
+          }
+        } else {
+          logger.warn("Could not create variant cache directory: " + file.getParentFile.getAbsolutePath)
+        }
+      } catch {
+        case e: java.io.IOException =>
+          logger.warn("Could not write cached variants to: " + file.getAbsolutePath + ". Got error: " + e)
+      }
+    }
+  }
+
+  /** Removes the least recently used files, if there are more than `maxEntriesOnDisk` */
+  private def evictFromDisk(dir: File): Unit = {
+    val files = Option(dir.listFiles).toSeq.flatten.filter(_.getName.endsWith(FileEnding))
+    if (files.size > maxEntriesOnDisk) {
+      files.map(file => file -> file.lastModified).sortBy(_._2).take(files.size - maxEntriesOnDisk).foreach {
+        case (file, _) =>
+          if (!file.delete() && file.isFile) logger.warn("Could not remove cached variants: " + file.getAbsolutePath)
+      }
+    }
+  }
+}
+
+object VariantCache {
+  val DefaultMaxVariantsInMemory = 100000
+  val DefaultMaxEntriesOnDisk = 100000
+
+  private val FileEnding = ".variants"
+
+  private def weight(variants: Set[Variant]) = variants.size + 1 //+ 1 so that empty results are counted as well
+
+  /** A cache which only keeps variants in memory */
+  def inMemory(maxVariantsInMemory: Int = DefaultMaxVariantsInMemory) = new VariantCache(None, maxVariantsInMemory)
+}
+
+/**
+ * Reads and writes variants in a compact binary format.
+ *
+ * Strings (ids, attribute names and values, ...) are written once per file and referred to by index afterwards.
+ */
+private[repository] object VariantCodec {
+  private val FormatVersion = 1
+
+  private[repository] class StringWriter(out: DataOutputStream) {
+    private val indexes = collection.mutable.HashMap.empty[String, Int]
+
+    def apply(string: String): Unit = {
+      indexes.get(string) match {
+        case Some(index) =>
+          out.writeInt(index)
+        case None =>
+          out.writeInt(-1)
+          out.writeUTF(string)
+          indexes += string -> indexes.size
+      }
+    }
+
+    def apply(strings: Iterable[String]): Unit = {
+      out.writeInt(strings.size)
+      strings.foreach(apply)
+    }
+  }
+
+  private[repository] class StringReader(in: DataInputStream) {
+    private val strings = collection.mutable.ArrayBuffer.empty[String]
+
+    def apply(): String = {
+      val index = in.readInt()
+      if (index < 0) {
+        val string = in.readUTF()
+        strings += string
+        string
+      } else strings(index)
+    }
+
+    def set(): Set[String] = {
+      val size = in.readInt()
+      (0 until size).map(_ => apply()).toSet
+    }
+  }
+
+  def write(variants: Set[Variant], out: DataOutputStream): Unit = {
+    val string = new StringWriter(out)
+    out.writeInt(FormatVersion)
+    out.writeInt(variants.size)
+    variants.foreach { variant =>
+      string(variant.id.value)
+      out.writeInt(variant.attributes.size)
+      variant.attributes.foreach { attribute =>
+        string(attribute.name)
+        string(attribute.values)
+      }
+      out.writeInt(variant.artifacts.size)
+      variant.artifacts.foreach { artifact =>
+        string(artifact.hash.value)
+        out.writeInt(artifact.attributes.size)
+        artifact.attributes.foreach { attribute =>
+          string(attribute.name)
+          string(collection.JavaConverters.asScalaSetConverter(attribute.values).asScala)
+        }
+        out.writeBoolean(artifact.filename.isDefined)
+        artifact.filename.foreach(string(_))
+      }
+      out.writeInt(variant.requirements.size)
+      variant.requirements.foreach { requirement =>
+        string(requirement.id.value)
+        out.writeInt(requirement.constraints.size)
+        requirement.constraints.foreach { constraint =>
+          string(constraint.name)
+          string(constraint.values)
+        }
+        string(requirement.exclusions.map(_.value))
+      }
+    }
+  }
+
+  /** Reads variants written by `write`, None if they were written in another format */
+  def read(in: DataInputStream): Option[Set[Variant]] = {
+    def times[A](f: => A) = (0 until in.readInt()).map(_ => f).toSet
+    if (in.readInt() != FormatVersion) None
+    else {
+      val string = new StringReader(in)
+      Some(times {
+        val id = Id(string())
+        val attributes = times { Attribute(string(), string.set()) }
+        val artifacts = times {
+          val hash = new ArtifactHash(string())
+          val attributes = times {
+            new ArtifactAttribute(string(), new java.util.HashSet[String](collection.JavaConverters.setAsJavaSetConverter(string.set()).asJava))
+          }
+          val filename = if (in.readBoolean()) Some(string()) else None
+          ArtifactRef(hash, attributes, filename)
+        }
+        val requirements = times {
+          val id = Id(string())
+          val constraints = times { Constraint(string(), string.set()) }
+          Requirement(id, constraints, string.set().map(Id(_)))
+        }
+        Variant(id, attributes, artifacts, requirements)
+      })
+    }
+  }
+}
@@ -45,7 +45,7 @@ object ArtifactMetadata {
 
   private def readJson(hash: ArtifactHash, repository: Repository, is: InputStream):
   Option[ArtifactMetadata] = {
-    val (artifactMetadata, _) = JsonService.parseJson(is, Map(
+    val artifactMetadata = JsonService.parseJson(is, Map(
       ("size", _.getValueAsLong),
       ("locations", JsonService.parseStringSet(_).map(new ArtifactLocation(_)))
     ), valueMap => ArtifactMetadata(valueMap.get[Long]("size"),
@@ -51,6 +51,6 @@ object ContextMetadata {
   def readJson(is: InputStream): Option[ContextMetadata] = {
     JsonService.parseJson(is, Map(
       ("values", JsonService.parseSeq(_, ContextValue.fromJson))
-    ), valueMap => Some(ContextMetadata(valueMap.getSeq[ContextValue]("values"))))._1
+    ), valueMap => Some(ContextMetadata(valueMap.getSeq[ContextValue]("values"))))
   }
 }
@@ -98,7 +98,7 @@ object InfoMetadata {
         valueMap.getOption[String]("homePage"), valueMap.getOption[Date]("publicationDate"),
         valueMap.getOption[VcsInfo]("vcs"), valueMap.getSeq[LicenseInfo]("licenses"),
         valueMap.getStringSeqMap("other")))
-    )._1
+    )
   }
 
   def read(id: Id, hash: VariantHash, repository: GitRepository, commit: Commit): Option[InfoMetadata] = {
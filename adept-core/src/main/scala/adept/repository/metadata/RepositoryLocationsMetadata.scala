@@ -73,6 +73,6 @@ object RepositoryLocationsMetadata {
   private def readJson(is: InputStream): Option[RepositoryLocationsMetadata] = {
     JsonService.parseJson(is, Map(
       ("uris", JsonService.parseStringSeq)
-    ), valueMap => Some(RepositoryLocationsMetadata(valueMap.getStringSeq("uris"))))._1
+    ), valueMap => Some(RepositoryLocationsMetadata(valueMap.getStringSeq("uris"))))
   }
 }
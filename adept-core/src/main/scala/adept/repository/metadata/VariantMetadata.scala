@@ -7,7 +7,9 @@ import adept.hash.Hasher
 import adept.repository.GitRepository
 import java.io.File
 import java.io.InputStream
+import java.io.ByteArrayInputStream
 import java.io.FileFilter
+import java.security.DigestInputStream
 import adept.services.JsonService
 import com.fasterxml.jackson.core.{JsonParser, JsonGenerator}
 
@@ -56,25 +58,42 @@ object VariantMetadata {
     VariantMetadata(variant.attributes.toSeq, variant.artifacts.toSeq, variant.requirements.toSeq)
   }
 
+  private class Fields {
+    var attributes: Seq[Attribute] = null
+    var artifacts: Seq[ArtifactRef] = null
+    var requirements: Seq[Requirement] = null
+  }
+
+  private val fieldParsers: Map[String, (JsonParser, Fields) => Unit] = Map(
+    ("attributes", (parser, fields) => fields.attributes = JsonService.parseSeq(parser, Attribute.fromJson)),
+    ("artifacts", (parser, fields) => fields.artifacts = JsonService.parseSeq(parser, ArtifactRef.fromJson)),
+    ("requirements", (parser, fields) => fields.requirements = JsonService.parseSeq(parser, Requirement.fromJson)))
+
+  private def parseJson(is: InputStream): VariantMetadata = {
+    JsonService.parseJson(is) { parser =>
+      val fields = JsonService.parseFields(parser, new Fields, fieldParsers)
+      VariantMetadata(JsonService.required("attributes", fields.attributes), JsonService.required("artifacts", fields.artifacts),
+        JsonService.required("requirements", fields.requirements))
+    }
+  }
+
   private def readJson(id: Id, hash: VariantHash, repository: Repository, is: InputStream,
                        checkHash: Boolean):
   Option[VariantMetadata] = {
-    val value = JsonService.parseJson(is, Map(
-        ("attributes", JsonService.parseSeq(_, Attribute.fromJson)),
-        ("artifacts", JsonService.parseSeq(_, ArtifactRef.fromJson)),
-        ("requirements", JsonService.parseSeq(_, Requirement.fromJson))
-      ), valueMap => VariantMetadata(valueMap.getSeq[Attribute]("attributes"),
-            valueMap.getSeq[ArtifactRef]("artifacts"), valueMap.getSeq[Requirement](
-        "requirements"))
-    )._1
     if (checkHash) {
-      if (value.hash == hash) {
+      //The hash is the hash of the content written by Adept, so we hash the bytes while they are parsed.
+      //If they are not the same (e.g. whitespaces were changed) fall back to the hash of the parsed content.
+      val digestStream = new DigestInputStream(is, Hasher.newDigest())
+      val value = parseJson(digestStream)
+      val buffer = new Array[Byte](1024)
+      while (digestStream.read(buffer) != -1) {} //the parser stops at the end of the object, hash what comes after as well
+      if (Hasher.hex(digestStream.getMessageDigest.digest) == hash.value || value.hash == hash) {
         Some(value)
       } else {
         throw new Exception("Found variant metadata: " + value + " for hash " + hash +
           " but it has a different hash: " + value.hash)
       } //TODO: this might be overkill?
-    } else Some(value)
+    } else Some(parseJson(is))
   }
 
   def read(id: Id, hash: VariantHash, repository: Repository, checkHash: Boolean):
@@ -103,6 +122,25 @@ object VariantMetadata {
     }
   }
 
+  /**
+   * Reads many variants in the same commit at once: all files are read with one tree walk, then
+   * parsed in parallel.
+   *
+   * Variants which could not be found are not in the result.
+   */
+  def read(variants: Set[(Id, VariantHash)], repository: GitRepository, commit: Commit, checkHash: Boolean):
+  Map[(Id, VariantHash), VariantMetadata] = {
+    val variantsByPath = variants.map {
+      case (id, hash) =>
+        repository.asGitPath(repository.getVariantFile(id, hash)) -> (id -> hash)
+    }.toMap
+    repository.readBlobs(variantsByPath.keySet, commit).par.flatMap {
+      case (path, bytes) =>
+        val (id, hash) = variantsByPath(path)
+        readJson(id, hash, repository, new ByteArrayInputStream(bytes), checkHash).map((id -> hash) -> _)
+    }.seq.toMap
+  }
+
   import Repository._
   import GitRepository._
 
@@ -19,15 +19,23 @@ case class ContextValue(id: Id, repository: RepositoryName, commit: Option[Commi
 //TODO: rename variant to hash
 
 object ContextValue {
+  private class Fields {
+    var id: String = null
+    var repository: String = null
+    var commit: Option[Commit] = None
+    var variant: String = null
+  }
+
+  private val fieldParsers: Map[String, (JsonParser, Fields) => Unit] = Map(
+    ("id", (parser, fields) => fields.id = parser.getValueAsString),
+    ("repository", (parser, fields) => fields.repository = parser.getValueAsString),
+    ("commit", (parser, fields) => fields.commit = Some(Commit(parser.getValueAsString))),
+    ("variant", (parser, fields) => fields.variant = parser.getValueAsString))
+
   def fromJson(parser: JsonParser): ContextValue = {
-    JsonService.parseObject(parser, Map(
-      ("id", _ getValueAsString),
-      ("repository", _.getValueAsString),
-      ("commit", parser => Commit(parser.getValueAsString)),
-      ("variant", _.getValueAsString)
-    ), valueMap => ContextValue(Id(valueMap.getString("id")),
-      RepositoryName(valueMap.getString("repository")), valueMap.getOption[Commit]("commit"),
-      VariantHash(valueMap.get("variant"))))
+    val fields = JsonService.parseFields(parser, new Fields, fieldParsers)
+    ContextValue(Id(JsonService.required("id", fields.id)), RepositoryName(JsonService.required("repository", fields.repository)),
+      fields.commit, VariantHash(JsonService.required("variant", fields.variant)))
   }
 
   implicit val ordering: Ordering[ContextValue] = new Ordering[ContextValue] {
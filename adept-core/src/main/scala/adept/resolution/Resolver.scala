@@ -3,9 +3,82 @@ package adept.resolution
 import adept.resolution.models._
 import adept.resolution.resolver.models._
 import adept.repository.VariantsLoader
+import adept.repository.AttributeConstraintFilter
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
 
 class UnexpectedResolutionStateException(msg: String) extends Exception(msg)
 
+/**
+ * A walk of a requirement (resolving it and its transitive requirements, see `Resolver.resolveRequirements`):
+ * what the state knew about the `ids` the walk read `before`, and `after` it.
+ *
+ * A walk only depends on what it reads, so a walk of the same requirement from another state
+ * knowing the same about these ids leaves them the same as well.
+ * It also depends on which of the requirements it `encountered` were already visited (by the walks around it),
+ * so walks are only memoized if none of them were.
+ */
+private[adept] case class Walk(ids: IndexedSeq[Id], encountered: Set[Requirement], before: IndexedSeq[IdState],
+  after: IndexedSeq[IdState])
+
+/** Collects what a walk reads, while it walks */
+private[adept] class WalkTracker {
+  val ids = collection.mutable.LinkedHashSet.empty[Id]
+  val encountered = collection.mutable.Set.empty[Requirement]
+
+  def add(walk: Walk) = {
+    ids ++= walk.ids
+    encountered ++= walk.encountered
+  }
+
+  def add(tracker: WalkTracker) = {
+    ids ++= tracker.ids
+    encountered ++= tracker.encountered
+  }
+}
+
+/**
+ * The walks made during one resolve, by requirement, constraints and exclusions.
+ *
+ * Requirements shared by many variants (diamonds in the graph) are reached once for each path to them, but
+ * only walked once (or twice, until what they read stops changing) for each state they can be reached from.
+ *
+ * Is thread-safe.
+ */
+private[adept] class WalkMemo {
+  private val MaxWalksPerKey = 4
+  private val walks = collection.mutable.Map.empty[(Requirement, Set[Constraint], Set[Id]), List[Walk]]
+
+  def put(key: (Requirement, Set[Constraint], Set[Id]), walk: Walk): Unit = synchronized {
+    walks(key) = (walk :: walks.getOrElse(key, Nil)).take(MaxWalksPerKey)
+  }
+
+  /** A walk of key from a state knowing the same as `state` about it, which did not encounter visited requirements */
+  def get(key: (Requirement, Set[Constraint], Set[Id]), state: State, visited: Set[Requirement]): Option[Walk] = {
+    val candidates = synchronized { walks.getOrElse(key, Nil) }
+    candidates.find { walk =>
+      !visited.exists(walk.encountered) && walk.ids.indices.forall { n =>
+        state.idState(walk.ids(n)) == walk.before(n)
+      }
+    }
+  }
+}
+
+/**
+ * What one resolve shares between the states it goes through: the `ordering` of requirements,
+ * the walks it made (see `WalkMemo`) and how many times it loaded variants or made transitions.
+ *
+ * Is thread-safe.
+ */
+private[adept] class ResolveRun(val ordering: RequirementOrdering) {
+  val memo = new WalkMemo
+  val loaderCalls = new java.util.concurrent.atomic.AtomicInteger(0)
+  val transitions = new java.util.concurrent.atomic.AtomicInteger(0)
+
+  def statistics = ResolveStatistics(ordering, loaderCalls.get, transitions.get)
+}
+
 /**
  * Based on a set of requirements (which are just an id and some constraints)
  * and a `loader`, which loads variants, the `Resolver` can resolve the dependency graph.
@@ -28,64 +101,80 @@ class UnexpectedResolutionStateException(msg: String) extends Exception(msg)
  * resolver.resolve(requirements)
  *
  * }}}
+ *
+ * Requirements reached from many variants are only walked again if what they depend on changed,
+ * unless `memoizeWalks` is false (see `WalkMemo`).
+ *
+ * The order requirements are resolved in can be chosen for each resolve (see `RequirementOrdering`),
+ * and how many times variants were loaded and states changed is in the `statistics` of the result.
+ *
+ * If an `executor` is given, requirements which cannot require the same ids (transitively) are resolved
+ * concurrently on it (see `resolveIndependently`).
  */
-class Resolver(loader: VariantsLoader, skipImplicitResolve: Boolean = false) {
+class Resolver(loader: VariantsLoader, skipImplicitResolve: Boolean = false, memoizeWalks: Boolean = true, executor: Option[ExecutorService] = None) {
 
   /**
    * Calculate all possible combinations of variants that should be implicit
    * Starts with the simplest combination (one and one variant), then continues with pairs, etc etc
    *
+   * Combinations never contain more than one variant per id and combinations where one variant
+   * requires another variant in the same combination with constraints it does not match are pruned
+   * away while they are built, because they could never resolve.
    */
   private[adept] def combinations(ids: Set[Id], ignoredIds: Set[Id], constraints: Map[Id, Set[Constraint]]): Iterator[Iterator[List[Variant]]] = {
-    val variants = ids.filter { id =>
+    val variantsById = ids.filter { id =>
       !ignoredIds(id) //ignore ids: can be either implicit or under-constrained already
-    }.flatMap { id =>
-      loader.loadVariants(id, constraints.getOrElse(id, Set.empty)) //only add a combination of something that is not over-constrained
+    }.toList.sortBy(_.value).map { id =>
+      loader.loadVariants(id, constraints.getOrElse(id, Set.empty)).toList //only add a combination of something that is not over-constrained
+    }.filter(_.nonEmpty)
+
+    (1 to variantsById.size).iterator.map { size =>
+      variantsById.combinations(size).flatMap { candidates =>
+        consistentCombinations(candidates, chosen = Nil)
+      }
     }
+  }
+
+  /** Picks one variant from each of the candidates, skipping variants which conflicts with the ones already chosen */
+  private def consistentCombinations(candidates: List[List[Variant]], chosen: List[Variant]): Iterator[List[Variant]] = {
+    candidates match {
+      case Nil =>
+        Iterator.single(chosen.reverse)
+      case variants :: rest =>
+        variants.iterator.filter { variant =>
+          chosen.forall(other => matchesRequirements(variant, other) && matchesRequirements(other, variant))
+        }.flatMap { variant =>
+          consistentCombinations(rest, variant :: chosen)
+        }
+    }
+  }
 
-    (1 to ids.size).iterator.map { size =>
-      variants.toList.combinations(size) //remove combinations with more than one of the same id
-        .filter(variants => variants.map(_.id).toSet.size == variants.size)
+  /** True if the requirements of `variant` on the id of `other` does not exclude `other` */
+  private def matchesRequirements(variant: Variant, other: Variant): Boolean = {
+    variant.requirements.forall { requirement =>
+      requirement.id != other.id || AttributeConstraintFilter.matches(other.attributes, requirement.constraints)
     }
   }
 
-  private[adept] def resolveVariant(requirement: Requirement, state: State): (Option[Variant], State) = {
+  private[adept] def resolveVariant(requirement: Requirement, state: State, run: ResolveRun): (Option[Variant], State) = {
     val id = requirement.id
     state.implicitVariants.get(id) match {
       case Some(variant) =>
         Some(variant) -> state
       case None =>
-        val currentConstraints = requirement.constraints ++ state.constraints.getOrElse(id, Set.empty)
+        val currentConstraints = this.currentConstraints(requirement, state)
 
+        run.loaderCalls.incrementAndGet()
         val variants = loader.loadVariants(id, currentConstraints)
         val node = state.nodes.getOrElse(requirement.id, Node(requirement.id, Set.empty))
 
         if (variants.size == 1) { //resolved
           val variant = variants.head //TODO: any point in using pattern match instead?
-
-          Some(variant) -> state.copy(
-            resolved = state.resolved + id,
-            resolvedVariants = state.resolvedVariants + (id -> variant),
-            underconstrained = state.underconstrained - id,
-            overconstrained = state.overconstrained - id,
-            constraints = state.constraints + (id -> currentConstraints),
-            nodes = state.nodes + (requirement.id -> node))
+          Some(variant) -> state.resolve(variant, currentConstraints, node)
         } else if (variants.size > 1) { //under-constrained
-          None -> state.copy(
-            resolved = state.resolved - id,
-            resolvedVariants = state.resolvedVariants - id,
-            underconstrained = state.underconstrained + id,
-            overconstrained = state.overconstrained - id,
-            constraints = state.constraints + (id -> currentConstraints),
-            nodes = state.nodes + (requirement.id -> node))
+          None -> state.underconstrain(id, currentConstraints, node)
         } else if (variants.size < 1) { //over-constrained
-          None -> state.copy(
-            resolved = state.resolved - id,
-            resolvedVariants = state.resolvedVariants - id,
-            underconstrained = state.underconstrained - id,
-            overconstrained = state.overconstrained + id,
-            constraints = state.constraints + (id -> currentConstraints),
-            nodes = state.nodes + (requirement.id -> node))
+          None -> state.overconstrain(id, currentConstraints, node)
         } else {
           throw new UnexpectedResolutionStateException("Unexpected number of variants: " + variants)
         }
@@ -94,33 +183,196 @@ class Resolver(loader: VariantsLoader, skipImplicitResolve: Boolean = false) {
 
   private[adept] def resolveNodes(requirements: Set[Requirement], state: State) = requirements.flatMap(requirement => state.nodes.get(requirement.id))
 
+  /** The constraints `requirement` is resolved with in `state` (see `resolveVariant`) */
+  private def currentConstraints(requirement: Requirement, state: State) = {
+    requirement.constraints ++ state.constraints.getOrElse(requirement.id, Set.empty)
+  }
+
   /** The core of the core of Resolution (or the raisin in the sausage as we say in Norway) */
-  private[adept] def resolveRequirements(requirements: Set[Requirement], visited: Set[Requirement], exclusions: Set[Id], lastState: State): State = {
+  private[adept] def resolveRequirements(requirements: Set[Requirement], visited: Set[Requirement], exclusions: Set[Id], lastState: State, run: ResolveRun, tracker: WalkTracker): State = {
+    tracker.encountered ++= requirements
+    tracker.ids ++= requirements.map(_.id)
     val newRequirements = requirements.filter { requirement =>
       !visited(requirement) //remove requirements we have already visited
     }
     val (excludedRequirements, includedRequirements) = newRequirements.partition(r => exclusions.contains(r.id))
-    val lastStateWithExclusions = lastState.copy(excluded = lastState.excluded ++ excludedRequirements.map(_.id))
-
-    //TODO: evaluate whether breadth-first is normally faster than depth-first (used now) or find an heuristic that is good at _finding constraints_ that are _likely_ to be used: I believe this is what it is all about 
-    includedRequirements.foldLeft(lastStateWithExclusions) { (state, requirement) => //collapse all requirements that can be found into one
-      resolveVariant(requirement, state) match {
-        case (Some(variant), resolvedState) =>
-          val state =
-            if (variant.requirements.isEmpty) resolvedState
-            else resolveRequirements(variant.requirements, visited + requirement, requirement.exclusions ++ exclusions, resolvedState)
-
-          val node = state.nodes(variant.id)
-
-          state.copy(
-            nodes = state.nodes +
-              (variant.id -> node.copy(children =
-                resolveNodes(variant.requirements, state))))
-        case (None, unresolvedState) if !unresolvedState.isResolved =>
-          unresolvedState
-        case _ => throw new UnexpectedResolutionStateException("Could not find a variant for a resolved requirement: " + requirement + " state: " + state)
+    val lastStateWithExclusions = lastState.exclude(excludedRequirements.map(_.id))
+
+    val orderedRequirements = run.ordering match {
+      case RequirementOrdering.MostConstrainedFirst =>
+        includedRequirements.toSeq.sortBy { requirement =>
+          (-currentConstraints(requirement, lastStateWithExclusions).size, requirement.id.value)
+        }
+      case _ =>
+        includedRequirements.toSeq
+    }
+    orderedRequirements.foldLeft(lastStateWithExclusions) { (state, requirement) => //collapse all requirements that can be found into one
+      val key = (requirement, currentConstraints(requirement, state), exclusions)
+      (if (memoizeWalks) run.memo.get(key, state, visited) else None) match {
+        case Some(walk) => //walked from a state just like this one before
+          tracker.add(walk)
+          state.replay(walk.ids, walk.after)
+        case None =>
+          val walkTracker = new WalkTracker
+          walkTracker.ids += requirement.id
+          val walkedState = walkRequirement(requirement, visited, exclusions, state, run, walkTracker)
+          tracker.add(walkTracker)
+          if (memoizeWalks && !visited.exists(walkTracker.encountered)) {
+            val ids = walkTracker.ids.toIndexedSeq
+            run.memo.put(key, Walk(ids, walkTracker.encountered.toSet, ids.map(state.idState), ids.map(walkedState.idState)))
+          }
+          walkedState
+      }
+    }
+  }
+
+  /** Resolves `requirement` and then its variant's requirements */
+  private def walkRequirement(requirement: Requirement, visited: Set[Requirement], exclusions: Set[Id], state: State, run: ResolveRun, tracker: WalkTracker): State = {
+    resolveVariant(requirement, state, run) match {
+      case (Some(variant), resolvedState) =>
+        val state =
+          if (variant.requirements.isEmpty) resolvedState
+          else resolveRequirements(variant.requirements, visited + requirement, requirement.exclusions ++ exclusions, resolvedState, run, tracker)
+
+        state.link(variant.id, resolveNodes(variant.requirements, state))
+      case (None, unresolvedState) if !unresolvedState.isResolved =>
+        unresolvedState
+      case _ => throw new UnexpectedResolutionStateException("Could not find a variant for a resolved requirement: " + requirement + " state: " + state)
+    }
+  }
+
+  /** The ids required by any variant of an id (whatever the constraints), which only depend on the loader */
+  private val requiredIdsById = new java.util.concurrent.ConcurrentHashMap[Id, Set[Id]]()
+
+  private def requiredIds(id: Id, run: ResolveRun): Set[Id] = {
+    val existing = requiredIdsById.get(id)
+    if (existing != null) existing
+    else {
+      run.loaderCalls.incrementAndGet()
+      val ids = loader.loadVariants(id, Set.empty).flatMap(_.requirements.map(_.id))
+      requiredIdsById.put(id, ids)
+      ids
+    }
+  }
+
+  /** All ids `id` can require (transitively), including itself */
+  private def closure(id: Id, run: ResolveRun): Set[Id] = {
+    val ids = collection.mutable.Set(id)
+    var next = List(id)
+    while (next.nonEmpty) {
+      val id = next.head
+      next = next.tail
+      for (required <- requiredIds(id, run) if ids.add(required)) next = required :: next
+    }
+    ids.toSet
+  }
+
+  /**
+   * Splits requirements into parts which cannot require the same ids (as far as the loader knows, whatever
+   * the constraints), and the ids each part can require.
+   */
+  private[adept] def independentParts(requirements: Set[Requirement], run: ResolveRun): List[(Set[Requirement], Set[Id])] = {
+    requirements.foldLeft(List.empty[(Set[Requirement], Set[Id])]) { (parts, requirement) =>
+      val ids = closure(requirement.id, run)
+      val (overlapping, independent) = parts.partition { case (_, partIds) => ids.exists(partIds) }
+      (overlapping.flatMap(_._1).toSet + requirement, overlapping.flatMap(_._2).toSet ++ ids) :: independent
+    }
+  }
+
+  /**
+   * Resolves parts of requirements which are independent of each other concurrently on `executor`,
+   * all from `lastState`, then merges the states they resolved into.
+   *
+   * A walk only reads and changes the ids it can require, so each part leaves the ids of the other parts
+   * as they were and the merged state is the same as if they were resolved one after another.
+   * If the parts did read the same ids after all (or there is only one part) they are resolved sequentially instead.
+   */
+  private def resolveIndependently(requirements: Set[Requirement], lastState: State, run: ResolveRun, executor: ExecutorService): State = {
+    def sequentially = resolveRequirements(requirements, Set.empty, Set.empty, lastState, run, new WalkTracker)
+    val parts = independentParts(requirements, run)
+    if (parts.size < 2) sequentially
+    else {
+      val futures = parts.map {
+        case (part, _) =>
+          executor.submit(new Callable[(State, WalkTracker)] {
+            def call() = {
+              val tracker = new WalkTracker
+              resolveRequirements(part, Set.empty, Set.empty, lastState, run, tracker) -> tracker
+            }
+          })
+      }
+      val results = futures.map { future =>
+        try future.get()
+        catch {
+          case e: ExecutionException => throw Option(e.getCause).getOrElse(e)
+        }
+      }
+      val readIds = results.map(_._2.ids.toSet)
+      if (readIds.map(_.size).sum != readIds.flatten.toSet.size) sequentially //overlapping
+      else {
+        val merged = results.foldLeft(lastState) {
+          case (merged, (state, tracker)) =>
+            val ids = tracker.ids.toIndexedSeq
+            merged.replay(ids, ids.map(state.idState))
+        }
+        //count the transitions of each part, instead of the ones of the merge (counted by the caller):
+        run.transitions.addAndGet(results.map(_._1.transitions - lastState.transitions).sum - (merged.transitions - lastState.transitions))
+        merged
+      }
+    }
+  }
+
+  /**
+   * Resolves all requirements of a level before the requirements of their variants (on the next level),
+   * then links the nodes of the resolved variants.
+   *
+   * A requirement reached again (with the same exclusions) is only resolved again if its id got more constraints,
+   * since its variant and its requirements would be the same otherwise.
+   */
+  private[adept] def resolveRequirementsBreadthFirst(requirements: Set[Requirement], lastState: State, run: ResolveRun): State = {
+    val levels = collection.mutable.Queue((requirements, Set.empty[Requirement], Set.empty[Id]))
+    val resolvedWith = collection.mutable.Map.empty[(Requirement, Set[Id]), Set[Constraint]]
+    var state = lastState
+    while (levels.nonEmpty) {
+      val (requirements, visited, exclusions) = levels.dequeue()
+      val newRequirements = requirements.filter { requirement =>
+        !visited(requirement) //remove requirements we have already visited
+      }
+      val (excludedRequirements, includedRequirements) = newRequirements.partition(r => exclusions.contains(r.id))
+      state = state.exclude(excludedRequirements.map(_.id))
+      for (requirement <- includedRequirements) {
+        val constraints = currentConstraints(requirement, state)
+        if (!resolvedWith.get(requirement -> exclusions).exists(_ == constraints)) {
+          resolvedWith(requirement -> exclusions) = constraints
+          resolveVariant(requirement, state, run) match {
+            case (Some(variant), resolvedState) =>
+              state = resolvedState
+              if (variant.requirements.nonEmpty)
+                levels.enqueue((variant.requirements, visited + requirement, requirement.exclusions ++ exclusions))
+            case (None, unresolvedState) if !unresolvedState.isResolved =>
+              state = unresolvedState
+            case _ => throw new UnexpectedResolutionStateException("Could not find a variant for a resolved requirement: " + requirement + " state: " + state)
+          }
+        }
+      }
+    }
+    linkNodes(requirements.map(_.id), state)
+  }
+
+  /** Links the nodes of the variants of ids, children first */
+  private def linkNodes(ids: Set[Id], lastState: State): State = {
+    val linked = collection.mutable.Set.empty[Id]
+    def link(id: Id, state: State): State = {
+      if (!linked.add(id)) state //already linked, or a cycle
+      else (state.resolvedVariants.get(id) orElse state.implicitVariants.get(id)) match {
+        case Some(variant) if state.nodes.contains(id) =>
+          val linkedChildren = variant.requirements.foldLeft(state)((state, requirement) => link(requirement.id, state))
+          linkedChildren.link(id, resolveNodes(variant.requirements, linkedChildren))
+        case _ =>
+          state
       }
     }
+    ids.foldLeft(lastState)((state, id) => link(id, state))
   }
 
   /**
@@ -128,40 +380,92 @@ class Resolver(loader: VariantsLoader, skipImplicitResolve: Boolean = false) {
    *
    * Is thread-safe.
    */
-  def resolve(requirements: Set[Requirement]): ResolveResult = {
-    val initState = new State(
-      resolved = Set.empty,
-      underconstrained = Set.empty,
-      overconstrained = Set.empty,
-      resolvedVariants = Map.empty,
-      implicitVariants = Map.empty,
-      excluded = Set.empty,
-      constraints = Map.empty,
-      nodes = Map.empty)
-
-    val optimalUnderconstrainedStates = { //TODO: it would be better if we could find an _elegant_ to do this without mutating
-      import collection.JavaConverters._
-      java.util.Collections.newSetFromMap(
-        new java.util.concurrent.ConcurrentHashMap[State, java.lang.Boolean]()).asScala
-    }
-    implicitResolve(requirements, initState, Set.empty, optimalUnderconstrainedStates) match {
-      case Right(state) => new ResolvedResult(state, resolveNodes(requirements, state))
+  def resolve(requirements: Set[Requirement], ordering: RequirementOrdering = RequirementOrdering.DepthFirst): ResolveResult = {
+    val run = new ResolveRun(ordering)
+    resolveResult(requirements, implicitResolve(requirements, State.empty, Set.empty, run), run)
+  }
+
+  /**
+   * Resolve `requirements` again, after they were changed from `previousRequirements` which resolved into `previous`
+   * (with the same loader and ordering), and return the result.
+   *
+   * The requirements are split into parts which cannot require the same ids (see `independentParts`).
+   * Parts whose requirements did not change and which cannot require the ids removed requirements could,
+   * resolve into the same as before, so they are taken from `previous`: only the other parts are resolved again.
+   * The result is the same as resolving all requirements, but only takes as long as resolving what changed.
+   *
+   * If `previous` used implicit variants (which are found for all requirements at once) or the ordering is
+   * breadth-first (which links nodes when everything is resolved), all requirements are resolved again.
+   *
+   * Is thread-safe.
+   */
+  def resolveIncrementally(previous: ResolveResult, previousRequirements: Set[Requirement], requirements: Set[Requirement], ordering: RequirementOrdering = RequirementOrdering.DepthFirst): ResolveResult = {
+    val previousState = previous.state
+    if (previousState.implicitVariants.nonEmpty || ordering == RequirementOrdering.BreadthFirst) {
+      resolve(requirements, ordering)
+    } else {
+      val run = new ResolveRun(ordering)
+      val removedIds = (previousRequirements -- requirements).flatMap(requirement => closure(requirement.id, run))
+      val (unchangedParts, changedParts) = independentParts(requirements, run).partition {
+        case (part, ids) => part.subsetOf(previousRequirements) && !ids.exists(removedIds)
+      }
+      val unchangedIds = unchangedParts.flatMap(_._2).toIndexedSeq
+      val unchangedState = State.empty.replay(unchangedIds, unchangedIds.map(previousState.idState))
+      val changedRequirements = changedParts.flatMap(_._1).toSet
+      val state = executor match {
+        case Some(executor) if changedRequirements.size > 1 => resolveIndependently(changedRequirements, unchangedState, run, executor)
+        case _ => resolveRequirements(changedRequirements, Set.empty, Set.empty, unchangedState, run, new WalkTracker)
+      }
+      run.transitions.addAndGet(state.transitions - unchangedState.transitions)
+      resolveResult(requirements, implicitlyResolve(requirements, state, Set.empty, run), run)
+    }
+  }
+
+  private def resolveResult(requirements: Set[Requirement], implicitResult: ImplicitResult, run: ResolveRun): ResolveResult = {
+    val ImplicitResult(result, optimalUnderconstrainedStates) = implicitResult
+    result match {
+      case Right(state) => new ResolvedResult(state, resolveNodes(requirements, state), run.statistics)
       case Left(failedState) =>
         if (failedState.isUnderconstrained) {
-          new UnderconstrainedResult(failedState, resolveNodes(requirements, failedState), optimalUnderconstrainedStates.toSet)
+          new UnderconstrainedResult(failedState, resolveNodes(requirements, failedState), optimalUnderconstrainedStates, run.statistics)
         } else if (failedState.isOverconstrained) {
-          new OverconstrainedResult(failedState, resolveNodes(requirements, failedState))
+          new OverconstrainedResult(failedState, resolveNodes(requirements, failedState), run.statistics)
         } else {
           throw new UnexpectedResolutionStateException("Failed state was neither under-constrained nor over-constrained: " + failedState)
         }
     }
   }
 
-  private def implicitResolve(requirements: Set[Requirement], currentState: State, previouslyUnderconstrained: Set[Id], optimalUnderconstrainedStates: collection.mutable.Set[State]): Either[State, State] = {
-    val state = resolveRequirements(requirements, Set.empty, Set.empty, currentState)
+  /**
+   * The outcome of an implicit resolve: either the failed (Left) or resolved (Right) state and
+   * the resolved states which used the fewest implicit variants, found while searching for a unique combination.
+   */
+  private case class ImplicitResult(result: Either[State, State], optimalStates: Set[State])
+
+  /** Keeps the resolved states that uses the fewest implicit variants. Order does not matter, so results from different threads can be merged in any order */
+  private def optimalStates(states: Iterable[State]): Set[State] = {
+    val resolvedStates = states.filter(_.isResolved)
+    if (resolvedStates.isEmpty) Set.empty
+    else {
+      val fewestImplicitVariants = resolvedStates.map(_.implicitVariants.size).min
+      resolvedStates.filter(_.implicitVariants.size == fewestImplicitVariants).toSet
+    }
+  }
+
+  private def implicitResolve(requirements: Set[Requirement], currentState: State, previouslyUnderconstrained: Set[Id], run: ResolveRun): ImplicitResult = {
+    val state = (run.ordering, executor) match {
+      case (RequirementOrdering.BreadthFirst, _) => resolveRequirementsBreadthFirst(requirements, currentState, run)
+      case (_, Some(executor)) if requirements.size > 1 => resolveIndependently(requirements, currentState, run, executor)
+      case _ => resolveRequirements(requirements, Set.empty, Set.empty, currentState, run, new WalkTracker)
+    }
+    run.transitions.addAndGet(state.transitions - currentState.transitions)
+    implicitlyResolve(requirements, state, previouslyUnderconstrained, run)
+  }
 
+  /** Tries to resolve `state` (in which `requirements` were resolved) with implicit variants, if it is under-constrained */
+  private def implicitlyResolve(requirements: Set[Requirement], state: State, previouslyUnderconstrained: Set[Id], run: ResolveRun): ImplicitResult = {
     if (state.isUnderconstrained && skipImplicitResolve) {
-      Left(state)
+      ImplicitResult(Left(state), Set.empty)
     } else if (state.isUnderconstrained && !skipImplicitResolve) {
       //under-constrained; perhaps there is a unique combination of variants where we still can resolve:
 
@@ -173,45 +477,41 @@ class Resolver(loader: VariantsLoader, skipImplicitResolve: Boolean = false) {
         variant.id
       } ++ previouslyUnderconstrained).toSet //ignore ids which are under-constrained already
 
-      //try out the different combinations till we find a unique combination that resolves
-      val testedStatesCombinations = combinations(state.underconstrained, ignoredIds, state.constraints).map { combinations =>
-        //TODO: .par to improve speed? Risk to have threading issues because of optimalUnderconstrainedStates which is mutable.
-        combinations.map { combination =>
-          val implicitVariants = combination.map { variant =>
-            variant.id -> variant
-          }.toMap
-          val implicitState = state.copy(
-            underconstrained = state.underconstrained -- combination.map(_.id), //we are no longer under-constrained on the implicitVariants
-            implicitVariants = state.implicitVariants ++ implicitVariants)
-          implicitResolve(nonImplicitRequirements, implicitState, ignoredIds ++ state.underconstrained, optimalUnderconstrainedStates) //ignore ids that are already under-constrained at this level
-        }.collect {
-          case Right(state) =>
-            state
-        }.toList //TODO: is there a way to avoid this toList? We need to use this iterator to find *then* extract the state, which is why toList is there now.
+      def tryCombination(combination: List[Variant]): ImplicitResult = {
+        val implicitVariants = combination.map { variant =>
+          variant.id -> variant
+        }.toMap
+        val implicitState = state.implicitly(implicitVariants) //we are no longer under-constrained on the implicitVariants
+        run.transitions.addAndGet(implicitState.transitions - state.transitions)
+        implicitResolve(nonImplicitRequirements, implicitState, ignoredIds ++ state.underconstrained, run) //ignore ids that are already under-constrained at this level
       }
-      testedStatesCombinations find (_.size > 0) match {
-        case Some(resolvedState +: Nil) => Right(resolvedState) //found exactly one 
-        case None => Left(state)
-        case Some(states) =>
-          var implicitsUsed = optimalUnderconstrainedStates.headOption.map(_.implicitVariants.size).getOrElse(-1)
-          states.foreach { state =>
-            if (state.isResolved && (state.implicitVariants.size < implicitsUsed || implicitsUsed == -1)) {
-              //found a more optimal state than earlier, so remove the previous and add new ones
-              implicitsUsed = state.implicitVariants.size
-              optimalUnderconstrainedStates.clear()
-              optimalUnderconstrainedStates += state
-            } else if (state.isResolved && (state.implicitVariants.size == implicitsUsed || implicitsUsed == -1)) {
-              optimalUnderconstrainedStates += state
-            }
-          }
-          Left(state)
+
+      //try out the different combinations till we find a unique combination that resolves.
+      //Combinations of the same size are independent so they are tried in parallel (on the fork-join pool used by parallel collections).
+      //Larger combinations are only generated if none of the smaller ones resolved.
+      val combinationsBySize = combinations(state.underconstrained, ignoredIds, state.constraints)
+      run.loaderCalls.addAndGet((state.underconstrained -- ignoredIds).size) //variants of each id are loaded once
+      var resolvedStates = List.empty[State]
+      var foundOptimalStates = Set.empty[State]
+      while (resolvedStates.isEmpty && combinationsBySize.hasNext) {
+        val results = combinationsBySize.next().toList.par.map(tryCombination).toList
+        resolvedStates = results.collect {
+          case ImplicitResult(Right(resolvedState), _) => resolvedState
+        }
+        foundOptimalStates = optimalStates(foundOptimalStates ++ results.flatMap(_.optimalStates))
+      }
+
+      resolvedStates match {
+        case resolvedState :: Nil => ImplicitResult(Right(resolvedState), foundOptimalStates) //found exactly one
+        case Nil => ImplicitResult(Left(state), foundOptimalStates)
+        case states => ImplicitResult(Left(state), optimalStates(foundOptimalStates ++ states))
       }
     } else if (state.isOverconstrained) {
-      Left(state)
+      ImplicitResult(Left(state), Set.empty)
     } else if (state.isResolved) {
-      Right(state)
+      ImplicitResult(Right(state), Set.empty)
     } else {
       throw new UnexpectedResolutionStateException("State is neither resolved, underconstrained nor overconstrained: " + state)
     }
   }
-}
\ No newline at end of file
+}
@@ -33,13 +33,21 @@ case class ArtifactRef(hash: ArtifactHash, attributes: Set[ArtifactAttribute], f
 }
 
 object ArtifactRef {
+  private class Fields {
+    var hash: String = null
+    var attributes: Set[ArtifactAttribute] = null
+    var filename: Option[String] = None
+  }
+
+  private val fieldParsers: Map[String, (JsonParser, Fields) => Unit] = Map(
+    ("hash", (parser, fields) => fields.hash = parser.getValueAsString),
+    ("attributes", (parser, fields) => fields.attributes = JsonService.parseSet(parser, ArtifactAttribute.fromJson)),
+    ("filename", (parser, fields) => fields.filename = Some(parser.getValueAsString)))
+
   def fromJson(parser: JsonParser): ArtifactRef = {
-    JsonService.parseObject(parser, Map(
-      ("hash", _.getValueAsString),
-      ("attributes", JsonService.parseSet(_, ArtifactAttribute.fromJson)),
-      ("filename", _.getValueAsString)
-    ), valueMap => ArtifactRef(new ArtifactHash(valueMap.getString("hash")),
-      valueMap.getSet[ArtifactAttribute]("attributes"), valueMap.getOption[String]("filename")))
+    val fields = JsonService.parseFields(parser, new Fields, fieldParsers)
+    ArtifactRef(new ArtifactHash(JsonService.required("hash", fields.hash)),
+      JsonService.required("attributes", fields.attributes), fields.filename)
   }
 
   implicit val orderingArtifactAttribute: Ordering[ArtifactAttribute] = new Ordering[ArtifactAttribute] {
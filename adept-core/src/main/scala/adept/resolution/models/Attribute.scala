@@ -15,13 +15,18 @@ case class Attribute(name: String, values: Set[String]) extends JsonSerializable
 }
 
 object Attribute {
+  private class Fields {
+    var name: String = null
+    var values: Set[String] = null
+  }
+
+  private val fieldParsers: Map[String, (JsonParser, Fields) => Unit] = Map(
+    ("name", (parser, fields) => fields.name = parser.getValueAsString),
+    ("values", (parser, fields) => fields.values = JsonService.parseStringSet(parser)))
+
   def fromJson(parser: JsonParser): Attribute = {
-    JsonService.parseObject(parser, Map(
-      ("name", _.getValueAsString),
-      ("values", JsonService.parseStringSet(_))
-    ),
-      valueMap => Attribute(valueMap.get("name"), valueMap.getSet[String]("values"))
-    )
+    val fields = JsonService.parseFields(parser, new Fields, fieldParsers)
+    Attribute(JsonService.required("name", fields.name), JsonService.required("values", fields.values))
   }
 
   implicit val ordering: Ordering[Attribute] = new Ordering[Attribute] {
@@ -15,11 +15,18 @@ case class Constraint(name: String, values: Set[String]) extends JsonSerializabl
 }
 
 object Constraint {
+  private class Fields {
+    var name: String = null
+    var values: Set[String] = null
+  }
+
+  private val fieldParsers: Map[String, (JsonParser, Fields) => Unit] = Map(
+    ("name", (parser, fields) => fields.name = parser.getValueAsString),
+    ("values", (parser, fields) => fields.values = JsonService.parseStringSet(parser)))
+
   def fromJson(parser: JsonParser): Constraint = {
-    JsonService.parseObject(parser, Map(
-      ("name", _.getValueAsString),
-      ("values", JsonService.parseStringSet)
-    ), valueMap => Constraint(valueMap.getString("name"), valueMap.getStringSet("values")))
+    val fields = JsonService.parseFields(parser, new Fields, fieldParsers)
+    Constraint(JsonService.required("name", fields.name), JsonService.required("values", fields.values))
   }
 
   implicit val ordering: Ordering[Constraint] = new Ordering[Constraint] {
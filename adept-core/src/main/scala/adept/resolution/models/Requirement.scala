@@ -24,13 +24,21 @@ case class Requirement(id: Id, constraints: Set[Constraint], exclusions: Set[Id]
 }
 
 object Requirement {
+  private class Fields {
+    var id: String = null
+    var constraints: Set[Constraint] = null
+    var exclusions: Set[String] = null
+  }
+
+  private val fieldParsers: Map[String, (JsonParser, Fields) => Unit] = Map(
+    ("id", (parser, fields) => fields.id = parser.getValueAsString),
+    ("constraints", (parser, fields) => fields.constraints = JsonService.parseSet(parser, Constraint.fromJson)),
+    ("exclusions", (parser, fields) => fields.exclusions = JsonService.parseStringSet(parser)))
+
   def fromJson(parser: JsonParser): Requirement = {
-    JsonService.parseObject(parser, Map(
-      ("id", _.getValueAsString),
-      ("constraints", JsonService.parseSet(_, Constraint.fromJson)),
-      ("exclusions", JsonService.parseStringSet)
-    ), valueMap => Requirement(Id(valueMap.getString("id")),
-      valueMap.getSet[Constraint]("constraints"), valueMap.getStringSet("exclusions").map(Id(_))))
+    val fields = JsonService.parseFields(parser, new Fields, fieldParsers)
+    Requirement(Id(JsonService.required("id", fields.id)), JsonService.required("constraints", fields.constraints),
+      JsonService.required("exclusions", fields.exclusions).map(Id(_)))
   }
 
   implicit val ordering: Ordering[Requirement] = new Ordering[Requirement] {
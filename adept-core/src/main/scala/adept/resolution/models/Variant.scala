@@ -37,13 +37,22 @@ Set.empty, requirements: Set[Requirement] = Set.empty) {
 }
 
 object Variant {
+  private class Fields {
+    var id: String = null
+    var attributes: Set[Attribute] = null
+    var artifacts: Set[ArtifactRef] = null
+    var requirements: Set[Requirement] = null
+  }
+
+  private val fieldParsers: Map[String, (JsonParser, Fields) => Unit] = Map(
+    ("id", (parser, fields) => fields.id = parser.getValueAsString),
+    ("attributes", (parser, fields) => fields.attributes = JsonService.parseSet(parser, Attribute.fromJson)),
+    ("artifacts", (parser, fields) => fields.artifacts = JsonService.parseSet(parser, ArtifactRef.fromJson)),
+    ("requirements", (parser, fields) => fields.requirements = JsonService.parseSet(parser, Requirement.fromJson)))
+
   def fromJson(parser: JsonParser): Variant = {
-    JsonService.parseObject(parser, Map(
-      ("id", _.getValueAsString),
-      ("attributes", JsonService.parseSet(_, Attribute.fromJson)),
-      ("artifacts", JsonService.parseSet(_, ArtifactRef.fromJson)),
-      ("requirements", JsonService.parseSet(_, Requirement.fromJson))
-    ), valueMap => Variant(Id(valueMap.getString("id")), valueMap.getSet[Attribute]("attributes"),
-      valueMap.getSet[ArtifactRef]("artifacts"), valueMap.getSet[Requirement]("requirements")))
+    val fields = JsonService.parseFields(parser, new Fields, fieldParsers)
+    Variant(Id(JsonService.required("id", fields.id)), JsonService.required("attributes", fields.attributes),
+      JsonService.required("artifacts", fields.artifacts), JsonService.required("requirements", fields.requirements))
   }
 }
@@ -0,0 +1,45 @@
+package adept.resolution.resolver.models
+
+import adept.resolution.models.Id
+import scala.collection.immutable.BitSet
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Interns ids to dense ints, so that sets of ids can be stored as bitsets.
+ *
+ * One index is shared by all the states of a resolve.
+ *
+ * Is thread-safe: lookups are lock-free, only new ids are added while synchronized.
+ */
+private[adept] class IdIndex {
+  private val indexes = new ConcurrentHashMap[String, Integer]()
+  @volatile private var values = new Array[String](64)
+
+  def apply(id: Id): Int = {
+    val existing = indexes.get(id.value)
+    if (existing != null) existing.intValue
+    else synchronized {
+      val existing = indexes.get(id.value)
+      if (existing != null) existing.intValue
+      else {
+        val index = indexes.size
+        if (index == values.length) {
+          val grown = new Array[String](values.length * 2)
+          System.arraycopy(values, 0, grown, 0, values.length)
+          values = grown
+        }
+        values(index) = id.value
+        indexes.put(id.value, index) //put last: the value must be there before others can find the index
+        index
+      }
+    }
+  }
+
+  def id(index: Int): Id = {
+    Id(values(index))
+  }
+
+  def ids(bits: BitSet): Set[Id] = {
+    bits.iterator.map(id).toSet
+  }
+}
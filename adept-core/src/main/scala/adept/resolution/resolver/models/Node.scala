@@ -3,6 +3,9 @@ package adept.resolution.resolver.models
 import adept.resolution.models.Id
 
 case class Node(val id: Id, val children: Set[Node]) {
+  //nodes are hashed a lot while resolving and hashing a node means hashing all of its children
+  override lazy val hashCode = scala.runtime.ScalaRunTime._hashCode(this)
+
   override def toString = {
     id + " <children>"
   }
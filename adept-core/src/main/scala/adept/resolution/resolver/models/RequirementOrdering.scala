@@ -0,0 +1,18 @@
+package adept.resolution.resolver.models
+
+/**
+ * The order the `Resolver` resolves requirements in, which decides how early constraints are found
+ * (and therefore how often variants are loaded and resolved again when more constraints are found).
+ */
+sealed trait RequirementOrdering
+
+object RequirementOrdering {
+  /** Resolves each requirement and then its variant's requirements, before the next requirement */
+  case object DepthFirst extends RequirementOrdering
+
+  /** Resolves all requirements of a level, before the requirements of their variants */
+  case object BreadthFirst extends RequirementOrdering
+
+  /** Like `DepthFirst`, but resolves the requirements with the most constraints first */
+  case object MostConstrainedFirst extends RequirementOrdering
+}
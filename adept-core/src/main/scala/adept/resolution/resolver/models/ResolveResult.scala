@@ -13,6 +13,7 @@ import adept.resolution.models.Id
 sealed trait ResolveResult {
   val state: State
   val graph: Set[Node]
+  val statistics: ResolveStatistics
 
   def getResolvedVariants = state.implicitVariants ++ state.resolvedVariants
   
@@ -44,7 +45,17 @@ sealed trait ResolveResult {
   }
 }
 
-class ResolvedResult(override val state: State, override val graph: Set[Node]) extends ResolveResult
-class UnderconstrainedResult(override val state: State, override val graph: Set[Node], val optimalStates: Set[State]) extends ResolveResult
-class OverconstrainedResult(override val state: State, override val graph: Set[Node]) extends ResolveResult
+/**
+ * How a resolve went: the `ordering` it used, how many times it loaded variants (`loaderCalls`)
+ * and how many transitions it made to states (`transitions`, also those of combinations which did not resolve).
+ */
+case class ResolveStatistics(ordering: RequirementOrdering, loaderCalls: Int, transitions: Int)
+
+object ResolveStatistics {
+  val Unknown = ResolveStatistics(RequirementOrdering.DepthFirst, 0, 0)
+}
+
+class ResolvedResult(override val state: State, override val graph: Set[Node], override val statistics: ResolveStatistics = ResolveStatistics.Unknown) extends ResolveResult
+class UnderconstrainedResult(override val state: State, override val graph: Set[Node], val optimalStates: Set[State], override val statistics: ResolveStatistics = ResolveStatistics.Unknown) extends ResolveResult
+class OverconstrainedResult(override val state: State, override val graph: Set[Node], override val statistics: ResolveStatistics = ResolveStatistics.Unknown) extends ResolveResult
 
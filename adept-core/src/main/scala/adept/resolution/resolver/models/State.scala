@@ -3,34 +3,249 @@ package adept.resolution.resolver.models
 import adept.resolution.models.Constraint
 import adept.resolution.models.Id
 import adept.resolution.models.Variant
+import scala.collection.immutable.BitSet
+
+/**
+ * Everything a `State` knows about one id, see `State.idState`.
+ */
+private[adept] case class IdState(status: Int, resolvedVariant: Option[Variant], implicitVariant: Option[Variant],
+  excluded: Boolean, constraints: Option[Set[Constraint]], node: Option[Node])
+
+private[adept] object IdState {
+  val Unknown = -1
+  val Resolved = 0
+  val Underconstrained = 1
+  val Overconstrained = 2
+}
 
 /**
  * Contains the computed state after resolution.
- * 
+ *
  * `resolvedVariants` are the variants which are resolved (duh).
- * 
- * `implicitVariants` are the variants which could not be resolved, but 
+ *
+ * `implicitVariants` are the variants which could not be resolved, but
  * could be implicitly inferred to be correct because only this actual variant
  * made the graph resolve.
- * 
+ *
  * The result of both `resolvedVariants` and `implicitVariants` are the variants
- * which was resolved. 
- * 
+ * which was resolved.
+ *
+ * Resolution creates a lot of states, so internally ids are interned (see `IdIndex`) and
+ * the resolved, under-constrained and over-constrained ids are kept in bitsets.
+ * A transition only replaces what it changes, the rest is shared with the previous state.
+ *
  * State is immutable and thread-safe.
  */
-case class State(
-  val underconstrained: Set[Id],
-  val overconstrained: Set[Id],
-  val resolved: Set[Id],
+final class State private (
+  private[adept] val index: IdIndex,
+  private[adept] val resolvedBits: BitSet,
+  private[adept] val underconstrainedBits: BitSet,
+  private[adept] val overconstrainedBits: BitSet,
   val resolvedVariants: Map[Id, Variant],
   val implicitVariants: Map[Id, Variant],
   val excluded: Set[Id],
   val constraints: Map[Id, Set[Constraint]],
-  val nodes: Map[Id, Node]) {
+  val nodes: Map[Id, Node],
+  private[adept] val transitions: Int) //made to get to this state
+  extends Product with Serializable {
+
+  lazy val underconstrained: Set[Id] = index.ids(underconstrainedBits)
+  lazy val overconstrained: Set[Id] = index.ids(overconstrainedBits)
+  lazy val resolved: Set[Id] = index.ids(resolvedBits)
+
+  def isResolved = underconstrainedBits.isEmpty && overconstrainedBits.isEmpty
+  def isUnderconstrained = underconstrainedBits.nonEmpty && overconstrainedBits.isEmpty
+  def isOverconstrained = overconstrainedBits.nonEmpty
+
+  private def withChange(
+    resolvedBits: BitSet = resolvedBits,
+    underconstrainedBits: BitSet = underconstrainedBits,
+    overconstrainedBits: BitSet = overconstrainedBits,
+    resolvedVariants: Map[Id, Variant] = resolvedVariants,
+    implicitVariants: Map[Id, Variant] = implicitVariants,
+    excluded: Set[Id] = excluded,
+    constraints: Map[Id, Set[Constraint]] = constraints,
+    nodes: Map[Id, Node] = nodes): State = {
+    val unchanged = (resolvedBits eq this.resolvedBits) && (underconstrainedBits eq this.underconstrainedBits) &&
+      (overconstrainedBits eq this.overconstrainedBits) && (resolvedVariants eq this.resolvedVariants) &&
+      (implicitVariants eq this.implicitVariants) && (excluded eq this.excluded) &&
+      (constraints eq this.constraints) && (nodes eq this.nodes)
+    if (unchanged) this //not a transition
+    else new State(index, resolvedBits, underconstrainedBits, overconstrainedBits, resolvedVariants, implicitVariants,
+      excluded, constraints, nodes, transitions + 1)
+  }
+
+  private def updatedConstraints(id: Id, currentConstraints: Set[Constraint]) = {
+    constraints.get(id) match {
+      case Some(existing) if existing == currentConstraints => constraints
+      case _ => constraints + (id -> currentConstraints)
+    }
+  }
+
+  private def updatedNodes(node: Node) = {
+    nodes.get(node.id) match {
+      case Some(existing) if existing eq node => nodes
+      case _ => nodes + (node.id -> node)
+    }
+  }
+
+  /** The variant is the only one matching the constraints */
+  private[adept] def resolve(variant: Variant, currentConstraints: Set[Constraint], node: Node): State = {
+    val id = variant.id
+    val i = index(id)
+    withChange(
+      resolvedBits = resolvedBits + i,
+      underconstrainedBits = underconstrainedBits - i,
+      overconstrainedBits = overconstrainedBits - i,
+      resolvedVariants = resolvedVariants.get(id) match {
+        case Some(existing) if existing eq variant => resolvedVariants
+        case _ => resolvedVariants + (id -> variant)
+      },
+      constraints = updatedConstraints(id, currentConstraints),
+      nodes = updatedNodes(node))
+  }
+
+  /** There are more than one variant matching the constraints */
+  private[adept] def underconstrain(id: Id, currentConstraints: Set[Constraint], node: Node): State = {
+    val i = index(id)
+    withChange(
+      resolvedBits = resolvedBits - i,
+      underconstrainedBits = underconstrainedBits + i,
+      overconstrainedBits = overconstrainedBits - i,
+      resolvedVariants = if (resolvedVariants.contains(id)) resolvedVariants - id else resolvedVariants,
+      constraints = updatedConstraints(id, currentConstraints),
+      nodes = updatedNodes(node))
+  }
+
+  /** There are no variants matching the constraints */
+  private[adept] def overconstrain(id: Id, currentConstraints: Set[Constraint], node: Node): State = {
+    val i = index(id)
+    withChange(
+      resolvedBits = resolvedBits - i,
+      underconstrainedBits = underconstrainedBits - i,
+      overconstrainedBits = overconstrainedBits + i,
+      resolvedVariants = if (resolvedVariants.contains(id)) resolvedVariants - id else resolvedVariants,
+      constraints = updatedConstraints(id, currentConstraints),
+      nodes = updatedNodes(node))
+  }
+
+  /** Use these variants, which are no longer under-constrained, as implicit variants */
+  private[adept] def implicitly(variants: Map[Id, Variant]): State = {
+    variants.keys.foldLeft(this) { (state, id) =>
+      val i = index(id)
+      val variant = variants(id)
+      state.withChange(
+        underconstrainedBits = state.underconstrainedBits - i,
+        implicitVariants = state.implicitVariants.get(id) match {
+          case Some(existing) if existing eq variant => state.implicitVariants
+          case _ => state.implicitVariants + (id -> variant)
+        })
+    }
+  }
 
-  def isResolved = underconstrained.size == 0 && overconstrained.size == 0
-  def isUnderconstrained = underconstrained.size > 0 && overconstrained.size == 0
-  def isOverconstrained = overconstrained.size > 0
+  private[adept] def exclude(ids: Set[Id]): State = {
+    ids.foldLeft(this) { (state, id) =>
+      if (state.excluded(id)) state
+      else state.withChange(excluded = state.excluded + id)
+    }
+  }
+
+  /** Set the children of the node of `id`, which must have been resolved */
+  private[adept] def link(id: Id, children: Set[Node]): State = {
+    val node = nodes(id)
+    if (node.children == children) this
+    else withChange(nodes = nodes + (id -> node.copy(children = children)))
+  }
+
+  /** What this state knows about `id` */
+  private[adept] def idState(id: Id): IdState = {
+    val i = index(id)
+    val status =
+      if (resolvedBits(i)) IdState.Resolved
+      else if (underconstrainedBits(i)) IdState.Underconstrained
+      else if (overconstrainedBits(i)) IdState.Overconstrained
+      else IdState.Unknown
+    IdState(status, resolvedVariants.get(id), implicitVariants.get(id), excluded(id), constraints.get(id), nodes.get(id))
+  }
+
+  /** Replaces what this state knows about each of `ids` with `idStates` (of another state) */
+  private[adept] def replay(ids: IndexedSeq[Id], idStates: IndexedSeq[IdState]): State = {
+    def updated[A](map: Map[Id, A], id: Id, value: Option[A]) = value match {
+      case Some(value) => map.get(id) match {
+        case Some(existing) if existing == value => map
+        case _ => map + (id -> value)
+      }
+      case None => if (map.contains(id)) map - id else map
+    }
+    ids.indices.foldLeft(this) { (state, n) =>
+      val id = ids(n)
+      val idState = idStates(n)
+      if (state.idState(id) == idState) state
+      else {
+        val i = index(id)
+        def withStatus(bits: BitSet, status: Int) = if (idState.status == status) bits + i else bits - i
+        state.withChange(
+          resolvedBits = withStatus(state.resolvedBits, IdState.Resolved),
+          underconstrainedBits = withStatus(state.underconstrainedBits, IdState.Underconstrained),
+          overconstrainedBits = withStatus(state.overconstrainedBits, IdState.Overconstrained),
+          resolvedVariants = updated(state.resolvedVariants, id, idState.resolvedVariant),
+          implicitVariants = updated(state.implicitVariants, id, idState.implicitVariant),
+          excluded = if (idState.excluded) state.excluded + id else state.excluded - id,
+          constraints = updated(state.constraints, id, idState.constraints),
+          nodes = updated(state.nodes, id, idState.node))
+      }
+    }
+  }
+
+  /** A new state (with its own `IdIndex`) with these fields replaced, like the copy of a case class */
+  def copy(
+    underconstrained: Set[Id] = underconstrained,
+    overconstrained: Set[Id] = overconstrained,
+    resolved: Set[Id] = resolved,
+    resolvedVariants: Map[Id, Variant] = resolvedVariants,
+    implicitVariants: Map[Id, Variant] = implicitVariants,
+    excluded: Set[Id] = excluded,
+    constraints: Map[Id, Set[Constraint]] = constraints,
+    nodes: Map[Id, Node] = nodes): State = {
+    State(underconstrained, overconstrained, resolved, resolvedVariants, implicitVariants, excluded, constraints, nodes)
+  }
+
+  //State used to be a case class, the product has the same fields (in the same order) as it had:
+  override def productPrefix = "State"
+  def productArity = 8
+  def productElement(n: Int): Any = n match {
+    case 0 => underconstrained
+    case 1 => overconstrained
+    case 2 => resolved
+    case 3 => resolvedVariants
+    case 4 => implicitVariants
+    case 5 => excluded
+    case 6 => constraints
+    case 7 => nodes
+    case _ => throw new IndexOutOfBoundsException(n.toString)
+  }
+  def canEqual(other: Any) = other.isInstanceOf[State]
+
+  override def equals(other: Any) = other match {
+    case that: State =>
+      (this eq that) || (
+        (if (index eq that.index) {
+          resolvedBits == that.resolvedBits && underconstrainedBits == that.underconstrainedBits &&
+            overconstrainedBits == that.overconstrainedBits
+        } else {
+          resolved == that.resolved && underconstrained == that.underconstrained &&
+            overconstrained == that.overconstrained
+        }) &&
+        resolvedVariants == that.resolvedVariants &&
+        implicitVariants == that.implicitVariants &&
+        excluded == that.excluded &&
+        constraints == that.constraints &&
+        nodes == that.nodes)
+    case _ => false
+  }
+
+  //nodes are only compared in equals, because they are expensive to hash
+  override lazy val hashCode = (resolvedVariants, implicitVariants, excluded, constraints).hashCode
 
   override def toString = {
     "resolved: " + resolved + "\n" +
@@ -41,4 +256,32 @@ case class State(
       "excluded: " + excluded + "\n" +
       "constraints: " + constraints
   }
-}
\ No newline at end of file
+}
+
+object State {
+  def apply(
+    underconstrained: Set[Id],
+    overconstrained: Set[Id],
+    resolved: Set[Id],
+    resolvedVariants: Map[Id, Variant],
+    implicitVariants: Map[Id, Variant],
+    excluded: Set[Id],
+    constraints: Map[Id, Set[Constraint]],
+    nodes: Map[Id, Node]): State = {
+    val index = new IdIndex
+    def bits(ids: Set[Id]) = BitSet(ids.toSeq.map(index(_)): _*)
+    new State(index, bits(resolved), bits(underconstrained), bits(overconstrained), resolvedVariants, implicitVariants,
+      excluded, constraints, nodes, 0)
+  }
+
+  def unapply(state: State): Option[(Set[Id], Set[Id], Set[Id], Map[Id, Variant], Map[Id, Variant], Set[Id], Map[Id, Set[Constraint]], Map[Id, Node])] = {
+    Some((state.underconstrained, state.overconstrained, state.resolved, state.resolvedVariants, state.implicitVariants,
+      state.excluded, state.constraints, state.nodes))
+  }
+
+  /** A new empty state, with a new `IdIndex`, to start a resolve from */
+  private[adept] def empty: State = {
+    new State(new IdIndex, BitSet.empty, BitSet.empty, BitSet.empty, Map.empty, Map.empty, Set.empty, Map.empty,
+      Map.empty, 0)
+  }
+}
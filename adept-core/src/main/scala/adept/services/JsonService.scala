@@ -1,13 +1,13 @@
 package adept.services
 
 import com.fasterxml.jackson.core._
-import java.io.{InputStream, ByteArrayOutputStream}
-import scala.io
-import adept.artifact.models.JsonSerializable
+import java.io.{File, FileOutputStream, InputStream, OutputStream, ByteArrayOutputStream}
+import adept.artifact.models.{Json, JsonSerializable}
 import scala.collection.mutable
 import java.text.SimpleDateFormat
 import java.util.Date
 import adept.exceptions.JsonMissingFieldException
+import adept.exceptions.JsonUnknownFieldException
 
 case class ValueMap(map: mutable.Map[String, Any] = mutable.Map.empty[String, Any]) {
   def add(key: String, value: Any): Unit = map(key) = value
@@ -33,10 +33,42 @@ case class ValueMap(map: mutable.Map[String, Any] = mutable.Map.empty[String, An
 }
 
 object JsonService {
+  /** Creates parsers and generators, is thread-safe once configured so it is shared (with adept.lockfile) */
+  private val factory = Json.FACTORY
+
+  /** Writes a JSON object, pretty printed, to a string.
+    *
+    * Pretty printing is part of the format of hashed metadata (see `VariantMetadata.hash`), so it must not change.
+    *
+    * @param converter writes the fields of the object
+    */
   def writeJson(converter: (JsonGenerator) => Unit): String = {
+    writeJson(converter, pretty = true)
+  }
+
+  /** Writes a JSON object to a string.
+    *
+    * @param converter writes the fields of the object
+    * @param pretty pretty print (indent) the object, or write it compactly
+    */
+  def writeJson(converter: (JsonGenerator) => Unit, pretty: Boolean): String = {
     val os = new ByteArrayOutputStream()
-    val generator = new JsonFactory().createGenerator(os)
-    generator.useDefaultPrettyPrinter()
+    writeJson(os, pretty)(converter)
+    os.toString("UTF-8")
+  }
+
+  /** Writes a JSON object, as UTF-8, directly to an output stream which is flushed but not closed.
+    *
+    * Outputs that are not hashed (lockfiles for example) can be written compactly, which is
+    * smaller and faster.
+    *
+    * @param os output stream
+    * @param pretty pretty print (indent) the object, or write it compactly
+    * @param converter writes the fields of the object
+    */
+  def writeJson(os: OutputStream, pretty: Boolean)(converter: (JsonGenerator) => Unit): Unit = {
+    val generator = factory.createGenerator(os, JsonEncoding.UTF8)
+    if (pretty) generator.useDefaultPrettyPrinter()
     try {
       generator.writeStartObject()
       converter(generator)
@@ -45,9 +77,24 @@ object JsonService {
     finally {
       generator.close()
     }
+  }
 
-    val json = os.toString
-    json
+  /** Writes a JSON object, as UTF-8, directly to a file.
+    *
+    * @param file file, which is replaced
+    * @param pretty pretty print (indent) the object, or write it compactly
+    * @param converter writes the fields of the object
+    * @return the file
+    */
+  def writeJson(file: File, pretty: Boolean)(converter: (JsonGenerator) => Unit): File = {
+    val fos = new FileOutputStream(file)
+    try {
+      writeJson(fos, pretty)(converter)
+      file
+    }
+    finally {
+      fos.close()
+    }
   }
 
   def writeObjectField[T](fieldName: String, map: Map[String, Seq[String]],
@@ -101,27 +148,72 @@ object JsonService {
   }
 
   /** Parse a JSON document from an input stream.
+    *
+    * The document is parsed directly from the stream, as it is read.
     *
     * @param is input stream
     * @param field2converter map from field names to lambdas for converting to values
     * @param constructor lambda to construct object from field values
     * @tparam T object type
-    * @return parsed object and JSON document
+    * @return parsed object
     */
   def parseJson[T](is: InputStream, field2converter: Map[String, (JsonParser) => Any],
-                   constructor: ValueMap => T): (T, String) = {
-    val json = io.Source.fromInputStream(is).getLines().mkString("\n")
-    val parser = new JsonFactory().createParser(json)
+                   constructor: ValueMap => T): T = {
+    parseJson(is)(parseObject(_, field2converter, constructor))
+  }
+
+  /** Parse a JSON document from an input stream, as it is read.
+    *
+    * @param is input stream
+    * @param parse parses the object the parser is at (see `parseFields`)
+    * @tparam T object type
+    * @return parsed object
+    */
+  def parseJson[T](is: InputStream)(parse: JsonParser => T): T = {
+    val parser = factory.createParser(is)
     try {
       // Get START_OBJECT
       parser.nextToken()
-      (parseObject(parser, field2converter, constructor), json)
+      parse(parser)
     }
     finally {
       parser.close()
     }
   }
 
+  /** Parse the fields of a JSON object into typed `fields`, without boxing them in a `ValueMap`.
+    *
+    * The field parsers do not depend on the object, so they can be created once and reused (see `Variant.fromJson`).
+    *
+    * @param parser parser instance, at the start of the object
+    * @param fields holds the values read (e.g. in vars which are null until their field is read)
+    * @param fieldParsers map from field names to lambdas reading their values into `fields`.
+    *                     Other fields throw a `JsonUnknownFieldException`
+    * @tparam F type of the fields
+    * @return `fields`
+    */
+  def parseFields[F](parser: JsonParser, fields: F, fieldParsers: Map[String, (JsonParser, F) => Unit]): F = {
+    assert(parser.getCurrentToken == JsonToken.START_OBJECT)
+    // Read field name or END_OBJECT
+    while (parser.nextToken() != JsonToken.END_OBJECT) {
+      assert(parser.getCurrentToken == JsonToken.FIELD_NAME)
+      val fieldName = parser.getCurrentName
+      // Read value, or START_OBJECT/START_ARRAY
+      parser.nextToken()
+      fieldParsers.get(fieldName) match {
+        case Some(fieldParser) => fieldParser(parser, fields)
+        case None => throw JsonUnknownFieldException(fieldName)
+      }
+    }
+    fields
+  }
+
+  /** Returns the `value` of a field read with `parseFields`, which is null if it was missing */
+  def required[T](fieldName: String, value: T): T = {
+    if (value == null) throw JsonMissingFieldException(fieldName)
+    else value
+  }
+
   /** Parse a JSON object.
     *
     * @param parser parser instance
@@ -132,7 +224,10 @@ object JsonService {
     */
   def parseObject[T](parser: JsonParser, field2converter: Map[String, JsonParser => Any],
                      constructor: ValueMap => T): T = {
-    parseObjectReal(parser, (parser, fieldName) => field2converter(fieldName)(parser), constructor)
+    parseObjectReal(parser, (parser, fieldName) => field2converter.get(fieldName) match {
+      case Some(converter) => converter(parser)
+      case None => throw JsonUnknownFieldException(fieldName)
+    }, constructor)
   }
 
   private def parseObjectReal[T](parser: JsonParser, fieldConverter:
@@ -171,7 +266,14 @@ object JsonService {
   }
 
   def parseSet[T](parser: JsonParser, converter: (JsonParser) => T): Set[T] = {
-    parseSeq(parser, converter).toSet
+    assert(parser.getCurrentToken == JsonToken.START_ARRAY)
+
+    // Read contents of array
+    val set = Set.newBuilder[T]
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      set += converter(parser)
+    }
+    set.result()
   }
 
   def parseStringSet(parser: JsonParser): Set[String] = {
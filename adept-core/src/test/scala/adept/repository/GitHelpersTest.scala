@@ -19,4 +19,24 @@ class GitHelpersTest extends FunSuite with Matchers {
       GitHelpers.lastestCommits(repository, commits) shouldEqual Set(commit3, Commit("something else"), Commit("something"))
     }
   }
-}
\ No newline at end of file
+
+  test("GitHelpers finds the latest commit after HEAD has moved") {
+    usingTmpDir { tmpDir =>
+      val repository = new GitRepository(tmpDir, RepositoryName("test-repo"))
+      repository.init()
+      val commit1 = repository.commit("Test 1")
+      val file = new java.io.File(repository.dir, "test.txt")
+      file.createNewFile()
+      repository.add(file)
+      val commit2 = repository.commit("Test 2")
+      GitHelpers.lastestCommits(repository, Set(commit1, Commit("something"))) shouldEqual Set(commit1, Commit("something"))
+      GitHelpers.lastestCommits(repository, Set(commit1, commit2)) shouldEqual Set(commit2)
+      repository.compareCommits(commit1, commit2) shouldEqual (Some(commit2), Some(commit1))
+      repository.compareCommits(commit1, Commit("something")) shouldEqual (Some(commit1), None)
+      file.delete()
+      repository.rm(file)
+      val commit3 = repository.commit("Test 3")
+      GitHelpers.lastestCommits(repository, Set(commit1, commit2, commit3)) shouldEqual Set(commit3)
+    }
+  }
+}
@@ -5,7 +5,6 @@ import org.scalatest.Matchers
 import org.eclipse.jgit.lib.TextProgressMonitor
 import adept.repository.models._
 import adept.resolution.models._
-import net.sf.ehcache.CacheManager
 import java.io.File
 import org.scalatest.OptionValues._
 import adept.repository.metadata.VariantMetadata
@@ -70,7 +69,7 @@ class GitLoaderTest extends FunSuite with Matchers {
       val requirements: Set[Requirement] = Set(
         "A" -> Set(Constraint(binaryVersion, Set("1.0"))))
       val initialResults = createVersionedContext(tmpDir)
-      val loader = new GitLoader(tmpDir, initialResults, cacheManager, progress = progress)
+      val loader = new GitLoader(tmpDir, initialResults, variantCache, progress = progress)
       val result = resolve(requirements, loader)
       checkResolved(result, Set("A", "B"))
       checkVariants(result, "A", version -> Set("1.0.0"), binaryVersion -> Set("1.0"))
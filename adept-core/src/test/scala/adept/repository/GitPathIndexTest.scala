@@ -0,0 +1,104 @@
+package adept.repository
+
+import java.io.File
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+import adept.repository.models.Commit
+import adept.repository.models.RepositoryName
+
+class GitPathIndexTest extends FunSuite with Matchers {
+  import adept.test.FileUtils.usingTmpDir
+
+  private def writeFile(repository: GitRepository, path: String, content: String) = {
+    val file = new File(repository.dir, path)
+    file.getParentFile.mkdirs()
+    val writer = new java.io.FileWriter(file)
+    try {
+      writer.write(content)
+    } finally {
+      writer.close()
+    }
+    file
+  }
+
+  private def index(repository: GitRepository, commit: Commit) = {
+    repository.usingGitRepo { gitRepo =>
+      val commitId = gitRepo.resolve(commit.value)
+      val revWalk = new org.eclipse.jgit.revwalk.RevWalk(gitRepo)
+      try {
+        GitPathIndex(gitRepo, commitId, revWalk.parseCommit(commitId).getTree)
+      } finally {
+        revWalk.release()
+      }
+    }
+  }
+
+  test("Paths of a commit are listed and read from the path index") {
+    usingTmpDir { tmpDir =>
+      val repository = new GitRepository(tmpDir, RepositoryName("test-repo"))
+      repository.init()
+      val files = Seq("a/b/c.txt" -> "c", "a/b/d.txt" -> "d", "a/b-e/f.txt" -> "f", "a/bb.txt" -> "bb", "a/b.txt" -> "b").map {
+        case (path, content) => writeFile(repository, path, content)
+      }
+      repository.add(files.toSet)
+      val commit = repository.commit("Test 1")
+
+      repository.usePath(Some("a/b"), commit)(Some(_)) shouldEqual Set("a/b/c.txt", "a/b/d.txt")
+      repository.usePath(Some("a/b.txt"), commit)(Some(_)) shouldEqual Set("a/b.txt")
+      repository.usePath(None, commit)(Some(_)).size shouldEqual 5
+      repository.readBlobs(Set("a/b/c.txt", "a/bb.txt", "a/missing.txt"), commit).mapValues(new String(_)) shouldEqual
+        Map("a/b/c.txt" -> "c", "a/bb.txt" -> "bb")
+      new File(repository.dir, ".git/adept-paths/" + commit.value).isFile shouldEqual true
+      repository.isClean shouldEqual true
+    }
+  }
+
+  test("Corrupt path indexes are rebuilt") {
+    usingTmpDir { tmpDir =>
+      val repository = new GitRepository(tmpDir, RepositoryName("test-repo"))
+      repository.init()
+      repository.add(Set(writeFile(repository, "a/b.txt", "b"), writeFile(repository, "a/c.txt", "c")))
+      val commit = repository.commit("Test 1")
+      val indexFile = new File(repository.dir, ".git/adept-paths/" + commit.value)
+      indexFile.getParentFile.mkdirs()
+      for (size <- Seq(Int.MaxValue, -1)) {
+        val out = new java.io.DataOutputStream(new java.io.FileOutputStream(indexFile))
+        try {
+          out.writeInt(1)
+          out.writeInt(size)
+        } finally {
+          out.close()
+        }
+        index(repository, commit).size shouldEqual 2
+        indexFile.length should be > 8L
+      }
+    }
+  }
+
+  test("Least recently used path indexes are removed from disk and none are written if disabled") {
+    usingTmpDir { tmpDir =>
+      val repository = new GitRepository(tmpDir, RepositoryName("test-repo"))
+      repository.init()
+      val commits = (1 to 4).map { i =>
+        repository.add(writeFile(repository, "file" + i + ".txt", i.toString))
+        repository.commit("Test " + i)
+      }
+      def indexFile(commit: Commit) = new File(repository.dir, ".git/adept-paths/" + commit.value)
+      try {
+        GitRepository.maxPathIndexesOnDisk = 2
+        for (i <- Seq(0, 1, 0, 2)) {
+          index(repository, commits(i)).size shouldEqual i + 1
+          Thread.sleep(1100) //file times are not more precise on all platforms
+        }
+        commits.take(3).map(indexFile(_).isFile) shouldEqual Seq(true, false, true)
+
+        GitRepository.pathIndexesOnDisk = false
+        index(repository, commits(3)).size shouldEqual 4
+        indexFile(commits(3)).exists shouldEqual false
+      } finally {
+        GitRepository.maxPathIndexesOnDisk = GitRepository.DefaultMaxPathIndexesOnDisk
+        GitRepository.pathIndexesOnDisk = true
+      }
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package adept.repository
+
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+import adept.repository.models.RepositoryName
+
+class GitRepositoryPoolTest extends FunSuite with Matchers {
+  import adept.test.FileUtils.usingTmpDir
+
+  test("Git repositories are reused between calls") {
+    usingTmpDir { tmpDir =>
+      val repository = new GitRepository(tmpDir, RepositoryName("test-repo"))
+      repository.init()
+      val commit = repository.commit("Test 1")
+      val first = repository.usingGitRepo(identity)
+      repository.hasCommit(commit) shouldEqual true
+      repository.usingGitRepo(identity) should be theSameInstanceAs first
+    }
+  }
+
+  test("Git repositories that have been removed are opened again") {
+    usingTmpDir { tmpDir =>
+      val repository = new GitRepository(tmpDir, RepositoryName("test-repo"))
+      repository.init()
+      val first = repository.usingGitRepo(identity)
+      new scala.reflect.io.Directory(repository.dir).deleteRecursively()
+      repository.init()
+      val commit = repository.commit("Test 1")
+      repository.hasCommit(commit) shouldEqual true
+      repository.usingGitRepo(identity) should not be theSameInstanceAs(first)
+    }
+  }
+
+  test("Git repositories opened concurrently are only kept open once") {
+    usingTmpDir { tmpDir =>
+      GitRepositoryPool.clear()
+      val repository = new GitRepository(tmpDir, RepositoryName("test-repo"))
+      repository.init()
+      GitRepositoryPool.clear()
+      val opened = (1 to 8).par.map(_ => repository.usingGitRepo(identity)).toList
+      opened.foreach(_ should be theSameInstanceAs repository.usingGitRepo(identity))
+    }
+  }
+}
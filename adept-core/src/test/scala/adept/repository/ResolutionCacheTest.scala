@@ -0,0 +1,161 @@
+package adept.repository
+
+import java.io.File
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+import org.eclipse.jgit.lib.NullProgressMonitor
+import adept.Adept
+import adept.repository.models._
+import adept.repository.metadata.VariantMetadata
+import adept.repository.metadata.RankingMetadata
+import adept.resolution.Resolver
+import adept.resolution.models._
+import adept.resolution.resolver.models.ResolvedResult
+
+class ResolutionCacheTest extends FunSuite with Matchers {
+  import adept.test.FileUtils.usingTmpDir
+  import adept.test.ResolverUtils._
+
+  def createVersionedContext(tmpDir: File) = {
+    val repo = new GitRepository(tmpDir, RepositoryName("com.a"))
+    repo.init()
+    val variants = Set(
+      Variant("A", Set(version -> Set("1.0.0"), binaryVersion -> Set("1.0")),
+        requirements = Set("B" -> Set(Constraint(binaryVersion, Set("2.0"))))),
+      Variant("B", Set(version -> Set("1.0.0"), binaryVersion -> Set("1.0"))),
+      Variant("B", Set(version -> Set("2.0.1"), binaryVersion -> Set("2.0"))))
+    variants.map { v =>
+      val metadata = VariantMetadata.fromVariant(v)
+      repo.add(metadata.write(v.id, repo))
+      val rankId = RankingMetadata.DefaultRankId
+      val formerRankings = RankingMetadata.read(v.id, rankId, repo).toList.flatMap(_.variants)
+      repo.add(RankingMetadata(metadata.hash :: formerRankings).write(v.id, rankId, repo))
+      val commit = repo.commit("Adding: " + v.id)
+      ContextValue(v.id, repo.name, Some(commit), metadata.hash)
+    }
+  }
+
+  test("Resolved results are cached and neither loaded nor resolved again") {
+    usingTmpDir { tmpDir =>
+      val context = createVersionedContext(tmpDir)
+      val requirements: Set[Requirement] = Set("A" -> Set(Constraint(binaryVersion, Set("1.0"))))
+      def localResolve(variantCache: VariantCache, resolutionCache: ResolutionCache) = {
+        new Adept(tmpDir, variantCache, progress = NullProgressMonitor.INSTANCE, resolutionCache = Some(resolutionCache))
+          .localResolve(requirements, Set.empty, Set.empty, context, Set.empty)
+      }
+      val resolutionCache = new ResolutionCache(tmpDir)
+      val resolved = localResolve(VariantCache.inMemory(), resolutionCache)
+      resolved.isRight shouldEqual true
+      resolutionCache.stats shouldEqual ResolutionCacheStats(hits = 0, misses = 1, invalid = 0)
+
+      val variantCache = VariantCache.inMemory()
+      val otherResolutionCache = new ResolutionCache(tmpDir) //e.g. the next build
+      val cached = localResolve(variantCache, otherResolutionCache)
+      otherResolutionCache.stats shouldEqual ResolutionCacheStats(hits = 1, misses = 0, invalid = 0)
+      variantCache.stats.misses shouldEqual 0
+      cached.right.get.state shouldEqual resolved.right.get.state
+      cached.right.get.graph shouldEqual resolved.right.get.graph
+      checkVariants(cached.right.get, "B", version -> Set("2.0.1"), binaryVersion -> Set("2.0"))
+    }
+  }
+
+  test("Previous results of other contexts are not resolved incrementally") {
+    usingTmpDir { tmpDir =>
+      val context = createVersionedContext(tmpDir)
+      val bValues = context.filter(_.id == Id("B")).toSeq
+      val requirements: Set[Requirement] = Set("B" -> Set.empty[Constraint])
+      val adept = new Adept(tmpDir, VariantCache.inMemory(), progress = NullProgressMonitor.INSTANCE)
+      val previousContext = context - bValues(1)
+      val previous = adept.localResolve(requirements, Set.empty, Set.empty, previousContext, Set.empty).right.get
+      val otherContext = context - bValues(0)
+      val incremental = adept.localResolve(requirements, Set.empty, Set.empty, otherContext, Set.empty,
+        previous = Some(ResolutionCacheKey(requirements, previousContext, Set.empty) -> previous)).right.get
+      val full = adept.localResolve(requirements, Set.empty, Set.empty, otherContext, Set.empty).right.get
+      incremental.state shouldEqual full.state
+      incremental.state should not equal previous.state
+    }
+  }
+
+  test("Cached results whose commits are missing are not used") {
+    usingTmpDir { tmpDir =>
+      val context = createVersionedContext(tmpDir)
+      val requirements: Set[Requirement] = Set("A" -> Set.empty[Constraint])
+      val result = new Resolver(new GitLoader(tmpDir, context, VariantCache.inMemory())).resolve(requirements)
+      val missingCommit = context.map(_.copy(commit = Some(Commit("1" * 40))))
+      val cache = new ResolutionCache(tmpDir)
+      cache.put(ResolutionCacheKey(requirements, missingCommit, Set.empty), result.asInstanceOf[ResolvedResult])
+      cache.get(ResolutionCacheKey(requirements, missingCommit, Set.empty)) shouldEqual None
+      cache.stats.invalid shouldEqual 1
+    }
+  }
+
+  test("Cached states are read back as they were written") {
+    usingTmpDir { tmpDir =>
+      val (variants, requirements) = latticeVariants(layers = 5, width = 3)
+      val excluded = requirements.map(r => r.copy(exclusions = Set(Id("L4-0"))))
+      val cache = new ResolutionCache(tmpDir)
+      for (requirements <- Seq(requirements, excluded)) {
+        val result = new Resolver(getMemoryLoader(variants)).resolve(requirements)
+        result.isResolved shouldEqual true
+        val key = ResolutionCacheKey(requirements, Set.empty, Set.empty)
+        cache.put(key, result.asInstanceOf[ResolvedResult])
+        val cached = cache.get(key).get
+        cached.state shouldEqual result.state
+        cached.graph shouldEqual result.graph
+      }
+    }
+  }
+
+  test("Corrupt cached results are removed and resolved again") {
+    usingTmpDir { tmpDir =>
+      val (variants, requirements) = latticeVariants(layers = 3, width = 2)
+      val cache = new ResolutionCache(tmpDir)
+      val key = ResolutionCacheKey(requirements, Set.empty, Set.empty)
+      cache.put(key, new Resolver(getMemoryLoader(variants)).resolve(requirements).asInstanceOf[ResolvedResult])
+      val file = cache.dir.listFiles.head
+      val truncated = new java.io.RandomAccessFile(file, "rw")
+      try {
+        truncated.setLength(file.length / 2)
+      } finally {
+        truncated.close()
+      }
+      cache.get(key) shouldEqual None
+      cache.stats.invalid shouldEqual 1
+      file.exists shouldEqual false
+      val result = cache.getOrResolve(key)(new Resolver(getMemoryLoader(variants)).resolve(requirements))
+      result.isResolved shouldEqual true
+      cache.get(key) should be('defined)
+    }
+  }
+
+  test("Keys with separators in their values have different hashes") {
+    def key(values: Set[String], exclusions: Set[Id]) = {
+      ResolutionCacheKey(Set(Requirement(Id("A"), Set(Constraint("a", values)), exclusions)), Set.empty, Set.empty)
+    }
+    key(Set("1,2"), Set.empty).contentHash should not equal key(Set("1", "2"), Set.empty).contentHash
+    key(Set("1"), Set(Id("B,C"))).contentHash should not equal key(Set("1"), Set(Id("B"), Id("C"))).contentHash
+    key(Set("1;b=2"), Set.empty).contentHash should not equal key(Set("1"), Set.empty).copy(requirements =
+      Set(Requirement(Id("A"), Set(Constraint("a", Set("1")), Constraint("b", Set("2"))), Set.empty))).contentHash
+  }
+
+  test("Least recently used results are removed from the cache") {
+    usingTmpDir { tmpDir =>
+      val variants: Set[Variant] = (1 to 3).map(i => Variant("A" + i, Set(version -> Set("1.0")))).toSet
+      val loader = getMemoryLoader(variants)
+      val cache = new ResolutionCache(tmpDir, maxEntries = 2)
+      val keys = (1 to 3).map(i => ResolutionCacheKey(Set("A" + i -> Set.empty[Constraint]), Set.empty, Set.empty))
+      def put(key: ResolutionCacheKey) = {
+        cache.put(key, new Resolver(loader).resolve(key.requirements).asInstanceOf[ResolvedResult])
+        Thread.sleep(1100) //file times are not more precise on all platforms
+      }
+      put(keys(0))
+      put(keys(1))
+      cache.get(keys(0)) should be('defined)
+      Thread.sleep(1100)
+      put(keys(2))
+      cache.get(keys(1)) shouldEqual None
+      cache.get(keys(0)) should be('defined)
+      cache.get(keys(2)) should be('defined)
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package adept.repository
+
+import java.io.File
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.atomic.AtomicInteger
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+import adept.artifact.models.ArtifactAttribute
+import adept.artifact.models.ArtifactHash
+import adept.resolution.models._
+
+class VariantCacheTest extends FunSuite with Matchers {
+  import adept.test.FileUtils.usingTmpDir
+
+  val variants = Set(
+    Variant(Id("A"), Set(Attribute("version", Set("1.0.0")), Attribute("binary-version", Set("1.0"))),
+      Set(ArtifactRef(new ArtifactHash("123"), Set(new ArtifactAttribute("configurations", new java.util.HashSet(java.util.Arrays.asList("compile", "test")))), Some("a.jar"))),
+      Set(Requirement(Id("B"), Set(Constraint("binary-version", Set("1.0"))), Set(Id("C"))))),
+    Variant(Id("A"), Set(Attribute("version", Set("2.0.0")))))
+
+  test("Variants are loaded once and read from disk in another cache") {
+    usingTmpDir { tmpDir =>
+      val key = VariantCacheKey(Id("A"), Set(Constraint("binary-version", Set("1.0"))), "loader")
+      val loads = new AtomicInteger(0)
+      val cache = new VariantCache(Some(tmpDir))
+      cache.getOrLoad(key) { loads.incrementAndGet(); variants } shouldEqual variants
+      cache.getOrLoad(key.copy()) { loads.incrementAndGet(); variants } shouldEqual variants
+      loads.get shouldEqual 1
+      cache.stats.memoryHits shouldEqual 1
+      cache.stats.misses shouldEqual 1
+
+      val otherCache = new VariantCache(Some(tmpDir))
+      otherCache.getOrLoad(key) { loads.incrementAndGet(); Set.empty } shouldEqual variants
+      loads.get shouldEqual 1
+      otherCache.stats.diskHits shouldEqual 1
+    }
+  }
+
+  test("Variants loaded concurrently are only loaded once") {
+    val key = VariantCacheKey(Id("A"), Set.empty, "loader")
+    val loads = new AtomicInteger(0)
+    val cache = VariantCache.inMemory()
+    (1 to 8).par.map { _ =>
+      cache.getOrLoad(key) {
+        loads.incrementAndGet()
+        Thread.sleep(100)
+        variants
+      }
+    }.toSet shouldEqual Set(variants)
+    loads.get shouldEqual 1
+  }
+
+  test("Variants raced for by many threads are only loaded once") {
+    val cache = VariantCache.inMemory()
+    val threads = 16
+    for (i <- 1 to 200) { //the race is short, so it is run many times
+      val key = VariantCacheKey(Id("A" + i), Set.empty, "loader")
+      val loads = new AtomicInteger(0)
+      val barrier = new CyclicBarrier(threads)
+      val racing = (1 to threads).map { _ =>
+        new Thread {
+          override def run() = {
+            barrier.await()
+            cache.getOrLoad(key) { loads.incrementAndGet(); variants }
+          }
+        }
+      }
+      racing.foreach(_.start())
+      racing.foreach(_.join())
+      loads.get shouldEqual 1
+    }
+  }
+
+  test("Keys whose fields concatenate to the same text have different hashes") {
+    VariantCacheKey(Id("A"), Set(Constraint("a", Set("b"))), "loader").contentHash should not equal
+      VariantCacheKey(Id("A"), Set(Constraint("ab", Set.empty)), "loader").contentHash
+    VariantCacheKey(Id("A"), Set(Constraint("a", Set.empty)), "loader").contentHash should not equal
+      VariantCacheKey(Id("Aa"), Set.empty, "loader").contentHash
+    VariantCacheKey(Id("A"), Set(Constraint("a", Set("b"))), "loader").contentHash should not equal
+      VariantCacheKey(Id("A"), Set(Constraint("a", Set.empty)), "bloader").contentHash
+  }
+
+  test("Least recently used variants are evicted from memory") {
+    val cache = VariantCache.inMemory(maxVariantsInMemory = 5)
+    val keys = (1 to 3).map(i => VariantCacheKey(Id("A" + i), Set.empty, "loader"))
+    keys.foreach(key => cache.getOrLoad(key)(variants))
+    cache.stats.variantsInMemory shouldEqual 3
+    cache.getOrLoad(keys.head)(variants)
+    cache.stats.misses shouldEqual 4
+  }
+
+  test("Corrupt cached variants are loaded again") {
+    usingTmpDir { tmpDir =>
+      val key = VariantCacheKey(Id("A"), Set.empty, "loader")
+      new VariantCache(Some(tmpDir)).getOrLoad(key)(variants)
+      val file = tmpDir.listFiles.find(_.getName.startsWith(key.contentHash)).get
+      val out = new java.io.DataOutputStream(new java.io.FileOutputStream(file))
+      try {
+        out.writeInt(1) //the format version
+        out.writeInt(1) //one variant
+        out.writeInt(42) //a string which was never written
+      } finally {
+        out.close()
+      }
+      val loads = new AtomicInteger(0)
+      new VariantCache(Some(tmpDir)).getOrLoad(key) { loads.incrementAndGet(); variants } shouldEqual variants
+      loads.get shouldEqual 1
+    }
+  }
+
+  test("Least recently used variants are removed from disk") {
+    usingTmpDir { tmpDir =>
+      val cache = new VariantCache(Some(tmpDir), maxEntriesOnDisk = 2)
+      val keys = (1 to 4).map(i => VariantCacheKey(Id("A" + i), Set.empty, "loader"))
+      keys.foreach { key =>
+        cache.getOrLoad(key)(variants)
+        Thread.sleep(1100) //file times are not more precise on all platforms
+      }
+      tmpDir.listFiles.map(_.getName).toSet shouldEqual keys.drop(2).map(_.contentHash + ".variants").toSet
+    }
+  }
+}
@@ -4,9 +4,13 @@ import org.scalatest.FunSuite
 import org.scalatest.Matchers
 import adept.hash.Hasher
 import adept.repository.GitRepository
+import adept.repository.Repository
 import adept.repository.models._
 import adept.resolution.models._
 import adept.artifact.models._
+import adept.test.TestDetails
+import adept.test.BenchmarkId
+import adept.test.BenchmarkName
 
 class VariantMetadataTest extends FunSuite with Matchers {
   import adept.test.FileUtils.usingTmpDir
@@ -51,4 +55,65 @@ class VariantMetadataTest extends FunSuite with Matchers {
       }) shouldEqual Some("606dda39a3c9bf70b7ac19f407de89ff12edcd06996c390b4cd03c2b2a55aabc")
     }
   }
+
+  test("Variant metadata with other whitespaces is verified on its content") {
+    usingTmpDir { rootDir =>
+      val repository = new Repository(rootDir, RepositoryName("test-repo1"))
+      val id = Id("test/foo")
+      val variantMetadata = VariantMetadata(Seq(Attribute("version", Set("1.0.0"))), Seq.empty, Seq.empty)
+      val file = variantMetadata.write(id, repository)
+      MetadataContent.write(variantMetadata.jsonString.replace("\n", "\r\n") + "\n", file)
+      import org.scalatest.OptionValues._
+      VariantMetadata.read(id, variantMetadata.hash, repository, checkHash = true).value shouldEqual variantMetadata
+
+      MetadataContent.write(variantMetadata.copy(attributes = Seq(Attribute("version", Set("2.0.0")))).jsonString, file)
+      an[Exception] should be thrownBy {
+        VariantMetadata.read(id, variantMetadata.hash, repository, checkHash = true)
+      }
+    }
+  }
+
+  test("Verifying many variants") {
+    import adept.test.OutputUtils._
+    implicit val testDetails = TestDetails("Verify many variants")
+    val size = 500 //enough to compare the two, small enough to not write too many files on every test run
+    usingTmpDir { rootDir =>
+      val repository = new Repository(rootDir, RepositoryName("test-repo1"))
+      val variants = (1 to size).map { i =>
+        val id = Id("test/foo" + (i % 100))
+        id -> VariantMetadata(
+          attributes = Seq(Attribute("version", Set("1.0." + i)), Attribute("binary-version", Set("1.0"))),
+          artifacts = Seq(ArtifactRef(new ArtifactHash(Hasher.hash(("foo" + i).getBytes)), Set(new ArtifactAttribute("configurations", Set("compile", "master").asJava)), Some("foo-" + i + ".jar"))),
+          requirements = Seq(Requirement(Id("test/bar"), Set(Constraint("binary-version", Set("2.0"))), Set.empty)))
+      }
+      val hashes = variants.map {
+        case (id, variantMetadata) =>
+          variantMetadata.write(id, repository)
+          id -> variantMetadata.hash
+      }
+      def readAll(checkHash: Boolean) = hashes.flatMap {
+        case (id, hash) => VariantMetadata.read(id, hash, repository, checkHash)
+      }
+      //both paths are warmed up, then run in turns (alternating which one runs first) and timed in total:
+      val paths = IndexedSeq(() => readAll(checkHash = true), () => readAll(checkHash = false).map(_.hash))
+      val warmUps = 3
+      val rounds = 10
+      val nanos = Array(0L, 0L)
+      for (round <- 1 to warmUps + rounds) {
+        val order = if (round % 2 == 0) paths.indices else paths.indices.reverse
+        order.foreach { i =>
+          val start = System.nanoTime
+          paths(i)()
+          if (round > warmUps) nanos(i) += System.nanoTime - start
+        }
+      }
+      val benchmarkId = BenchmarkId(rounds + " x " + size + " variants")
+      benchmarkTime(BenchmarkName("Verified (raw bytes)"), nanos(0) / 1000000, benchmarkId)
+      benchmarkTime(BenchmarkName("Verified (re-serialized)"), nanos(1) / 1000000, benchmarkId) //what verifying did before
+      val verified = readAll(checkHash = true)
+      val reserialized = readAll(checkHash = false).map(_.hash)
+      verified shouldEqual variants.map(_._2)
+      reserialized shouldEqual hashes.map(_._2)
+    }
+  }
 }
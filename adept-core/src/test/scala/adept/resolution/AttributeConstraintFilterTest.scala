@@ -2,9 +2,11 @@ package adept.resolution
 
 import adept.resolution.models._
 import adept.repository.AttributeConstraintFilter
+import adept.repository.AttributeIndex
 import org.scalatest._
+import scala.util.Random
 
-class MatcherTest extends FunSuite {
+class MatcherTest extends FunSuite with Matchers {
   def testMatches(attributes: Set[Attribute], constraints: Set[Constraint], expectMatchValue: Boolean) = {
     assert(AttributeConstraintFilter.matches(attributes, constraints) == expectMatchValue, "expected attributes: " + attributes + " and constraints: " + constraints + " to " + (if (expectMatchValue) "" else "NOT") + " match")
   }
@@ -44,4 +46,55 @@ class MatcherTest extends FunSuite {
   test("that java architecture can be represented by attributes/constraints") {
     testMatches(Set(Attribute("binary-version", Set("1.5", "1.4", "1.7", "1.6", "1.1", "1.2", "1.3"))), Set(Constraint("binary-version", Set("1.5")), Constraint("binary-version", Set("1.4"))), true)
   }
+
+  val names = Seq("version", "binary-version", "excludes")
+  val values = Seq("1.0", "1.1", "2.0", "2.10")
+
+  def randomValues(random: Random) = {
+    if (random.nextInt(4) == 0) Set.empty[String] //empty values match empty constraints
+    else random.shuffle(values).take(1 + random.nextInt(2)).toSet
+  }
+
+  def randomVariants(random: Random, size: Int) = {
+    (1 to size).map { i =>
+      val attributes = names.filter(_ => random.nextInt(5) > 0).map(name => Attribute(name, randomValues(random))).toSet
+      //rarely, several attributes with the same name:
+      val repeated = if (random.nextInt(10) == 0) Set(Attribute("version", randomValues(random))) else Set.empty
+      Variant(Id("test/foo"), attributes ++ repeated + Attribute("number", Set(i.toString)))
+    }
+  }
+
+  def randomConstraints(random: Random) = {
+    names.filter(_ => random.nextInt(3) == 0).map(name => Constraint(name, randomValues(random))).toSet
+  }
+
+  test("indexed filtering matches the same variants as matching each variant") {
+    val random = new Random(4711)
+    val variants = randomVariants(random, 500)
+    val index = new AttributeIndex(variants)
+    for (i <- 1 to 500) {
+      val constraints = randomConstraints(random)
+      index.filter(constraints) shouldEqual AttributeConstraintFilter.filter(Id("test/foo"), variants.toSet, constraints)
+    }
+    index.filter(Set(Constraint("unknown", Set.empty))) shouldEqual Set.empty
+    index.filter(Set(Constraint("version", Set("1.0")), Constraint("version", Set("2.0")))) shouldEqual
+      variants.filter(v => AttributeConstraintFilter.matches(v.attributes, Set(Constraint("version", Set("1.0")), Constraint("version", Set("2.0"))))).toSet
+  }
+
+  test("indexed filtering of many variants") {
+    implicit val testDetails = adept.test.TestDetails("indexed filtering of many variants")
+    import adept.test.OutputUtils.benchmark
+    import adept.test.{ BenchmarkName, BenchmarkId }
+    val random = new Random(4711)
+    val variants = randomVariants(random, 5000)
+    val constraints = (1 to 200).map(_ => randomConstraints(random))
+    val linear = benchmark(BenchmarkName("Filtered linearly"), BenchmarkId("5000 variants, 200 constraints")) {
+      constraints.map(AttributeConstraintFilter.filter(Id("test/foo"), variants.toSet, _))
+    }
+    val indexed = benchmark(BenchmarkName("Filtered with an index"), BenchmarkId("5000 variants, 200 constraints")) {
+      val index = new AttributeIndex(variants)
+      constraints.map(index.filter)
+    }
+    indexed shouldEqual linear
+  }
 }
@@ -52,6 +52,18 @@ class ResolverTest extends FunSuite with Matchers {
     combinations(1) shouldEqual Set(List(d10, e10), List(d20, e10))
   }
 
+  test("Internal combinations method prunes conflicting variants") {
+    val d10 = Variant("D", Set(version -> Set("1.0")), requirements = Set("E" -> Set[Constraint](version -> Set("1.0"))))
+    val d20 = Variant("D", Set(version -> Set("2.0")), requirements = Set("E" -> Set[Constraint](version -> Set("2.0"))))
+    val e10 = Variant("E", Set(version -> Set("1.0")))
+
+    val resolver = new Resolver(getMemoryLoader(Set(d10, d20, e10)))
+
+    val combinations = resolver.combinations(Set(new Id("D"), new Id("E")), Set.empty, Map.empty).map(_.toSet).toList
+    combinations(0) shouldEqual Set(List(d10), List(d20), List(e10))
+    combinations(1) shouldEqual Set(List(d10, e10))
+  }
+
   test("All transitive variants are resolved correctly") {
     val variants: Set[Variant] = Set(
 
@@ -370,5 +382,212 @@ class ResolverTest extends FunSuite with Matchers {
     checkExcluded(result, "D")
     checkVariants(result, "D", version -> Set("A"))
   }
-}
 
+  test("allocations of the transitions when resolving a lattice") {
+    import adept.resolution.resolver.models.Node
+    import adept.resolution.resolver.models.State
+    import adept.test.BenchmarkName
+    implicit val testDetails = TestDetails("Lattice allocations")
+    //transitions like State made them when it was a case class: all its sets and maps are copied
+    case class CopiedState(underconstrained: Set[Id], overconstrained: Set[Id], resolved: Set[Id],
+      resolvedVariants: Map[Id, Variant], constraints: Map[Id, Set[Constraint]], nodes: Map[Id, Node]) {
+      def underconstrain(id: Id, currentConstraints: Set[Constraint], node: Node) = copy(
+        resolved = resolved - id,
+        resolvedVariants = resolvedVariants - id,
+        underconstrained = underconstrained + id,
+        overconstrained = overconstrained - id,
+        constraints = constraints + (id -> currentConstraints),
+        nodes = nodes + (id -> node))
+      def resolve(variant: Variant, currentConstraints: Set[Constraint], node: Node) = copy(
+        resolved = resolved + variant.id,
+        resolvedVariants = resolvedVariants + (variant.id -> variant),
+        underconstrained = underconstrained - variant.id,
+        overconstrained = overconstrained - variant.id,
+        constraints = constraints + (variant.id -> currentConstraints),
+        nodes = nodes + (variant.id -> node))
+      def link(id: Id, children: Set[Node]) = copy(nodes = nodes + (id -> nodes(id).copy(children = children)))
+    }
+
+    val (variants, requirements) = latticeVariants(layers = 10, width = 10)
+    val result = resolve(requirements, getMemoryLoader(variants))
+    checkResolved(result, variants.map(_.id))
+    val resolved = result.state.resolvedVariants.values.toSeq.sortBy(_.id.value)
+    def constraints(id: Id) = result.state.constraints.getOrElse(id, Set.empty)
+    def node(id: Id) = result.state.nodes(id)
+    //each variant is under-constrained, then resolved and linked by each of the walks reaching it:
+    val walksReaching = 3
+    def transitions() = resolved.foldLeft(State.empty) { (state, variant) =>
+      val id = variant.id
+      (1 to walksReaching).foldLeft(state.underconstrain(id, constraints(id), node(id))) { (state, _) =>
+        state.resolve(variant, constraints(id), node(id)).link(id, node(id).children)
+      }
+    }
+    def copies() = resolved.foldLeft(CopiedState(Set.empty, Set.empty, Set.empty, Map.empty, Map.empty, Map.empty)) { (state, variant) =>
+      val id = variant.id
+      (1 to walksReaching).foldLeft(state.underconstrain(id, constraints(id), node(id))) { (state, _) =>
+        state.resolve(variant, constraints(id), node(id)).link(id, node(id).children)
+      }
+    }
+    val rounds = 20
+    for (_ <- 1 to rounds) { transitions(); copies() } //warm up
+    val (_, copiedBytes) = measureAllocations(BenchmarkName("Copied state"), requirements) {
+      for (_ <- 1 to rounds) copies()
+    }
+    val (_, stateBytes) = measureAllocations(BenchmarkName("State"), requirements) {
+      for (_ <- 1 to rounds) transitions()
+    }
+    transitions().resolvedVariants shouldEqual result.state.resolvedVariants
+    stateBytes should be < copiedBytes
+  }
+
+  test("shared requirements in a lattice are only walked once") {
+    implicit val testDetails = TestDetails("Lattice memoized walks")
+    val (variants, requirements) = latticeVariants(layers = 7, width = 4)
+    val loader = new CountingLoader(getMemoryLoader(variants))
+    val walked = benchmark(Resolved, requirements) {
+      new Resolver(loader, memoizeWalks = false).resolve(requirements)
+    }
+    val walkedCalls = loader.calls.getAndSet(0)
+    val memoized = benchmark(Resolved, requirements) {
+      new Resolver(loader, memoizeWalks = true).resolve(requirements)
+    }
+    val memoizedCalls = loader.calls.get
+
+    memoized.state shouldEqual walked.state
+    memoized.graph shouldEqual walked.graph
+    checkResolved(memoized, variants.map(_.id))
+    walkedCalls shouldEqual (1 to 7).map(layer => math.pow(4, layer).toInt).sum //once for each path
+    memoizedCalls should be <= 2 * variants.map(_.id).size //once or twice for each id
+  }
+
+  test("requirement orderings resolve the same variants") {
+    import adept.resolution.resolver.models.RequirementOrdering._
+    import adept.resolution.resolver.models.ResolveStatistics
+    val variants: Set[Variant] = Set(
+      Variant("A", Set(version -> Set("V")),
+        requirements = Set("B" -> Set.empty[Constraint], "C" -> Set.empty[Constraint])),
+      Variant("B", Set(version -> Set("X")),
+        requirements = Set("D" -> Set.empty[Constraint])),
+      Variant("C", Set(version -> Set("Y")),
+        requirements = Set("D" -> Set(Constraint(version, Set("1.0"))), "E" -> Set(Constraint(version, Set("1.0"))))),
+      Variant("D", Set(version -> Set("1.0")),
+        requirements = Set("E" -> Set.empty[Constraint])),
+      Variant("D", Set(version -> Set("2.0")),
+        requirements = Set("E" -> Set.empty[Constraint])),
+      Variant("E", Set(version -> Set("1.0"))),
+      Variant("E", Set(version -> Set("2.0"))))
+    val requirements: Set[Requirement] = Set(
+      "A" -> Set(Constraint(version, Set("V"))))
+    val (latticeVariants, latticeRequirements) = adept.test.ResolverUtils.latticeVariants(layers = 5, width = 3)
+
+    //(loader calls, transitions) for depth-first, breadth-first and most-constrained-first:
+    val expectedStatistics = Seq(
+      Seq((7, 11), (7, 10), (7, 11)),
+      Seq((27, 27), (15, 27), (27, 27)))
+    for (((variants, requirements), expected) <- Seq(variants -> requirements, latticeVariants -> latticeRequirements).zip(expectedStatistics)) {
+      val loader = getMemoryLoader(variants)
+      val results = Seq(DepthFirst, BreadthFirst, MostConstrainedFirst).zip(expected).map { case (ordering, (loaderCalls, transitions)) =>
+        val result = new Resolver(loader).resolve(requirements, ordering)
+        result.statistics shouldEqual ResolveStatistics(ordering, loaderCalls, transitions)
+        checkResolved(result, variants.map(_.id))
+        result
+      }
+      for (result <- results.tail) {
+        result.getResolvedVariants shouldEqual results.head.getResolvedVariants
+        result.graph.map(_.id) shouldEqual results.head.graph.map(_.id)
+      }
+    }
+  }
+
+  test("independent requirements are resolved concurrently") {
+    implicit val testDetails = TestDetails("Independent lattices")
+    def prefixed(prefix: String, lattice: (Set[Variant], Set[Requirement])) = {
+      def id(id: Id) = Id(prefix + id.value)
+      def requirement(r: Requirement) = r.copy(id = id(r.id))
+      val (variants, requirements) = lattice
+      variants.map(v => v.copy(id = id(v.id), requirements = v.requirements.map(requirement))) -> requirements.map(requirement)
+    }
+    val lattices = (1 to 4).map(i => prefixed("P" + i + "-", adept.test.ResolverUtils.latticeVariants(layers = 4, width = 3)))
+    val variants = lattices.flatMap(_._1).toSet
+    val requirements = lattices.flatMap(_._2).toSet
+    //shares an id with the first lattice only:
+    val shared = Variant("S", Set(version -> Set("1.0")), requirements = Set[Requirement]("P1-L3-0" -> Set(Constraint(binaryVersion, Set("1.0")))))
+    val loader = getMemoryLoader(variants + shared)
+
+    val executor = java.util.concurrent.Executors.newFixedThreadPool(4)
+    try {
+      val resolver = new Resolver(loader, executor = Some(executor))
+      resolver.independentParts(requirements, new ResolveRun(adept.resolution.resolver.models.RequirementOrdering.DepthFirst)).size shouldEqual 4
+      resolver.independentParts(requirements + ("S" -> Set.empty[Constraint]), new ResolveRun(adept.resolution.resolver.models.RequirementOrdering.DepthFirst)).size shouldEqual 4
+
+      for (requirements <- Seq(requirements, requirements + ("S" -> Set.empty[Constraint]))) {
+        val sequential = benchmark(Resolved, requirements) {
+          new Resolver(loader).resolve(requirements)
+        }
+        val concurrent = benchmark(Resolved, requirements) {
+          resolver.resolve(requirements)
+        }
+        checkResolved(concurrent, variants.map(_.id) ++ requirements.map(_.id))
+        concurrent.state shouldEqual sequential.state
+        concurrent.graph shouldEqual sequential.graph
+        concurrent.statistics.transitions shouldEqual sequential.statistics.transitions
+      }
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  test("incremental resolves only resolve what changed") {
+    implicit val testDetails = TestDetails("Incremental lattices")
+    def prefixed(prefix: String, lattice: (Set[Variant], Set[Requirement])) = {
+      def id(id: Id) = Id(prefix + id.value)
+      def requirement(r: Requirement) = r.copy(id = id(r.id))
+      val (variants, requirements) = lattice
+      variants.map(v => v.copy(id = id(v.id), requirements = v.requirements.map(requirement))) -> requirements.map(requirement)
+    }
+    val lattices = (1 to 10).map(i => prefixed("P" + i + "-", adept.test.ResolverUtils.latticeVariants(layers = 5, width = 3)))
+    //shares an id with the first lattice only:
+    val shared = Variant("S", Set(version -> Set("1.0")), requirements = Set[Requirement]("P1-L3-0" -> Set(Constraint(binaryVersion, Set("2.0")))))
+    val loader = new CountingLoader(getMemoryLoader(lattices.flatMap(_._1).toSet + shared))
+    val resolver = new Resolver(loader)
+
+    val previousRequirements = lattices.init.flatMap(_._2).toSet
+    val previous = resolver.resolve(previousRequirements)
+    val changes = Seq(
+      "added" -> (previousRequirements ++ lattices.last._2),
+      "removed" -> (previousRequirements -- lattices.head._2),
+      "overlapping" -> (previousRequirements + ("S" -> Set.empty[Constraint])))
+    for ((change, requirements) <- changes) {
+      loader.calls.set(0)
+      val full = benchmark(Resolved, requirements) {
+        new Resolver(loader).resolve(requirements)
+      }
+      val fullCalls = loader.calls.getAndSet(0)
+      val incremental = benchmark(Resolved, requirements) {
+        resolver.resolveIncrementally(previous, previousRequirements, requirements)
+      }
+      val incrementalCalls = loader.calls.get
+      withClue(change) {
+        incremental.state shouldEqual full.state
+        incremental.graph shouldEqual full.graph
+        incremental.isResolved shouldEqual full.isResolved
+        incrementalCalls should be < fullCalls
+      }
+    }
+  }
+
+  test("State can be created, copied and matched like a case class") {
+    import adept.resolution.resolver.models.State
+    val variants: Set[Variant] = Set(Variant("A", Set(version -> Set("1.0"))))
+    val result = resolve(Set("A" -> Set.empty[Constraint]), getMemoryLoader(variants))
+    val State(underconstrained, overconstrained, resolved, resolvedVariants, implicitVariants, excluded, constraints, nodes) = result.state
+    val created = State(underconstrained, overconstrained, resolved, resolvedVariants, implicitVariants, excluded, constraints, nodes)
+    created shouldEqual result.state
+    created.isResolved shouldEqual true
+
+    val copied = created.copy(underconstrained = Set(Id("A")), resolved = Set.empty, resolvedVariants = Map.empty)
+    copied.isUnderconstrained shouldEqual true
+    copied.underconstrained shouldEqual Set(Id("A"))
+    copied.productArity shouldEqual 8
+  }
+}
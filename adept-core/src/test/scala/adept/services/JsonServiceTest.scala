@@ -0,0 +1,108 @@
+package adept.services
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import adept.artifact.models._
+import adept.hash.Hasher
+import adept.repository.metadata.VariantMetadata
+import adept.resolution.models._
+import adept.test.BenchmarkName
+import adept.test.BenchmarkId
+import adept.test.TestDetails
+
+class JsonServiceTest extends FunSuite with Matchers {
+  import collection.JavaConverters._
+
+  val variantMetadata = VariantMetadata(
+    attributes = Seq(Attribute("version", Set("1.0.0")), Attribute("binary-version", Set("2.10"))),
+    artifacts = (1 to 10).map { i =>
+      ArtifactRef(new ArtifactHash(Hasher.hash(i.toString.getBytes)),
+        Set(new ArtifactAttribute("configurations", Set("compile", "master").asJava)), Some("test-file-" + i + ".jar"))
+    },
+    requirements = (1 to 10).map { i =>
+      Requirement(Id("test/bar" + i), constraints = Set(Constraint("binary-version", Set("2.10"))), exclusions = Set(Id("test/baz")))
+    })
+
+  def writeFields(generator: JsonGenerator) = {
+    JsonService.writeArrayField("attributes", variantMetadata.attributes, generator)
+    JsonService.writeArrayField("artifacts", variantMetadata.artifacts, generator)
+    JsonService.writeArrayField("requirements", variantMetadata.requirements, generator)
+  }
+
+  def tokens(json: String) = {
+    JsonService.parseJson(new ByteArrayInputStream(json.getBytes("UTF-8"))) { parser =>
+      val tokens = collection.mutable.Buffer(parser.getCurrentToken -> parser.getText)
+      while (parser.nextToken() != null) tokens += parser.getCurrentToken -> parser.getText
+      tokens.toList
+    }
+  }
+
+  test("JSON written to strings, streams or compactly has the same content") {
+    val pretty = JsonService.writeJson(writeFields _)
+    pretty shouldEqual variantMetadata.jsonString
+
+    val os = new ByteArrayOutputStream()
+    JsonService.writeJson(os, pretty = true)(writeFields)
+    os.toString("UTF-8") shouldEqual pretty
+
+    val compact = JsonService.writeJson(writeFields _, pretty = false)
+    compact.length should be < pretty.length
+    compact should not include ("\n")
+    tokens(compact) shouldEqual tokens(pretty)
+  }
+
+  test("Allocations writing JSON") {
+    implicit val testDetails = TestDetails("Allocations writing JSON")
+    import adept.test.OutputUtils.benchmarkAllocations
+    val nullOutputStream = new OutputStream {
+      override def write(b: Int) = {}
+      override def write(b: Array[Byte], off: Int, len: Int) = {}
+    }
+    val times = 1000
+
+    def writeWithNewFactory() = { // as it was done before the factory was shared
+      val os = new ByteArrayOutputStream()
+      val generator = new JsonFactory().createGenerator(os)
+      generator.useDefaultPrettyPrinter()
+      try {
+        generator.writeStartObject()
+        writeFields(generator)
+        generator.writeEndObject()
+      } finally {
+        generator.close()
+      }
+      os.toString
+    }
+    for (i <- 1 to 100) { // warm up
+      writeWithNewFactory()
+      JsonService.writeJson(writeFields _)
+      JsonService.writeJson(nullOutputStream, pretty = false)(writeFields)
+    }
+
+    benchmarkAllocations(BenchmarkName("New factory, pretty string"), BenchmarkId(times.toString)) {
+      for (i <- 1 to times) writeWithNewFactory()
+    }
+    benchmarkAllocations(BenchmarkName("Shared factory, pretty string"), BenchmarkId(times.toString)) {
+      for (i <- 1 to times) JsonService.writeJson(writeFields _)
+    }
+    benchmarkAllocations(BenchmarkName("Shared factory, compact stream"), BenchmarkId(times.toString)) {
+      for (i <- 1 to times) JsonService.writeJson(nullOutputStream, pretty = false)(writeFields)
+    }
+  }
+
+  test("Unknown and missing fields are rejected") {
+    def parseConstraint(json: String) = JsonService.parseJson(new ByteArrayInputStream(json.getBytes("UTF-8")))(Constraint.fromJson)
+    parseConstraint("""{"name": "version", "values": ["1.0"]}""") shouldEqual Constraint("version", Set("1.0"))
+    intercept[adept.exceptions.JsonUnknownFieldException] {
+      parseConstraint("""{"name": "version", "values": ["1.0"], "other": {"a": 1}}""")
+    }.fieldName shouldEqual "other"
+    intercept[adept.exceptions.JsonMissingFieldException] {
+      parseConstraint("""{"name": "version"}""")
+    }.fieldName shouldEqual "values"
+  }
+}
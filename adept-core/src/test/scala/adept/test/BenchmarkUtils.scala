@@ -53,11 +53,15 @@ object Benchmarkers {
   //Use OutputUtils
   private[test] val nullBenchmarker = new Benchmarker {
     override def benchmark(name: BenchmarkName, timeSpentMillis: Long, hash: BenchmarkId)(implicit testDetails: TestDetails): Unit = {}
+    override def benchmarkAllocations(name: BenchmarkName, allocatedBytes: Long, hash: BenchmarkId)(implicit testDetails: TestDetails): Unit = {}
   }
   private[test] val systemErrBenchmarker = new Benchmarker {
     override def benchmark(name: BenchmarkName, timeSpentMillis: Long, hash: BenchmarkId)(implicit testDetails: TestDetails): Unit = {
       System.err.println("Completed task: '" + name.value + "' (" + testDetails.id + ") in " + (timeSpentMillis / 1000.0) + "s")
     }
+    override def benchmarkAllocations(name: BenchmarkName, allocatedBytes: Long, hash: BenchmarkId)(implicit testDetails: TestDetails): Unit = {
+      System.err.println("Completed task: '" + name.value + "' (" + testDetails.id + ") allocating " + (allocatedBytes / 1024) + "kB")
+    }
   }
   
   //TODO: file benchmarker so we can compare over time
@@ -65,4 +69,5 @@ object Benchmarkers {
 
 abstract class Benchmarker {
   def benchmark(name: BenchmarkName, timeSpentMillis: Long, hash: BenchmarkId)(implicit testId: TestDetails): Unit
+  def benchmarkAllocations(name: BenchmarkName, allocatedBytes: Long, hash: BenchmarkId)(implicit testId: TestDetails): Unit
 }
@@ -1,7 +1,7 @@
 package adept.test
 
-import net.sf.ehcache.CacheManager
+import adept.repository.VariantCache
 
 object CacheUtils {
-  val cacheManager = CacheManager.create //this _should_ be safe (if there is a cache issue this is not the best way to find it though) - we speed up the tests because creating the cache manager takes a while
-}
\ No newline at end of file
+  val variantCache = VariantCache.inMemory() //shared between tests, like the loaders in a build would
+}
@@ -17,5 +17,29 @@ object OutputUtils {
       Benchmarkers.nullBenchmarker.benchmark(name, System.currentTimeMillis() - initTime, benchmarkId)(testDetails)
     res
   }
-  
-}
\ No newline at end of file
+
+  /** Like benchmark, but for a time measured elsewhere (e.g. the total of several runs) */
+  def benchmarkTime(name: BenchmarkName, timeSpentMillis: Long, benchmarkId: BenchmarkId)(implicit testDetails: TestDetails): Unit = {
+    if (printOnCommandline)
+      Benchmarkers.systemErrBenchmarker.benchmark(name, timeSpentMillis, benchmarkId)(testDetails)
+    else
+      Benchmarkers.nullBenchmarker.benchmark(name, timeSpentMillis, benchmarkId)(testDetails)
+  }
+
+  /** Like benchmark, but measures the bytes allocated by the current thread instead of time */
+  def benchmarkAllocations[A](name: BenchmarkName, benchmarkId: BenchmarkId)(func: => A)(implicit testDetails: TestDetails): A = {
+    measureAllocations(name, benchmarkId)(func)._1
+  }
+
+  /** Like benchmarkAllocations, but also returns the bytes allocated */
+  def measureAllocations[A](name: BenchmarkName, benchmarkId: BenchmarkId)(func: => A)(implicit testDetails: TestDetails): (A, Long) = {
+    val threadBean = java.lang.management.ManagementFactory.getThreadMXBean.asInstanceOf[com.sun.management.ThreadMXBean]
+    val threadId = Thread.currentThread.getId
+    val initBytes = threadBean.getThreadAllocatedBytes(threadId)
+    val res = func
+    val allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - initBytes
+    if (printOnCommandline)
+      Benchmarkers.systemErrBenchmarker.benchmarkAllocations(name, allocatedBytes, benchmarkId)(testDetails)
+    res -> allocatedBytes
+  }
+}
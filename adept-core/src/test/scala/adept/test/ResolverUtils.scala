@@ -70,10 +70,43 @@ object ResolverUtils extends Matchers {
     state.excluded should contain(id)
   }
 
+  /**
+   * Creates a lattice of `layers` layers with `width` ids each, where every id has 2 variants and
+   * every variant requires all ids in the next layer. Shared requirements are reached through
+   * many paths (width ^ layers), which makes it useful for benchmarks.
+   *
+   * Returns the variants and the requirements on the first layer
+   */
+  def latticeVariants(layers: Int, width: Int): (Set[Variant], Set[Requirement]) = {
+    def layerIds(layer: Int) = (0 until width).map(i => Id("L" + layer + "-" + i))
+    val variants = (0 until layers).flatMap { layer =>
+      val nextRequirements: Set[Requirement] =
+        if (layer == layers - 1) Set.empty
+        else layerIds(layer + 1).map(id => Requirement(id, Set(Constraint(binaryVersion, Set("1.0"))), Set.empty)).toSet
+      layerIds(layer).flatMap { id =>
+        Seq(
+          Variant(id, Set(version -> Set("1.0.0"), binaryVersion -> Set("1.0")), requirements = nextRequirements),
+          Variant(id, Set(version -> Set("2.0.0"), binaryVersion -> Set("2.0")), requirements = nextRequirements))
+      }
+    }.toSet
+    val requirements: Set[Requirement] = layerIds(0).map(id => Requirement(id, Set(Constraint(binaryVersion, Set("1.0"))), Set.empty)).toSet
+    variants -> requirements
+  }
+
   def getMemoryLoader(variants: Set[Variant]) = {
     new MemoryLoader(variants)
   }
 
+  /** Counts the calls to loader */
+  class CountingLoader(loader: VariantsLoader) extends VariantsLoader {
+    val calls = new java.util.concurrent.atomic.AtomicInteger(0)
+
+    def loadVariants(id: Id, constraints: Set[Constraint]): Set[Variant] = {
+      calls.incrementAndGet()
+      loader.loadVariants(id, constraints)
+    }
+  }
+
   def resolve(requirements: Set[Requirement], loader: VariantsLoader): ResolveResult = {
     val resolver = new Resolver(loader)
     resolver.resolve(requirements)
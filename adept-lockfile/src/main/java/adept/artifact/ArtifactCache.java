@@ -5,16 +5,30 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import adept.artifact.models.ArtifactHash;
 import adept.hash.Hasher;
 
+/**
+ * The artifacts of a base dir, stored by hash (in cache/level1/level2/level3)
+ * and by filename.
+ *
+ * The same hash cached with different filenames is stored once: the other
+ * filenames are hard links to the same bytes when the JVM and the file system
+ * support it, copies if not.
+ */
 public class ArtifactCache {
   public static String ARTIFACT_CACHE_DIR = "cache";
+  public static String TMP_DIR = "tmp";
   public static int LEVEL_1_LENGTH = 4;
   public static int LEVEL_2_LENGTH = 4;
   public static int HASH_LENGTH = 64;
   public static int LEVEL_3_LENGTH = HASH_LENGTH - LEVEL_2_LENGTH - LEVEL_2_LENGTH;
+  public static long TMP_FILE_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000; // older temporary files are removed by gc
 
   private static void copy(File src, File dest) throws FileNotFoundException, IOException {
     FileOutputStream fos = null;
@@ -32,6 +46,56 @@ public class ArtifactCache {
     }
   }
 
+  /**
+   * Moves src to dest: renames it if possible, which is atomic when they are
+   * on the same file system. Otherwise copies it to a temporary file next to
+   * dest first, so that dest is never seen half-written.
+   */
+  private static void move(File src, File dest) throws IOException {
+    createParentDir(dest);
+    if (!src.renameTo(dest)) {
+      copyAtomically(src, dest);
+      src.delete();
+    }
+  }
+
+  /** Copies src to dest through a temporary file, so dest is only seen once it is complete */
+  private static void copyAtomically(File src, File dest) throws IOException {
+    File tmpDest = tmpFileNextTo(dest);
+    try {
+      copy(src, tmpDest);
+      if (!tmpDest.renameTo(dest))
+        throw new IOException("Could not move: " + tmpDest.getAbsolutePath() + " to: " + dest.getAbsolutePath());
+    } finally {
+      tmpDest.delete();
+    }
+  }
+
+  /**
+   * Makes dest a hard link to src, or a copy of it if links are not
+   * supported. Either way dest is only seen once it is complete.
+   */
+  private static void linkOrCopy(File src, File dest) throws IOException {
+    File link = tmpFileNextTo(dest);
+    try {
+      if (!FileLinks.link(src, link))
+        copyAtomically(src, dest);
+      else if (!link.renameTo(dest))
+        throw new IOException("Could not move: " + link.getAbsolutePath() + " to: " + dest.getAbsolutePath());
+    } finally {
+      link.delete();
+    }
+  }
+
+  /** A temporary file in the same dir as file, which is not seen as a cached file */
+  private static File tmpFileNextTo(File file) {
+    return new File(file.getParentFile(), "." + file.getName() + ".tmp-" + System.nanoTime());
+  }
+
+  private static boolean isTmpFile(File file) {
+    return file.getName().startsWith(".");
+  }
+
   private static File createParentDir(File file) throws IOException {
     File dir = file.getParentFile();
     if (!(dir.isDirectory() || dir.mkdirs()))
@@ -50,13 +114,41 @@ public class ArtifactCache {
     return new File(level3, filename);
   }
 
+  /**
+   * Creates a temporary file in the cache, to download to: it is on the same
+   * file system as the cache files so it can be moved into place without
+   * being copied
+   */
+  public static File createTmpFile(File baseDir, String filename) throws IOException {
+    File tmpDir = new File(new File(baseDir, ARTIFACT_CACHE_DIR), TMP_DIR);
+    if (!(tmpDir.isDirectory() || tmpDir.mkdirs()))
+      throw new IOException("Could not create dir: " + tmpDir.getAbsolutePath());
+    return File.createTempFile("adept-", "-" + filename, tmpDir);
+  }
+
   private static String hashFile(File file) throws IOException {
-    FileInputStream fis = new FileInputStream(file);
-    try {
-      return Hasher.hash(fis);
-    } finally {
-      fis.close();
+    return Hasher.hash(file);
+  }
+
+  private static VerifiedHashIndex verifiedHashIndex(File baseDir) throws IOException {
+    return VerifiedHashIndex.get(new File(baseDir, ARTIFACT_CACHE_DIR));
+  }
+
+  /**
+   * The hash of a file in the cache: only hashes it if it changed since it
+   * was last verified or if deepVerify is set
+   */
+  private static String verifiedHash(File baseDir, File file, boolean deepVerify) throws IOException {
+    VerifiedHashIndex index = verifiedHashIndex(baseDir);
+    String hash = deepVerify ? null : index.hash(file);
+    if (hash == null) {
+      long size = file.length();
+      long lastModified = file.lastModified();
+      String fileKey = VerifiedHashIndex.fileKey(file);
+      hash = hashFile(file);
+      index.put(file, hash, size, lastModified, fileKey);
     }
+    return hash;
   }
 
   /**
@@ -67,27 +159,69 @@ public class ArtifactCache {
    */
   public static File getOrCreateExistingCacheFile(File baseDir, ArtifactHash hash, String filename, boolean verify)
       throws IOException {
+    return getOrCreateExistingCacheFile(baseDir, hash, filename, verify, false);
+  }
+
+  /**
+   * Same as getOrCreateExistingCacheFile, but when verifying, files are only
+   * hashed if they changed since they were last verified unless deepVerify
+   * is set. A cached file that does not have the expected hash is deleted.
+   */
+  public static File getOrCreateExistingCacheFile(File baseDir, ArtifactHash hash, String filename, boolean verify,
+      boolean deepVerify) throws IOException {
     File currentCacheFile = getCacheFile(baseDir, hash, filename);
 
     if (currentCacheFile.isFile()) {
-      if (verify)
-        assert (hashFile(currentCacheFile).equals(hash.value));
-      return currentCacheFile;
-    } else { // cache file is not there, but perhaps there is one with a
-             // different name?
-      File parentDir = currentCacheFile.getParentFile();
-      if (parentDir != null && parentDir.listFiles() != null) {
-        for (File file : parentDir.listFiles()) {
-          if (!verify || hashFile(file).equals(hash.value)) {
-            copy(file, currentCacheFile);
-            return currentCacheFile;
-          }
+      if (!verify || verifiedHash(baseDir, currentCacheFile, deepVerify).equals(hash.value))
+        return currentCacheFile;
+      else if (!currentCacheFile.delete())
+        throw new IOException("Could not delete: " + currentCacheFile.getAbsolutePath()
+            + " which does not have the expected hash: " + hash.value);
+      verifiedHashIndex(baseDir).remove(currentCacheFile);
+    }
+    // cache file is not there, but perhaps there is one with a different name?
+    File parentDir = currentCacheFile.getParentFile();
+    if (parentDir != null && parentDir.listFiles() != null) {
+      for (File file : parentDir.listFiles()) {
+        if (file.isFile() && !isTmpFile(file)
+            && (!verify || verifiedHash(baseDir, file, deepVerify).equals(hash.value))) {
+          linkOrCopy(file, currentCacheFile);
+          return currentCacheFile;
         }
-        return null;
+      }
+      return null;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Moves srcFile, which was hashed to actualHash while it was written, into
+   * the cache without reading it again. If the hash is already cached with
+   * the same filename, the cached file is kept and srcFile is deleted.
+   * 
+   * srcFile should be created with createTmpFile so it is renamed, not
+   * copied.
+   */
+  public static File cache(File baseDir, File srcFile, String actualHash, ArtifactHash expectedHash, String filename)
+      throws AdeptCacheException, IOException {
+    if (!actualHash.equals(expectedHash.value))
+      throw new AdeptCacheException("Expected file: " + srcFile.getAbsolutePath() + " (with new name: " + filename
+          + ") to have hash: " + expectedHash.value + " but it was: " + actualHash);
+    File cacheFile = getCacheFile(baseDir, expectedHash, filename);
+    ArtifactCacheLock lock = ArtifactCacheLock.lock(baseDir, expectedHash);
+    try {
+      if (cacheFile.isFile()) {
+        srcFile.delete();
       } else {
-        return null;
+        move(srcFile, cacheFile);
+        verifiedHashIndex(baseDir).put(cacheFile, actualHash, cacheFile.length(), cacheFile.lastModified(),
+            VerifiedHashIndex.fileKey(cacheFile));
       }
+    } finally {
+      lock.release();
     }
+    return cacheFile;
   }
 
   public static File cache(File baseDir, File srcFile, ArtifactHash expectedHash, String filename) throws AdeptCacheException,
@@ -97,13 +231,139 @@ public class ArtifactCache {
       throw new AdeptCacheException("Expected file: " + srcFile.getAbsolutePath() + " (with new name: " + filename
           + ") to have hash: " + expectedHash.value + " but it was: " + actualHash);
     else {
-      File existingCacheFile = getOrCreateExistingCacheFile(baseDir, expectedHash, filename, true);
-      if (existingCacheFile == null) {
-        File newCacheFile = getCacheFile(baseDir, expectedHash, filename);
-        copy(srcFile, newCacheFile);
-        return newCacheFile;
-      } else
-        return existingCacheFile;
+      ArtifactCacheLock lock = ArtifactCacheLock.lock(baseDir, expectedHash);
+      try {
+        File existingCacheFile = getOrCreateExistingCacheFile(baseDir, expectedHash, filename, true);
+        if (existingCacheFile == null) {
+          File newCacheFile = getCacheFile(baseDir, expectedHash, filename);
+          copyAtomically(srcFile, newCacheFile);
+          return newCacheFile;
+        } else
+          return existingCacheFile;
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  /** The level 3 dirs of the cache, each of which has the files of one hash */
+  private static List<File> hashDirs(File baseDir) {
+    List<File> hashDirs = new ArrayList<File>();
+    File[] level1Dirs = new File(baseDir, ARTIFACT_CACHE_DIR).listFiles();
+    if (level1Dirs != null) {
+      for (File level1 : level1Dirs) {
+        File[] level2Dirs = level1.getName().length() == LEVEL_1_LENGTH ? level1.listFiles() : null; // skips tmp and locks
+        if (level2Dirs != null) {
+          for (File level2 : level2Dirs) {
+            File[] level3Dirs = level2.listFiles();
+            if (level3Dirs != null) {
+              for (File level3 : level3Dirs) {
+                if (level3.isDirectory())
+                  hashDirs.add(level3);
+              }
+            }
+          }
+        }
+      }
+    }
+    return hashDirs;
+  }
+
+  private static List<File> cachedFiles(File hashDir) {
+    List<File> cachedFiles = new ArrayList<File>();
+    File[] files = hashDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isFile() && !isTmpFile(file))
+          cachedFiles.add(file);
+      }
+    }
+    return cachedFiles;
+  }
+
+  /** The disk usage of the cache in baseDir */
+  public static ArtifactCacheUsage du(File baseDir) {
+    long hashes = 0;
+    long files = 0;
+    long bytes = 0;
+    long duplicateBytes = 0;
+    for (File hashDir : hashDirs(baseDir)) {
+      List<File> cachedFiles = cachedFiles(hashDir);
+      if (!cachedFiles.isEmpty())
+        hashes++;
+      Set<Object> fileKeys = new HashSet<Object>();
+      boolean first = true;
+      for (File file : cachedFiles) {
+        files++;
+        Object fileKey = FileLinks.fileKey(file);
+        if (fileKey == null || fileKeys.add(fileKey)) { // not a link to a file we have already seen
+          bytes += file.length();
+          if (!first)
+            duplicateBytes += file.length();
+          first = false;
+        }
+      }
+    }
+    return new ArtifactCacheUsage(hashes, files, bytes, duplicateBytes);
+  }
+
+  /**
+   * Reclaims the space used by files of the same hash that are not linked to
+   * each other, by replacing them with hard links to one of them (if
+   * supported), and removes temporary files older than
+   * TMP_FILE_MAX_AGE_MILLIS. Files that do not have the hash they are cached
+   * with are left as they are.
+   * 
+   * @return the number of bytes reclaimed
+   */
+  public static long gc(File baseDir) throws IOException {
+    long reclaimed = 0;
+    long now = System.currentTimeMillis();
+    List<File> tmpFiles = new ArrayList<File>();
+    File[] downloadTmpFiles = new File(new File(baseDir, ARTIFACT_CACHE_DIR), TMP_DIR).listFiles();
+    if (downloadTmpFiles != null) {
+      for (File file : downloadTmpFiles)
+        tmpFiles.add(file);
+    }
+    for (File hashDir : hashDirs(baseDir)) {
+      File[] files = hashDir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (isTmpFile(file))
+            tmpFiles.add(file);
+        }
+      }
+
+      String hash = hashDir.getParentFile().getParentFile().getName() + hashDir.getParentFile().getName()
+          + hashDir.getName();
+      File canonical = null;
+      Object canonicalFileKey = null;
+      for (File file : cachedFiles(hashDir)) {
+        if (!verifiedHash(baseDir, file, false).equals(hash)) {
+          continue;
+        } else if (canonical == null) {
+          canonical = file;
+          canonicalFileKey = FileLinks.fileKey(file);
+        } else if (canonicalFileKey != null && !canonicalFileKey.equals(FileLinks.fileKey(file))) {
+          long size = file.length();
+          File link = tmpFileNextTo(file);
+          try {
+            if (FileLinks.link(canonical, link) && link.renameTo(file)) {
+              reclaimed += size;
+              verifiedHashIndex(baseDir).put(file, hash, file.length(), file.lastModified(),
+                  VerifiedHashIndex.fileKey(file));
+            }
+          } finally {
+            link.delete();
+          }
+        }
+      }
+    }
+    for (File file : tmpFiles) {
+      long size = file.length();
+      if (file.isFile() && now - file.lastModified() > TMP_FILE_MAX_AGE_MILLIS && file.delete())
+        reclaimed += size;
     }
+    return reclaimed;
   }
 }
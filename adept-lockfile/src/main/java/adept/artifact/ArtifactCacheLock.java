@@ -0,0 +1,137 @@
+package adept.artifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileLockInterruptionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import adept.artifact.models.ArtifactHash;
+import adept.logging.JavaLogger;
+import adept.logging.TextLogger;
+
+/**
+ * A lock of a hash in an artifact cache, held while the hash is downloaded
+ * and cached so that threads and processes sharing a cache download it once:
+ * the others wait and find it in the cache.
+ *
+ * Threads of this JVM are locked out by a ReentrantLock, other processes by a
+ * FileChannel lock of a file in cache/locks. If the file system does not
+ * support locks, a warning is logged and only the threads of this JVM are
+ * locked out: files are still moved into the cache atomically, so the others
+ * download it as well but do not see half-written files.
+ *
+ * Waiting for a lock can be interrupted (e.g. when a download is cancelled),
+ * in which case an InterruptedIOException is thrown.
+ */
+public class ArtifactCacheLock {
+  public static String LOCKS_DIR = "locks";
+
+  // a lock is removed by its last holder, if no other thread waits for it:
+  private static final ConcurrentHashMap<String, ReentrantLock> threadLocks = new ConcurrentHashMap<String, ReentrantLock>();
+  private static final ConcurrentHashMap<String, RandomAccessFile> lockFiles = new ConcurrentHashMap<String, RandomAccessFile>();
+
+  final private String key;
+  final private ReentrantLock threadLock;
+
+  private ArtifactCacheLock(String key, ReentrantLock threadLock) {
+    this.key = key;
+    this.threadLock = threadLock;
+  }
+
+  public static ArtifactCacheLock lock(File baseDir, ArtifactHash hash) throws IOException {
+    return lock(baseDir, hash, new TextLogger(TextLogger.WARN));
+  }
+
+  /**
+   * Waits until hash can be locked in the cache of baseDir, which must be
+   * followed by release. Is reentrant.
+   */
+  public static ArtifactCacheLock lock(File baseDir, ArtifactHash hash, JavaLogger logger) throws IOException {
+    File lockFile = new File(new File(new File(baseDir, ArtifactCache.ARTIFACT_CACHE_DIR), LOCKS_DIR), hash.value);
+    String key = lockFile.getCanonicalPath();
+    ReentrantLock threadLock;
+    while (true) {
+      threadLock = threadLocks.get(key);
+      if (threadLock == null) {
+        ReentrantLock created = new ReentrantLock();
+        threadLock = threadLocks.putIfAbsent(key, created);
+        if (threadLock == null)
+          threadLock = created;
+      }
+      try {
+        threadLock.lockInterruptibly();
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the lock of: " + hash.value);
+      }
+      if (threadLocks.get(key) == threadLock)
+        break;
+      threadLock.unlock(); // removed by its last holder while we were waiting for it, so lock the current one
+    }
+    if (threadLock.getHoldCount() == 1) {
+      try {
+        RandomAccessFile file = lockFile(lockFile, logger);
+        if (file != null)
+          lockFiles.put(key, file);
+      } catch (IOException exception) {
+        unlock(key, threadLock);
+        throw exception;
+      }
+    }
+    return new ArtifactCacheLock(key, threadLock);
+  }
+
+  /**
+   * Locks lockFile for other processes and returns it (the lock is released
+   * when it is closed) or returns null if the file system does not support
+   * locks.
+   */
+  private static RandomAccessFile lockFile(File lockFile, JavaLogger logger) throws IOException {
+    File dir = lockFile.getParentFile();
+    if (!(dir.isDirectory() || dir.mkdirs()))
+      throw new IOException("Could not create dir: " + dir.getAbsolutePath());
+    RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+    try {
+      file.getChannel().lock();
+      return file;
+    } catch (FileLockInterruptionException exception) {
+      file.close();
+      throw exception;
+    } catch (ClosedChannelException exception) { // closed by an interrupt
+      file.close();
+      throw exception;
+    } catch (IOException exception) {
+      file.close();
+      logger.warn("Could not lock: " + lockFile.getAbsolutePath() + " (" + exception
+          + "). Other processes using the same cache may download the same files.");
+      return null;
+    }
+  }
+
+  private static void unlock(String key, ReentrantLock threadLock) {
+    if (threadLock.getHoldCount() == 1 && !threadLock.hasQueuedThreads())
+      threadLocks.remove(key, threadLock);
+    threadLock.unlock();
+  }
+
+  /** The number of hashes which are locked (or being locked) in this JVM */
+  static int lockedHashes() {
+    return threadLocks.size();
+  }
+
+  public void release() throws IOException {
+    try {
+      if (threadLock.getHoldCount() == 1) {
+        RandomAccessFile file = lockFiles.remove(key);
+        if (file != null)
+          file.close();
+      }
+    } finally {
+      unlock(key, threadLock);
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package adept.artifact;
+
+/**
+ * The disk usage of an artifact cache (see ArtifactCache.du).
+ *
+ * Files that are hard links to each other are only counted once in bytes.
+ * duplicateBytes is how much could be reclaimed by linking files with the
+ * same hash to each other (see ArtifactCache.gc).
+ */
+public class ArtifactCacheUsage {
+  final public long hashes;
+  final public long files;
+  final public long bytes;
+  final public long duplicateBytes;
+
+  public ArtifactCacheUsage(long hashes, long files, long bytes, long duplicateBytes) {
+    this.hashes = hashes;
+    this.files = files;
+    this.bytes = bytes;
+    this.duplicateBytes = duplicateBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "hashes: " + hashes + ", files: " + files + ", bytes: " + bytes + ", duplicate bytes: " + duplicateBytes;
+  }
+}
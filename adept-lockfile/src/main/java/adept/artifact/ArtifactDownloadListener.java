@@ -0,0 +1,12 @@
+package adept.artifact;
+
+/**
+ * Is told about each artifact as soon as it is downloaded, found in the cache
+ * or failed (see adept.lockfile.Lockfile.downloadAsync).
+ *
+ * Is called from the downloading threads, so it should be thread-safe and
+ * return quickly.
+ */
+public interface ArtifactDownloadListener {
+  public void finished(ArtifactDownloadResult result);
+}
@@ -1,25 +1,48 @@
 package adept.artifact;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 import adept.artifact.models.Artifact;
 import adept.artifact.models.ArtifactHash;
 import adept.artifact.models.ArtifactLocation;
+import adept.hash.Hasher;
 import adept.logging.JavaLogger;
 import adept.progress.ProgressMonitor;
+import adept.progress.TickerProgressMonitor;
 
+/**
+ * Downloads an artifact, trying all its locations until one works.
+ *
+ * Hosts that fail are backed off from (see DownloadHosts) and a download that
+ * fails half-way is resumed (using a HTTP Range request) from where it
+ * stopped, on the same or another location. Progress is updated (in kB) as
+ * bytes are transferred.
+ *
+ * Bytes are hashed as they are downloaded, so the downloaded file is not read
+ * again: if tmpFile is in the cache (see ArtifactCache.createTmpFile), it is
+ * renamed into the cache once its hash is verified.
+ */
 public class ArtifactDownloader implements Callable<ArtifactDownloadResult> {
 
   static public String USER_AGENT = "AdeptDownloader/1.0-ALPHA";
   static private int MAX_RETRIES_DEFAULT = 5;
+  static public int TIMEOUT_MILLIS = 30 * 1000;
+  static private int BUFFER_SIZE = 64 * 1024;
 
   final private Artifact artifact;
   final private File tmpFile;
@@ -27,8 +50,17 @@ public class ArtifactDownloader implements Callable<ArtifactDownloadResult> {
   final private int maxRetries;
   final private String filename;
   final private ProgressMonitor progress;
+  final private DownloadHosts hosts;
   private File baseDir;
 
+  private long reportedKilobytes = 0;
+  private long reportedBytes = 0;
+  private TickerProgressMonitor.SubTask subTask = null; // if progress counts sub tasks
+  final private MessageDigest digest = Hasher.newDigest(); // of the bytes in tmpFile
+  private long digestedBytes = 0;
+  private volatile boolean cancelled = false;
+  private volatile URLConnection connection = null; // the current one, closed when cancelled
+
   public ArtifactDownloader(Artifact artifact, String filename, File tmpFile, JavaLogger logger, ProgressMonitor progress) {
     this.artifact = artifact;
     this.tmpFile = tmpFile;
@@ -36,73 +68,274 @@ public class ArtifactDownloader implements Callable<ArtifactDownloadResult> {
     this.logger = logger;
     this.progress = progress;
     this.maxRetries = MAX_RETRIES_DEFAULT;
+    this.hosts = new DownloadHosts();
   }
 
   public ArtifactDownloader(File baseDir, Artifact artifact, String filename, File tmpFile, int maxRetries,
       JavaLogger logger, ProgressMonitor progress) {
+    this(baseDir, artifact, filename, tmpFile, maxRetries, new DownloadHosts(), logger, progress);
+  }
+
+  public ArtifactDownloader(File baseDir, Artifact artifact, String filename, File tmpFile, int maxRetries,
+      DownloadHosts hosts, JavaLogger logger, ProgressMonitor progress) {
     this.baseDir = baseDir;
     this.artifact = artifact;
     this.tmpFile = tmpFile;
     this.filename = filename;
     this.logger = logger;
     this.maxRetries = maxRetries;
+    this.hosts = hosts;
     this.progress = progress;
   }
 
   protected boolean verify = true;
 
+  private static String host(ArtifactLocation location) {
+    try {
+      String host = location.getURL().getAuthority(); // host and port
+      return host == null ? "" : host;
+    } catch (IOException exception) {
+      return location.value;
+    }
+  }
+
+  /**
+   * Locations that failed the least for this artifact first, then the ones of
+   * hosts that are not backed off (or can be retried first)
+   */
+  private List<ArtifactLocation> orderedLocations(final Map<ArtifactLocation, Integer> failures) {
+    List<ArtifactLocation> locations = new ArrayList<ArtifactLocation>(artifact.locations);
+    Collections.sort(locations, new Comparator<ArtifactLocation>() {
+      @Override
+      public int compare(ArtifactLocation a, ArtifactLocation b) {
+        int failuresA = failures.containsKey(a) ? failures.get(a) : 0;
+        int failuresB = failures.containsKey(b) ? failures.get(b) : 0;
+        long retryA = hosts.retryAt(host(a));
+        long retryB = hosts.retryAt(host(b));
+        if (failuresA != failuresB)
+          return failuresA < failuresB ? -1 : 1;
+        else if (retryA != retryB)
+          return retryA < retryB ? -1 : 1;
+        else
+          return a.value.compareTo(b.value); // same order every time
+      }
+    });
+    return locations;
+  }
+
+  /**
+   * Reports that `bytes` have been downloaded. Progress only goes forward: if
+   * a download starts over, bytes are reported again once it is past the most
+   * that was reported before
+   */
+  private void updateProgress(long bytes) {
+    if (bytes <= reportedBytes)
+      return;
+    if (subTask != null)
+      subTask.add(bytes - reportedBytes);
+    reportedBytes = bytes;
+    long kilobytes = bytes / 1024;
+    if (kilobytes > reportedKilobytes) {
+      progress.update((int) (kilobytes - reportedKilobytes));
+      reportedKilobytes = kilobytes;
+    }
+  }
+
+  /** Downloads from url to tmpFile, resuming from what is already in tmpFile if the server supports it */
+  private void download(URL url) throws IOException {
+    long existing = tmpFile.isFile() ? tmpFile.length() : 0;
+    URLConnection conn = url.openConnection();
+    connection = conn;
+    if (cancelled) // might have been cancelled before we got here
+      disconnect(conn);
+    conn.setConnectTimeout(TIMEOUT_MILLIS);
+    conn.setReadTimeout(TIMEOUT_MILLIS);
+    conn.setRequestProperty("User-Agent", USER_AGENT);
+    if (existing > 0)
+      conn.setRequestProperty("Range", "bytes=" + existing + "-");
+    boolean resume = false;
+    if (conn instanceof HttpURLConnection) {
+      int code = ((HttpURLConnection) conn).getResponseCode();
+      if (code == HttpURLConnection.HTTP_PARTIAL) {
+        resume = existing > 0;
+      } else if (code == 416 && existing > 0) { // Range Not Satisfiable: what we have is wrong, start over
+        if (!tmpFile.delete())
+          throw new IOException("Could not delete: " + tmpFile.getAbsolutePath() + " to restart download from: " + url);
+        throw new IOException("Could not resume download from: " + url + " (got HTTP " + code + ")");
+      } else if (code >= 400) {
+        throw new IOException("Could not download from: " + url + " (got HTTP " + code + ")");
+      }
+    }
+    if (resume) {
+      logger.debug("Resuming download of " + filename + " from: " + url + " at byte " + existing);
+      if (digestedBytes != existing) // should not happen, but then we cannot continue the digest
+        digestTmpFile();
+    } else {
+      existing = 0;
+      digest.reset();
+      digestedBytes = 0;
+    }
+    updateProgress(existing);
+
+    long contentLength = -1;
+    try {
+      String contentLengthHeader = conn.getHeaderField("Content-Length");
+      if (contentLengthHeader != null)
+        contentLength = Long.parseLong(contentLengthHeader.trim());
+    } catch (NumberFormatException exception) {
+      // unknown length
+    }
+
+    InputStream is = null;
+    FileOutputStream fos = null;
+    try {
+      is = conn.getInputStream();
+      fos = new FileOutputStream(tmpFile, resume);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long transferred = existing;
+      int len = is.read(buffer);
+      while (len >= 0) {
+        fos.write(buffer, 0, len);
+        digest.update(buffer, 0, len);
+        digestedBytes += len;
+        transferred += len;
+        updateProgress(transferred);
+        len = is.read(buffer);
+      }
+      // HttpURLConnection does not fail if the connection is closed too early,
+      // so check it here to resume instead of failing on the hash later:
+      if (contentLength >= 0 && transferred - existing < contentLength)
+        throw new IOException("Connection closed after " + (transferred - existing) + " of " + contentLength
+            + " bytes from: " + url);
+    } finally {
+      if (is != null) {
+        is.close();
+      }
+      if (fos != null) {
+        fos.close();
+      }
+    }
+  }
+
+  private static void disconnect(URLConnection conn) {
+    if (conn instanceof HttpURLConnection)
+      ((HttpURLConnection) conn).disconnect();
+  }
+
+  /**
+   * Stops the download: closes the current connection (which interrupting the
+   * thread does not) and makes call fail with an InterruptedException
+   */
+  public void cancel() {
+    cancelled = true;
+    URLConnection conn = connection;
+    if (conn != null)
+      disconnect(conn);
+  }
+
+  private void digestTmpFile() throws IOException {
+    digest.reset();
+    digestedBytes = 0;
+    FileInputStream fis = new FileInputStream(tmpFile);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int len = fis.read(buffer);
+      while (len >= 0) {
+        digest.update(buffer, 0, len);
+        digestedBytes += len;
+        len = fis.read(buffer);
+      }
+    } finally {
+      fis.close();
+    }
+  }
+
+  /** The result if the artifact is already cached, null if not */
+  private ArtifactDownloadResult cached() throws IOException {
+    File currentCachedFile = ArtifactCache.getOrCreateExistingCacheFile(baseDir, artifact.hash, filename, verify);
+    if (currentCachedFile != null && currentCachedFile.isFile()) {
+      updateProgress(artifact.size);
+      tmpFile.delete();
+      ArtifactDownloadResult result = new ArtifactDownloadResult(artifact, tmpFile, filename);
+      result.setCachedFile(currentCachedFile);
+      return result;
+    } else {
+      return null;
+    }
+  }
+
   @Override
   public ArtifactDownloadResult call() throws Exception {
-    if (artifact.locations.size() != 1)
-      throw new Exception("Locations different from 1 is not currently implemented and we got: " + artifact); // TODO:
-                                                                                                              // implement!
-    ArtifactLocation location = artifact.locations.iterator().next();
-    URL url = location.getURL();
+    if (artifact.locations.isEmpty())
+      return new ArtifactDownloadResult(artifact, filename, new IOException("No locations for artifact: " + artifact));
+    ArtifactDownloadResult cached = cached();
+    if (cached != null)
+      return cached;
+
+    // only one thread or process downloads the same hash at the same time:
+    ArtifactCacheLock lock = ArtifactCacheLock.lock(baseDir, artifact.hash, logger);
+    try {
+      cached = cached(); // downloaded by someone else while we were waiting
+      if (cached != null)
+        return cached;
+      if (progress instanceof TickerProgressMonitor)
+        subTask = ((TickerProgressMonitor) progress).beginSubTask(filename);
+      return downloadAndCache();
+    } catch (InterruptedException exception) {
+      tmpFile.delete();
+      throw exception;
+    } finally {
+      if (subTask != null)
+        ((TickerProgressMonitor) progress).endSubTask(subTask);
+      lock.release();
+    }
+  }
+
+  private ArtifactDownloadResult downloadAndCache() throws Exception {
+    ArtifactHash hash = artifact.hash;
     int retries = 0;
-    ArtifactDownloadResult result = null;
-    while (result == null) {
-      FileOutputStream fos = null;
-      InputStream is = null;
+    Map<ArtifactLocation, Integer> failures = new HashMap<ArtifactLocation, Integer>();
+    while (true) {
+      if (cancelled || Thread.currentThread().isInterrupted())
+        throw new InterruptedException("Download of: " + filename + " was cancelled");
+      ArtifactLocation location = orderedLocations(failures).get(0);
+      String host = host(location);
+      long wait = hosts.retryAt(host) - System.currentTimeMillis();
+      if (wait > 0) {
+        logger.debug("Waiting " + wait + "ms before retrying: " + location);
+        Thread.sleep(wait);
+      }
       try {
-        ArtifactHash hash = artifact.hash;
-        File currentCachedFile = ArtifactCache.getOrCreateExistingCacheFile(baseDir, hash, filename, verify);
-        if (currentCachedFile != null && currentCachedFile.isFile()) {
-          result = new ArtifactDownloadResult(artifact, tmpFile, filename);
-          result.setCachedFile(currentCachedFile);
-        } else {
-          URLConnection conn = url.openConnection();
-          conn.setRequestProperty("User-Agent", USER_AGENT);
-          is = conn.getInputStream();
-          ReadableByteChannel rbc = Channels.newChannel(is);
-          fos = new FileOutputStream(tmpFile);
-          fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
-          result = new ArtifactDownloadResult(artifact, tmpFile, filename);
-          File srcFile = tmpFile;
-          result.setCachedFile(ArtifactCache.cache(baseDir, srcFile, hash, filename));
+        hosts.acquire(host);
+        try {
+          download(location.getURL());
+        } finally {
+          hosts.release(host);
         }
-        Long kilobytesDownloaded = artifact.size / 1024;
-        progress.update(kilobytesDownloaded.intValue());
-
-      } catch (IOException ioException) {
-        logger.debug("Got exception: " + ioException.getMessage() + " cause: " + ioException.getCause());
-        retries = retries + 1;
-        if (retries > maxRetries)
-          result = new ArtifactDownloadResult(artifact, filename, ioException);
-        else {
-          logger.debug("Sleeping before retrying...");
-          Thread.sleep(500); // sleeping in a callable makes me worried.... make
-                             // sure we are not doing something too stupid
-                             // here...
+        String actualHash = Hasher.hex(digest.digest());
+        digestedBytes = 0;
+        ArtifactDownloadResult result = new ArtifactDownloadResult(artifact, tmpFile, filename);
+        result.setCachedFile(ArtifactCache.cache(baseDir, tmpFile, actualHash, hash, filename));
+        hosts.succeeded(host);
+        return result;
+      } catch (Exception exception) {
+        if (!(exception instanceof IOException || exception instanceof AdeptCacheException))
+          throw exception;
+        if (cancelled || Thread.currentThread().isInterrupted()) // failed because it was cancelled
+          throw new InterruptedException("Download of: " + filename + " was cancelled");
+        if (exception instanceof AdeptCacheException) { // what we downloaded is wrong, start over
+          tmpFile.delete();
         }
-      } finally {
-        if (is != null) {
-          is.close();
-        }
-        if (fos != null) {
-          fos.close();
+        logger.debug("Got exception: " + exception.getMessage() + " cause: " + exception.getCause() + " from: "
+            + location);
+        hosts.failed(host);
+        failures.put(location, failures.containsKey(location) ? failures.get(location) + 1 : 1);
+        retries = retries + 1;
+        if (retries > maxRetries && failures.size() == artifact.locations.size()) { // tried all locations
+          tmpFile.delete();
+          return new ArtifactDownloadResult(artifact, filename, exception);
         }
       }
     }
-    return result;
   }
 }
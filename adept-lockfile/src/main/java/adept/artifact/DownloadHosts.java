@@ -0,0 +1,88 @@
+package adept.artifact;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps track of the hosts artifacts are downloaded from: limits how many
+ * downloads there are at the same time from each host, and backs off from
+ * hosts that failed (exponentially, until the host works again).
+ *
+ * Is thread-safe and meant to be shared by all the downloads of a lockfile.
+ */
+public class DownloadHosts {
+  static public int MAX_DOWNLOADS_PER_HOST_DEFAULT = 6;
+  static public long BACKOFF_MILLIS_DEFAULT = 500;
+  static public long MAX_BACKOFF_MILLIS_DEFAULT = 30 * 1000;
+
+  final private int maxDownloadsPerHost;
+  final private long backoffMillis;
+  final private long maxBackoffMillis;
+  final private ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+  private class Host {
+    final Semaphore downloads = new Semaphore(maxDownloadsPerHost, true);
+    int failures = 0; // guarded by this
+    long retryAt = 0; // guarded by this
+  }
+
+  public DownloadHosts() {
+    this(MAX_DOWNLOADS_PER_HOST_DEFAULT, BACKOFF_MILLIS_DEFAULT, MAX_BACKOFF_MILLIS_DEFAULT);
+  }
+
+  public DownloadHosts(int maxDownloadsPerHost, long backoffMillis, long maxBackoffMillis) {
+    if (maxDownloadsPerHost < 1)
+      throw new IllegalArgumentException("Cannot download with less than 1 download per host: " + maxDownloadsPerHost);
+    this.maxDownloadsPerHost = maxDownloadsPerHost;
+    this.backoffMillis = backoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  private Host get(String host) {
+    Host current = hosts.get(host);
+    if (current == null) {
+      Host created = new Host();
+      current = hosts.putIfAbsent(host, created);
+      if (current == null)
+        current = created;
+    }
+    return current;
+  }
+
+  /**
+   * Waits until a download from host is allowed, which must be followed by
+   * release when the download is done
+   */
+  public void acquire(String host) throws InterruptedException {
+    get(host).downloads.acquire();
+  }
+
+  public void release(String host) {
+    get(host).downloads.release();
+  }
+
+  /** The time (in millis) until which host should not be used, 0 if it can */
+  public long retryAt(String host) {
+    Host current = get(host);
+    synchronized (current) {
+      return current.retryAt;
+    }
+  }
+
+  public void failed(String host) {
+    Host current = get(host);
+    synchronized (current) {
+      current.failures += 1;
+      long backoff = backoffMillis << Math.min(current.failures - 1, 20); // 20: do not overflow
+      current.retryAt = System.currentTimeMillis() + Math.min(backoff, maxBackoffMillis);
+    }
+  }
+
+  public void succeeded(String host) {
+    Host current = get(host);
+    synchronized (current) {
+      current.failures = 0;
+      current.retryAt = 0;
+    }
+  }
+}
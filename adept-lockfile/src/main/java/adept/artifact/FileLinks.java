@@ -0,0 +1,73 @@
+package adept.artifact;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Hard links and file identities, which need java.nio.file: it is used (by
+ * reflection) when running on Java 7 or later, while still compiling for Java
+ * 6. On Java 6 files cannot be linked and have no known identity.
+ */
+class FileLinks {
+  private static Method toPath;
+  private static Method createLink;
+  private static Method readAttributes;
+  private static Method fileKey;
+  private static Object noLinkOptions;
+  private static Class<?> basicFileAttributes;
+
+  static {
+    try {
+      Class<?> path = Class.forName("java.nio.file.Path");
+      Class<?> files = Class.forName("java.nio.file.Files");
+      Class<?> linkOption = Class.forName("java.nio.file.LinkOption");
+      basicFileAttributes = Class.forName("java.nio.file.attribute.BasicFileAttributes");
+      toPath = File.class.getMethod("toPath");
+      createLink = files.getMethod("createLink", path, path);
+      noLinkOptions = Array.newInstance(linkOption, 0);
+      readAttributes = files.getMethod("readAttributes", path, Class.class, noLinkOptions.getClass());
+      fileKey = basicFileAttributes.getMethod("fileKey");
+    } catch (Exception exception) {
+      toPath = null; // Java 6
+    }
+  }
+
+  static boolean isSupported() {
+    return toPath != null;
+  }
+
+  /**
+   * Creates link as a hard link to existing. Returns false if it could not
+   * (not supported by the JVM or by the file system, link exists, ...)
+   */
+  static boolean link(File existing, File link) {
+    if (!isSupported())
+      return false;
+    try {
+      createLink.invoke(null, toPath.invoke(link), toPath.invoke(existing));
+      return true;
+    } catch (InvocationTargetException exception) {
+      return false;
+    } catch (IllegalAccessException exception) {
+      return false;
+    }
+  }
+
+  /**
+   * An object which is equal for files that are the same file (e.g. hard
+   * links to each other), or null if unknown
+   */
+  static Object fileKey(File file) {
+    if (!isSupported())
+      return null;
+    try {
+      return fileKey.invoke(readAttributes.invoke(null, toPath.invoke(file), basicFileAttributes, noLinkOptions));
+    } catch (InvocationTargetException exception) {
+      return null;
+    } catch (IllegalAccessException exception) {
+      return null;
+    }
+  }
+}
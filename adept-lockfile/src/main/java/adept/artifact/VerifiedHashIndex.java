@@ -0,0 +1,205 @@
+package adept.artifact;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The hashes of the files in the artifact cache that have been verified, so
+ * that files which did not change since (same size, last modified time and
+ * file key, see FileLinks.fileKey) are not hashed again. The file key tells
+ * files which replaced a verified file (e.g. by a rename, as gc does) apart,
+ * even if they have the same size and last modified time. It is only known on
+ * Java 7 or later, and on file systems which have one.
+ *
+ * Stored in the cache dir as lines of: hash, size, last modified, time of
+ * verification, file key and path (relative to the cache dir). New entries are appended
+ * and later lines replace earlier ones of the same path, so processes sharing
+ * a cache can append to the same file: entries of other processes are seen
+ * the next time the index is loaded.
+ *
+ * Is thread-safe.
+ */
+class VerifiedHashIndex {
+  static String INDEX_FILE = "verified-hashes";
+  // last modified times are only stored in seconds (or 2 seconds) on some
+  // file systems, so a file changed right after it was verified could look
+  // unchanged:
+  static long RACY_MILLIS = 2000;
+  // entries verified longer ago than this are verified again:
+  static long REVERIFY_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+  private static final String REMOVED = "-";
+  // file keys are prefixed, so lines without one (written by earlier versions) are skipped:
+  private static final String KEY_PREFIX = "key=";
+  private static final String ENCODING = "UTF-8";
+
+  private static final Map<File, VerifiedHashIndex> indexes = new HashMap<File, VerifiedHashIndex>();
+
+  private static class Entry {
+    final String hash;
+    final long size;
+    final long lastModified;
+    final long verifiedAt;
+    final String fileKey;
+
+    Entry(String hash, long size, long lastModified, long verifiedAt, String fileKey) {
+      this.hash = hash;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.verifiedAt = verifiedAt;
+      this.fileKey = fileKey;
+    }
+
+    String line(String path) {
+      return hash + " " + size + " " + lastModified + " " + verifiedAt + " " + fileKey + " " + path + "\n";
+    }
+  }
+
+  final private File cacheDir;
+  final private File indexFile;
+  final private Map<String, Entry> entries = new HashMap<String, Entry>();
+  private int lines = 0;
+  private boolean writable = true;
+
+  private VerifiedHashIndex(File cacheDir) {
+    this.cacheDir = cacheDir;
+    this.indexFile = new File(cacheDir, INDEX_FILE);
+  }
+
+  /** The index of cacheDir, loaded once per process */
+  static VerifiedHashIndex get(File cacheDir) throws IOException {
+    File key = cacheDir.getCanonicalFile();
+    synchronized (indexes) {
+      VerifiedHashIndex index = indexes.get(key);
+      if (index == null) {
+        index = new VerifiedHashIndex(key);
+        index.load();
+        indexes.put(key, index);
+      }
+      return index;
+    }
+  }
+
+  /** The file key of file (see FileLinks.fileKey) as it is stored in the index */
+  static String fileKey(File file) {
+    Object fileKey = FileLinks.fileKey(file);
+    return KEY_PREFIX + (fileKey == null ? "" : fileKey.toString().replace(' ', '_'));
+  }
+
+  private String path(File file) throws IOException {
+    String cachePath = cacheDir.getPath() + File.separator;
+    String path = file.getCanonicalPath();
+    if (!path.startsWith(cachePath))
+      throw new IOException("Cannot index: " + path + " because it is not in the cache: " + cacheDir.getPath());
+    return path.substring(cachePath.length()).replace(File.separatorChar, '/');
+  }
+
+  private synchronized void load() throws IOException {
+    if (!indexFile.isFile())
+      return;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), ENCODING));
+    try {
+      String line = reader.readLine();
+      while (line != null) {
+        String[] columns = line.split(" ", 6);
+        try {
+          if (columns.length == 6 && columns[4].startsWith(KEY_PREFIX)) {
+            if (columns[0].equals(REMOVED))
+              entries.remove(columns[5]);
+            else
+              entries.put(columns[5], new Entry(columns[0], Long.parseLong(columns[1]), Long.parseLong(columns[2]),
+                  Long.parseLong(columns[3]), columns[4]));
+          }
+        } catch (NumberFormatException exception) {
+          // a line that was not completely written, skip it
+        }
+        lines++;
+        line = reader.readLine();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * The verified hash of file, or null if file might have changed since it was
+   * verified (or if it never was)
+   */
+  synchronized String hash(File file) throws IOException {
+    Entry entry = entries.get(path(file));
+    if (entry != null && entry.size == file.length() && entry.lastModified == file.lastModified()
+        && entry.fileKey.equals(fileKey(file)) && entry.verifiedAt - entry.lastModified > RACY_MILLIS
+        && System.currentTimeMillis() - entry.verifiedAt < REVERIFY_MILLIS)
+      return entry.hash;
+    else
+      return null;
+  }
+
+  /**
+   * Records that file had hash when it had size, lastModified and fileKey
+   * (which should be read before it was hashed): nothing is recorded if it
+   * changed since
+   */
+  synchronized void put(File file, String hash, long size, long lastModified, String fileKey) throws IOException {
+    if (file.length() != size || file.lastModified() != lastModified || !fileKey(file).equals(fileKey))
+      return;
+    String path = path(file);
+    Entry entry = new Entry(hash, size, lastModified, System.currentTimeMillis(), fileKey);
+    entries.put(path, entry);
+    append(entry.line(path));
+  }
+
+  synchronized void remove(File file) throws IOException {
+    String path = path(file);
+    if (entries.remove(path) != null)
+      append(REMOVED + " 0 0 0 " + KEY_PREFIX + " " + path + "\n");
+  }
+
+  private void append(String line) {
+    if (!writable)
+      return;
+    try {
+      if (lines > 2 * entries.size() + 1000) {
+        compact();
+      } else {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true), ENCODING);
+        try {
+          writer.write(line); // one write so lines of other processes are not mixed in
+        } finally {
+          writer.close();
+        }
+        lines++;
+      }
+    } catch (IOException exception) {
+      writable = false; // the index is only there to make things faster, so go on without it
+    }
+  }
+
+  /** Rewrites the index without the lines that were replaced */
+  private void compact() throws IOException {
+    File tmpFile = new File(cacheDir, INDEX_FILE + ".tmp-" + System.nanoTime());
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), ENCODING);
+      try {
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+          writer.write(mapEntry.getValue().line(mapEntry.getKey()));
+        }
+      } finally {
+        writer.close();
+      }
+      if (!tmpFile.renameTo(indexFile))
+        throw new IOException("Could not move: " + tmpFile.getAbsolutePath() + " to: " + indexFile.getAbsolutePath());
+      lines = entries.size();
+    } finally {
+      tmpFile.delete();
+    }
+  }
+}
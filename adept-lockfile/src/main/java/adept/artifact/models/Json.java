@@ -0,0 +1,20 @@
+package adept.artifact.models;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+public class Json {
+  /**
+   * The factory of all parsers and generators (in adept.lockfile and
+   * adept.services.JsonService): it is thread-safe once configured, costly to
+   * create, and the buffers and field name tables it recycles are only reused
+   * if it is shared.
+   *
+   * Streams are not closed by parsers or generators, but by whoever opened
+   * them (who might want to read or write more).
+   */
+  public static final JsonFactory FACTORY = new JsonFactory()
+      .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)
+      .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+}
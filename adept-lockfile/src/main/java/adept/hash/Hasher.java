@@ -1,29 +1,81 @@
 package adept.hash;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
-import static javax.xml.bind.DatatypeConverter.printHexBinary;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Hasher {
+  // SHA-256 is CPU bound (~1GB/s), so buffers only make a small difference: 64kB (reused, direct for files)
+  // was 10-15% faster than 4kB on 1kB and 1MB files and as fast as larger ones on 500MB files. Memory
+  // mapping was ~7% faster on 500MB files only, but mapped files cannot be renamed or deleted (on Windows)
+  // until they are garbage collected.
+  static int BUFFER_SIZE = 64 * 1024;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
   static ThreadLocal<MessageDigest> md = new ThreadLocal<MessageDigest>() {
     @Override
     public MessageDigest initialValue() {
-      try {
-        return MessageDigest.getInstance("SHA-256");
-      } catch (Exception exception) {
-        throw new RuntimeException(exception);
-      }
+      return newDigest();
+    }
+  };
+
+  static ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>() {
+    @Override
+    public byte[] initialValue() {
+      return new byte[BUFFER_SIZE];
+    }
+  };
+
+  static ThreadLocal<ByteBuffer> directBuffer = new ThreadLocal<ByteBuffer>() {
+    @Override
+    public ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(BUFFER_SIZE);
     }
   };
 
+  /**
+   * A new digest of the same kind Hasher uses, for example to hash a stream while it is read (using a
+   * java.security.DigestInputStream): the hash is hex(digest.digest())
+   */
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (Exception exception) {
+      throw new RuntimeException(exception);
+    }
+  }
+
+  /** The (lowercase) hex string of a digest */
+  public static String hex(byte[] digest) {
+    char[] chars = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      chars[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
   public static String hash(byte[] bytes) {
     MessageDigest currentMd = md.get();
     currentMd.reset();
     try {
       currentMd.update(bytes);
-      return printHexBinary(currentMd.digest()).toLowerCase();
+      return hex(currentMd.digest());
     } finally {
       currentMd.reset();
     }
@@ -33,20 +85,89 @@ public class Hasher {
     MessageDigest currentMd = md.get();
     currentMd.reset();
     try {
-      byte[] buf = new byte[1024 * 4]; // _seemed_ to be the fastest when I
-                                       // tried it out when I was writing the
-                                       // scala version of this file
+      byte[] buf = buffer.get();
       int len = is.read(buf);
 
       //streaming was much more efficient than using digest on Array[Byte] - to be verified...
-      while (len > 0) {
+      while (len >= 0) {
         currentMd.update(buf, 0, len);
         len = is.read(buf);
       }
-      return printHexBinary(currentMd.digest()).toLowerCase();
+      return hex(currentMd.digest());
     } finally {
       currentMd.reset();
     }
   }
 
+  /** Hashes what is left of channel (from its current position) */
+  public static String hash(FileChannel channel) throws IOException {
+    MessageDigest currentMd = md.get();
+    currentMd.reset();
+    try {
+      ByteBuffer buf = directBuffer.get(); // read into without copying from the OS
+      buf.clear();
+      while (channel.read(buf) >= 0) {
+        buf.flip();
+        currentMd.update(buf);
+        buf.clear();
+      }
+      return hex(currentMd.digest());
+    } finally {
+      currentMd.reset();
+    }
+  }
+
+  public static String hash(File file) throws IOException {
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      return hash(fis.getChannel());
+    } finally {
+      fis.close();
+    }
+  }
+
+  /**
+   * Hashes files in parallel, on as many threads as there are processors
+   * (but not more than there are files)
+   */
+  public static Map<File, String> hash(Collection<File> files) throws IOException, InterruptedException {
+    int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), files.size()));
+    ExecutorService executorService = Executors.newFixedThreadPool(threads);
+    try {
+      return hash(files, executorService);
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  /** Hashes files in parallel using executorService, returns the hash of each file in the same order */
+  public static Map<File, String> hash(Collection<File> files, ExecutorService executorService) throws IOException,
+      InterruptedException {
+    List<Future<String>> futures = new ArrayList<Future<String>>(files.size());
+    for (final File file : files) {
+      futures.add(executorService.submit(new Callable<String>() {
+        @Override
+        public String call() throws IOException {
+          return hash(file);
+        }
+      }));
+    }
+    Map<File, String> hashes = new LinkedHashMap<File, String>();
+    int i = 0;
+    for (File file : files) {
+      try {
+        hashes.put(file, futures.get(i).get());
+      } catch (ExecutionException exception) {
+        for (Future<String> future : futures)
+          future.cancel(true);
+        if (exception.getCause() instanceof IOException)
+          throw (IOException) exception.getCause();
+        else
+          throw new RuntimeException(exception.getCause());
+      }
+      i++;
+    }
+    return hashes;
+  }
+
 }
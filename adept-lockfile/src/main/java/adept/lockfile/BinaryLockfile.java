@@ -0,0 +1,426 @@
+package adept.lockfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import adept.artifact.models.ArtifactAttribute;
+import adept.artifact.models.ArtifactHash;
+import adept.artifact.models.ArtifactLocation;
+
+/**
+ * A binary encoding of a lockfile, written next to its JSON file (see
+ * Lockfile.read) so it can be read faster the next time.
+ *
+ * All strings are written once, in a table, and referred to by index. The
+ * file is read into memory and decoded at once (strings only once); sizes
+ * and offsets are checked against the file, so a corrupt file is not used
+ * (the JSON is read instead).
+ *
+ * It knows the size and last modification time of the JSON file it was
+ * written for and is not used if they changed.
+ */
+class BinaryLockfile {
+  static String SUFFIX = ".bin";
+
+  private static final int MAGIC = 0x41444c4b; // ADLK
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+  private static final int NULL = -1; // null string or set
+  private static final int NULL_WRAPPER = -2; // null Id, Commit, ... (-1 is an Id, ... with a null value)
+
+  private final ByteBuffer buffer; // the file, in memory
+  private final String[] strings; // decoded strings by index
+  private final int stringsOffset;
+  private int position; // of the next int to decode
+
+  private BinaryLockfile(ByteBuffer buffer) {
+    this.buffer = buffer;
+    int stringCount = buffer.getInt(HEADER_SIZE - 4);
+    if (stringCount < 0 || stringCount > (buffer.limit() - HEADER_SIZE) / 4)
+      throw new CorruptException("string count: " + stringCount);
+    this.strings = new String[stringCount];
+    this.stringsOffset = HEADER_SIZE;
+  }
+
+  /** Thrown while decoding when a size or offset does not fit in the file */
+  private static class CorruptException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    CorruptException(String message) {
+      super("Corrupt binary lockfile, unexpected " + message);
+    }
+  }
+
+  static File binaryFile(File jsonFile) {
+    return new File(jsonFile.getPath() + SUFFIX);
+  }
+
+  // Reading:
+
+  /**
+   * The lockfile in binaryFile, or null if it is not there, was not written
+   * for a JSON file with jsonLength and jsonLastModified or is corrupt (e.g.
+   * if it was truncated)
+   */
+  static Lockfile read(File binaryFile, long jsonLength, long jsonLastModified) throws IOException {
+    if (!binaryFile.isFile() || binaryFile.length() > Integer.MAX_VALUE)
+      return null;
+    // read into memory, not mapped: a mapped file cannot be replaced on all platforms (Windows) while it is in use
+    byte[] bytes = new byte[(int) binaryFile.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(binaryFile));
+    try {
+      in.readFully(bytes);
+    } catch (EOFException exception) { // truncated while we were reading it
+      return null;
+    } finally {
+      in.close();
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+        || buffer.getLong(8) != jsonLength || buffer.getLong(16) != jsonLastModified)
+      return null;
+    try {
+      return new BinaryLockfile(buffer).decode();
+    } catch (RuntimeException exception) { // corrupt: decoding fails before the lockfile is returned
+      return null;
+    }
+  }
+
+  /** Decodes all sections (strings only once) */
+  private Lockfile decode() {
+    int sections = stringsOffset + 4 * strings.length;
+    Set<LockfileRequirement> requirements = null;
+    position = buffer.getInt(sections);
+    int size = nextSize();
+    if (size != NULL) {
+      requirements = new HashSet<LockfileRequirement>(size * 2);
+      for (int i = 0; i < size; i++) {
+        requirements.add(nextRequirement());
+      }
+    }
+    Set<LockfileContext> context = null;
+    position = buffer.getInt(sections + 4);
+    size = nextSize();
+    if (size != NULL) {
+      context = new HashSet<LockfileContext>(size * 2);
+      for (int i = 0; i < size; i++) {
+        context.add(nextContext());
+      }
+    }
+    Set<LockfileArtifact> artifacts = null;
+    position = buffer.getInt(sections + 8);
+    size = nextSize();
+    if (size != NULL) {
+      artifacts = new HashSet<LockfileArtifact>(size * 2);
+      for (int i = 0; i < size; i++) {
+        artifacts.add(nextArtifact());
+      }
+    }
+    return new Lockfile(requirements, context, artifacts);
+  }
+
+  private int nextInt() {
+    int value = buffer.getInt(position);
+    position += 4;
+    return value;
+  }
+
+  /** The size of a set (or NULL), each element takes at least an int so it must fit in what is left */
+  private int nextSize() {
+    int size = nextInt();
+    if (size != NULL && (size < 0 || size > (buffer.limit() - position) / 4))
+      throw new CorruptException("size: " + size + " at: " + position);
+    return size;
+  }
+
+  private String string(int index) {
+    if (index < 0)
+      return null;
+    String string = strings[index];
+    if (string == null) {
+      int offset = buffer.getInt(stringsOffset + 4 * index);
+      int length = buffer.getInt(offset);
+      if (length < 0 || length > buffer.limit() - offset - 4)
+        throw new CorruptException("string length: " + length + " at: " + offset);
+      try {
+        string = new String(buffer.array(), offset + 4, length, "UTF-8");
+      } catch (java.io.UnsupportedEncodingException exception) {
+        throw new RuntimeException(exception);
+      }
+      strings[index] = string;
+    }
+    return string;
+  }
+
+  private String nextString() {
+    return string(nextInt());
+  }
+
+  private Set<String> nextStrings() {
+    int size = nextSize();
+    if (size == NULL)
+      return null;
+    Set<String> values = new HashSet<String>(size * 2);
+    for (int i = 0; i < size; i++) {
+      values.add(nextString());
+    }
+    return values;
+  }
+
+  private Id nextId() {
+    int index = nextInt();
+    return index == NULL_WRAPPER ? null : new Id(string(index));
+  }
+
+  private Set<Id> nextIds() {
+    int size = nextSize();
+    if (size == NULL)
+      return null;
+    Set<Id> ids = new HashSet<Id>(size * 2);
+    for (int i = 0; i < size; i++) {
+      ids.add(nextId());
+    }
+    return ids;
+  }
+
+  private LockfileRequirement nextRequirement() {
+    Id id = nextId();
+    Set<Constraint> constraints = null;
+    int size = nextSize();
+    if (size != NULL) {
+      constraints = new HashSet<Constraint>(size * 2);
+      for (int i = 0; i < size; i++) {
+        String name = nextString();
+        constraints.add(new Constraint(name, nextStrings()));
+      }
+    }
+    return new LockfileRequirement(id, constraints, nextIds());
+  }
+
+  private LockfileContext nextContext() {
+    String info = nextString();
+    Id id = nextId();
+    int repositoryIndex = nextInt();
+    RepositoryName repository = repositoryIndex == NULL_WRAPPER ? null : new RepositoryName(string(repositoryIndex));
+    Set<RepositoryLocation> locations = null;
+    int size = nextSize();
+    if (size != NULL) {
+      locations = new HashSet<RepositoryLocation>(size * 2);
+      for (int i = 0; i < size; i++) {
+        locations.add(new RepositoryLocation(nextString()));
+      }
+    }
+    int commitIndex = nextInt();
+    Commit commit = commitIndex == NULL_WRAPPER ? null : new Commit(string(commitIndex));
+    int hashIndex = nextInt();
+    VariantHash hash = hashIndex == NULL_WRAPPER ? null : new VariantHash(string(hashIndex));
+    return new LockfileContext(info, id, repository, locations, commit, hash);
+  }
+
+  private LockfileArtifact nextArtifact() {
+    int hashIndex = nextInt();
+    ArtifactHash hash = hashIndex == NULL_WRAPPER ? null : new ArtifactHash(string(hashIndex));
+    boolean hasSize = nextInt() != 0;
+    int sizeValue = nextInt();
+    Integer size = hasSize ? sizeValue : null;
+    Set<ArtifactLocation> locations = null;
+    int locationsSize = nextSize();
+    if (locationsSize != NULL) {
+      locations = new HashSet<ArtifactLocation>(locationsSize * 2);
+      for (int i = 0; i < locationsSize; i++) {
+        locations.add(new ArtifactLocation(nextString()));
+      }
+    }
+    Set<ArtifactAttribute> attributes = null;
+    int attributesSize = nextSize();
+    if (attributesSize != NULL) {
+      attributes = new HashSet<ArtifactAttribute>(attributesSize * 2);
+      for (int i = 0; i < attributesSize; i++) {
+        String name = nextString();
+        attributes.add(new ArtifactAttribute(name, nextStrings()));
+      }
+    }
+    return new LockfileArtifact(hash, size, locations, attributes, nextString());
+  }
+
+  // Writing:
+
+  /**
+   * Writes lockfile to binaryFile (through a temporary file), for a JSON file
+   * with jsonLength and jsonLastModified
+   */
+  static void write(Lockfile lockfile, File binaryFile, long jsonLength, long jsonLastModified) throws IOException {
+    Writer writer = new Writer();
+    ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream();
+    DataOutputStream sections = new DataOutputStream(sectionBytes);
+    int[] sectionOffsets = new int[3];
+
+    sectionOffsets[0] = sections.size();
+    writer.requirements(lockfile.requirements, sections);
+    sectionOffsets[1] = sections.size();
+    writer.context(lockfile.context, sections);
+    sectionOffsets[2] = sections.size();
+    writer.artifacts(lockfile.artifacts, sections);
+
+    File tmpFile = new File(binaryFile.getPath() + ".tmp-" + System.nanoTime());
+    try {
+      DataOutputStream out = new DataOutputStream(new java.io.BufferedOutputStream(new FileOutputStream(tmpFile)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(jsonLength);
+        out.writeLong(jsonLastModified);
+        out.writeInt(writer.strings.size());
+        int offset = HEADER_SIZE + 4 * writer.strings.size() + 4 * sectionOffsets.length;
+        List<byte[]> stringBytes = new ArrayList<byte[]>(writer.strings.size());
+        for (String string : writer.strings) {
+          byte[] bytes = string.getBytes("UTF-8");
+          stringBytes.add(bytes);
+          out.writeInt(offset);
+          offset += 4 + bytes.length;
+        }
+        for (int sectionOffset : sectionOffsets) {
+          out.writeInt(offset + sectionOffset);
+        }
+        for (byte[] bytes : stringBytes) {
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+        sectionBytes.writeTo(out);
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(binaryFile))
+        throw new IOException("Could not move: " + tmpFile.getAbsolutePath() + " to: " + binaryFile.getAbsolutePath());
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  private static class Writer {
+    final List<String> strings = new ArrayList<String>();
+    final private Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+    int index(String string) {
+      if (string == null)
+        return NULL;
+      Integer index = indexes.get(string);
+      if (index == null) {
+        index = strings.size();
+        strings.add(string);
+        indexes.put(string, index);
+      }
+      return index;
+    }
+
+    void strings(Set<String> values, DataOutputStream out) throws IOException {
+      if (values == null) {
+        out.writeInt(NULL);
+      } else {
+        out.writeInt(values.size());
+        for (String value : values) {
+          out.writeInt(index(value));
+        }
+      }
+    }
+
+    void id(Id id, DataOutputStream out) throws IOException {
+      out.writeInt(id == null ? NULL_WRAPPER : index(id.value));
+    }
+
+    void requirements(Set<LockfileRequirement> requirements, DataOutputStream out) throws IOException {
+      if (requirements == null) {
+        out.writeInt(NULL);
+        return;
+      }
+      out.writeInt(requirements.size());
+      for (LockfileRequirement requirement : requirements) {
+        id(requirement.id, out);
+        if (requirement.constraints == null) {
+          out.writeInt(NULL);
+        } else {
+          out.writeInt(requirement.constraints.size());
+          for (Constraint constraint : requirement.constraints) {
+            out.writeInt(index(constraint.name));
+            strings(constraint.values, out);
+          }
+        }
+        if (requirement.exclusions == null) {
+          out.writeInt(NULL);
+        } else {
+          out.writeInt(requirement.exclusions.size());
+          for (Id exclusion : requirement.exclusions) {
+            id(exclusion, out);
+          }
+        }
+      }
+    }
+
+    void context(Set<LockfileContext> context, DataOutputStream out) throws IOException {
+      if (context == null) {
+        out.writeInt(NULL);
+        return;
+      }
+      out.writeInt(context.size());
+      for (LockfileContext value : context) {
+        out.writeInt(index(value.info));
+        id(value.id, out);
+        out.writeInt(value.repository == null ? NULL_WRAPPER : index(value.repository.value));
+        if (value.locations == null) {
+          out.writeInt(NULL);
+        } else {
+          out.writeInt(value.locations.size());
+          for (RepositoryLocation location : value.locations) {
+            out.writeInt(index(location.value));
+          }
+        }
+        out.writeInt(value.commit == null ? NULL_WRAPPER : index(value.commit.value));
+        out.writeInt(value.hash == null ? NULL_WRAPPER : index(value.hash.value));
+      }
+    }
+
+    void artifacts(Set<LockfileArtifact> artifacts, DataOutputStream out) throws IOException {
+      if (artifacts == null) {
+        out.writeInt(NULL);
+        return;
+      }
+      out.writeInt(artifacts.size());
+      for (LockfileArtifact artifact : artifacts) {
+        out.writeInt(artifact.hash == null ? NULL_WRAPPER : index(artifact.hash.value));
+        out.writeInt(artifact.size == null ? 0 : 1);
+        out.writeInt(artifact.size == null ? 0 : artifact.size);
+        if (artifact.locations == null) {
+          out.writeInt(NULL);
+        } else {
+          out.writeInt(artifact.locations.size());
+          for (ArtifactLocation location : artifact.locations) {
+            out.writeInt(index(location.value));
+          }
+        }
+        if (artifact.attributes == null) {
+          out.writeInt(NULL);
+        } else {
+          out.writeInt(artifact.attributes.size());
+          for (ArtifactAttribute attribute : artifact.attributes) {
+            out.writeInt(index(attribute.name));
+            strings(attribute.values, out);
+          }
+        }
+        out.writeInt(index(artifact.filename));
+      }
+    }
+  }
+}
@@ -2,14 +2,16 @@ package adept.lockfile;
 
 import adept.artifact.AdeptCacheException;
 import adept.artifact.ArtifactCache;
+import adept.artifact.ArtifactDownloadListener;
 import adept.artifact.ArtifactDownloadResult;
 import adept.artifact.ArtifactDownloader;
+import adept.artifact.DownloadHosts;
 import adept.artifact.models.ArtifactAttribute;
 import adept.artifact.models.ArtifactHash;
 import adept.artifact.models.ArtifactLocation;
+import adept.artifact.models.Json;
 import adept.logging.JavaLogger;
 import adept.progress.ProgressMonitor;
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
@@ -196,17 +198,20 @@ public class Lockfile {
         }
       } else if (fieldName.equals("filename")) {
           filename = parser.getValueAsString();
-          break;
       }
     }
     return new LockfileArtifact(hash, size, locations, attributes, filename);
   }
 
+  // last modified times are only stored in seconds (or 2 seconds) on some file systems:
+  static long BINARY_MIN_AGE_MILLIS = 2000;
+
+  /** Reads the lockfile in data, which is not closed */
   public static Lockfile read(Reader data) throws LockfileParseException, IOException {
     Set<LockfileRequirement> requirements = null;
     Set<LockfileContext> contexts = null;
     Set<LockfileArtifact> artifacts = null;
-    JsonParser parser = new JsonFactory().createParser(data);
+    JsonParser parser = Json.FACTORY.createParser(data);
     try {
       // Get START_OBJECT
       parser.nextToken();
@@ -241,15 +246,38 @@ public class Lockfile {
     return new Lockfile(requirements, contexts, artifacts);
   }
 
+  /**
+   * Reads the lockfile in file. Its binary encoding (see BinaryLockfile),
+   * next to file, is read instead if it is up-to-date, and written if not.
+   */
   public static Lockfile read(File file) throws LockfileParseException, IOException {
-    FileReader reader = null;
+    Reader reader = null;
     try {
       if (!file.isFile()) {
         return new Lockfile(new HashSet<LockfileRequirement>(), new HashSet<LockfileContext>(),
             new HashSet<LockfileArtifact>());
       } else {
-        reader = new FileReader(file);
-        return read(reader);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        File binaryFile = BinaryLockfile.binaryFile(file);
+        try {
+          Lockfile binaryLockfile = BinaryLockfile.read(binaryFile, length, lastModified);
+          if (binaryLockfile != null)
+            return binaryLockfile;
+        } catch (IOException exception) {
+          // read the JSON instead
+        }
+        reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        Lockfile lockfile = read(reader);
+        // files changed right after they were read might have the same last modified, so wait a bit:
+        if (System.currentTimeMillis() - lastModified > BINARY_MIN_AGE_MILLIS) {
+          try {
+            BinaryLockfile.write(lockfile, binaryFile, length, lastModified);
+          } catch (IOException exception) {
+            // it will be read from JSON next time as well
+          }
+        }
+        return lockfile;
       }
     } finally {
       if (reader != null)
@@ -258,73 +286,60 @@ public class Lockfile {
   }
 
   protected int THREAD_POOL_SIZE = 30;
+  protected int MAX_DOWNLOADS_PER_HOST = DownloadHosts.MAX_DOWNLOADS_PER_HOST_DEFAULT;
+  protected boolean DEEP_VERIFY_CACHE = false; // hash all cached artifacts, even the ones that did not change
 
+  /**
+   * Downloads the artifacts of this lockfile to the cache of baseDir and
+   * waits for them, but not longer than timeout: the downloads that are not
+   * finished by then are cancelled
+   */
   public Set<ArtifactDownloadResult> download(File baseDir, Long timeout, TimeUnit timeoutUnit, int maxRetries,
                                               JavaLogger logger, ProgressMonitor progress)
       throws InterruptedException, ExecutionException,
       AdeptCacheException, IOException {
+    return downloadAsync(baseDir, maxRetries, logger, progress, null).await(timeout, timeoutUnit);
+  }
+
+  /**
+   * Starts downloading the artifacts of this lockfile to the cache of baseDir
+   * and returns without waiting: listener (if not null) is told about each
+   * artifact as soon as it is finished, the ones that are cached before this
+   * returns
+   */
+  public LockfileDownload downloadAsync(File baseDir, int maxRetries, JavaLogger logger, ProgressMonitor progress,
+                                        ArtifactDownloadListener listener) throws IOException {
     ExecutorService executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-    Set<ArtifactDownloadResult> results = new HashSet<ArtifactDownloadResult>(this.artifacts.size());
+    LockfileDownload download = new LockfileDownload(executorService, logger, progress, listener);
 
     Set<LockfileArtifact> nonLocalArtifacts = new HashSet<LockfileArtifact>();
     for (LockfileArtifact artifact : this.artifacts) {
       File currentCachedFile = ArtifactCache.getOrCreateExistingCacheFile(baseDir, artifact.hash, artifact.filename,
-          true);
+          true, DEEP_VERIFY_CACHE);
       if (currentCachedFile == null || !currentCachedFile.isFile()) {
         nonLocalArtifacts.add(artifact);
       } else {
         ArtifactDownloadResult result = new ArtifactDownloadResult(artifact.getArtifact(), currentCachedFile.getName());
         result.setCachedFile(currentCachedFile);
-        results.add(result);
+        download.addCached(artifact, result);
       }
     }
 
-    Set<Future<ArtifactDownloadResult>> futures = new HashSet<Future<ArtifactDownloadResult>>(nonLocalArtifacts.size());
-
     int allSizes = 0;
     for (LockfileArtifact lockfileArtifact : nonLocalArtifacts) {
       allSizes += lockfileArtifact.size / 1024;
     }
-    boolean displayProgress = !nonLocalArtifacts.isEmpty();
-    if (displayProgress)
+    if (!nonLocalArtifacts.isEmpty())
       progress.beginTask("Downloading (kB)", allSizes);
 
+    DownloadHosts hosts = new DownloadHosts(MAX_DOWNLOADS_PER_HOST, DownloadHosts.BACKOFF_MILLIS_DEFAULT,
+        DownloadHosts.MAX_BACKOFF_MILLIS_DEFAULT);
     for (LockfileArtifact lockfileArtifact : nonLocalArtifacts) {
-      File tmpFile = File.createTempFile("adept-", lockfileArtifact.filename, getTmpDir());
-      //Initiate downloads:
-      futures.add(executorService.submit(new ArtifactDownloader(baseDir, lockfileArtifact.getArtifact(),
-          lockfileArtifact.filename, tmpFile, maxRetries, logger, progress)));
-    }
-    executorService.shutdown();
-    executorService.awaitTermination(timeout, timeoutUnit);
-
-    for (Future<ArtifactDownloadResult> future : futures) {
-      ArtifactDownloadResult result = future.get();
-      if (result.isSuccess()) {
-        results.add(result);
-      } else if (result.isFailed()) {
-        final String causeString;
-        if (result.exception.getCause() == null)
-          causeString = "";
-        else
-          causeString = " " + result.exception.getCause() + ".";
-
-        String locationsString = "";
-        for (ArtifactLocation location : result.artifact.locations) {
-          locationsString += location.value + ",";
-        }
-        locationsString = locationsString.substring(0, locationsString.length() - 1); // cut last ',' off
-
-        logger.error("Failed to get artifact with filename: '" + result.filename + "' from: " + locationsString + "."
-            + causeString + " Hash: " + result.artifact.hash.value);
-        results.add(result);
-      } else {
-        assert (false); // Illegal state: got a download result that is neither failed nor successful!?
-      }
+      File tmpFile = ArtifactCache.createTmpFile(baseDir, lockfileArtifact.filename);
+      download.add(lockfileArtifact, new ArtifactDownloader(baseDir, lockfileArtifact.getArtifact(),
+          lockfileArtifact.filename, tmpFile, maxRetries, hosts, logger, progress));
     }
-    if (displayProgress)
-      progress.endTask();
-
-    return results;
+    download.start();
+    return download;
   }
 }
@@ -0,0 +1,231 @@
+package adept.lockfile;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import adept.artifact.ArtifactDownloadListener;
+import adept.artifact.ArtifactDownloadResult;
+import adept.artifact.ArtifactDownloader;
+import adept.artifact.models.ArtifactLocation;
+import adept.logging.JavaLogger;
+import adept.progress.ProgressMonitor;
+
+/**
+ * The artifacts of a lockfile being downloaded (see Lockfile.downloadAsync).
+ *
+ * Each artifact has its own future, which completes as soon as the artifact
+ * is downloaded or found in the cache, and results can be taken (or listened
+ * to) in the order they finish. Downloads that are cancelled, or not finished
+ * before the timeout given to await, are stopped: their threads are interrupted
+ * and their connections closed.
+ */
+public class LockfileDownload {
+  private class DownloadTask extends FutureTask<ArtifactDownloadResult> {
+    final LockfileArtifact artifact;
+    final ArtifactDownloader downloader; // null if cached
+    private ArtifactDownloadResult result; // guarded by this
+
+    /** The result of this task, which must be done */
+    synchronized ArtifactDownloadResult result() {
+      if (result == null) {
+        try {
+          result = get();
+        } catch (CancellationException exception) {
+          String message = timedOut ? "Timed out" : "Cancelled";
+          result = new ArtifactDownloadResult(artifact.getArtifact(), artifact.filename, new TimeoutException(message
+              + " while downloading: " + artifact.filename));
+        } catch (ExecutionException exception) {
+          Exception cause = exception.getCause() instanceof Exception ? (Exception) exception.getCause() : exception;
+          result = new ArtifactDownloadResult(artifact.getArtifact(), artifact.filename, cause);
+        } catch (InterruptedException exception) { // cannot happen: the task is done
+          throw new RuntimeException(exception);
+        }
+      }
+      return result;
+    }
+
+    DownloadTask(LockfileArtifact artifact, ArtifactDownloader downloader) {
+      super(downloader);
+      this.artifact = artifact;
+      this.downloader = downloader;
+    }
+
+    DownloadTask(LockfileArtifact artifact, final ArtifactDownloadResult cached) {
+      super(new Callable<ArtifactDownloadResult>() {
+        @Override
+        public ArtifactDownloadResult call() {
+          return cached;
+        }
+      });
+      this.artifact = artifact;
+      this.downloader = null;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled && downloader != null)
+        downloader.cancel();
+      return cancelled;
+    }
+
+    @Override
+    protected void done() {
+      finished(this);
+    }
+  }
+
+  final private ExecutorService executorService;
+  final private JavaLogger logger;
+  final private ProgressMonitor progress;
+  final private ArtifactDownloadListener listener; // can be null
+  final private Map<LockfileArtifact, DownloadTask> tasks = new LinkedHashMap<LockfileArtifact, DownloadTask>();
+  final private BlockingQueue<ArtifactDownloadResult> finished = new LinkedBlockingQueue<ArtifactDownloadResult>();
+  final private AtomicInteger downloading = new AtomicInteger(0);
+  private int taken = 0; // guarded by this
+  private volatile boolean timedOut = false;
+  private volatile boolean started = false;
+
+  LockfileDownload(ExecutorService executorService, JavaLogger logger, ProgressMonitor progress,
+      ArtifactDownloadListener listener) {
+    this.executorService = executorService;
+    this.logger = logger;
+    this.progress = progress;
+    this.listener = listener;
+  }
+
+  void addCached(LockfileArtifact artifact, ArtifactDownloadResult result) {
+    DownloadTask task = new DownloadTask(artifact, result);
+    tasks.put(artifact, task);
+    task.run();
+  }
+
+  void add(LockfileArtifact artifact, ArtifactDownloader downloader) {
+    tasks.put(artifact, new DownloadTask(artifact, downloader));
+    downloading.incrementAndGet();
+  }
+
+  /** Starts the downloads that were added, which were counted in progress when it began */
+  void start() {
+    started = true;
+    for (DownloadTask task : tasks.values()) {
+      if (task.downloader != null)
+        executorService.execute(task);
+    }
+    executorService.shutdown(); // no more tasks, threads stop when they are done
+  }
+
+  private void finished(DownloadTask task) {
+    ArtifactDownloadResult result = task.result();
+    if (result.isFailed())
+      logFailure(result);
+    finished.add(result);
+    if (task.downloader != null && downloading.decrementAndGet() == 0 && started)
+      progress.endTask();
+    if (listener != null) {
+      try {
+        listener.finished(result);
+      } catch (RuntimeException exception) {
+        logger.error("Got an error while telling about the download of: " + result.filename, exception);
+      }
+    }
+  }
+
+  private void logFailure(ArtifactDownloadResult result) {
+    final String causeString;
+    if (result.exception.getCause() == null)
+      causeString = "";
+    else
+      causeString = " " + result.exception.getCause() + ".";
+
+    String locationsString = "";
+    for (ArtifactLocation location : result.artifact.locations) {
+      locationsString += location.value + ",";
+    }
+    if (!locationsString.isEmpty())
+      locationsString = locationsString.substring(0, locationsString.length() - 1); // cut last ',' off
+
+    logger.error("Failed to get artifact with filename: '" + result.filename + "' from: " + locationsString + "."
+        + causeString + " Hash: " + result.artifact.hash.value);
+  }
+
+  /**
+   * The download of each artifact: they never fail (failures are in the
+   * results), but are cancelled if the download is
+   */
+  public Map<LockfileArtifact, Future<ArtifactDownloadResult>> getFutures() {
+    return Collections.<LockfileArtifact, Future<ArtifactDownloadResult>> unmodifiableMap(tasks);
+  }
+
+  /**
+   * Waits for the next artifact to finish and returns its result, or null if
+   * all results have been taken. Results are only taken once, so there should
+   * be only one taker.
+   */
+  public synchronized ArtifactDownloadResult take() throws InterruptedException {
+    if (taken >= tasks.size())
+      return null;
+    ArtifactDownloadResult result = finished.take();
+    taken++;
+    return result;
+  }
+
+  public boolean isDone() {
+    for (DownloadTask task : tasks.values()) {
+      if (!task.isDone())
+        return false;
+    }
+    return true;
+  }
+
+  /** Stops all downloads that are not finished */
+  public void cancel() {
+    for (DownloadTask task : tasks.values()) {
+      task.cancel(true);
+    }
+    executorService.shutdownNow();
+  }
+
+  /**
+   * Waits until all artifacts are finished, but not longer than timeout: the
+   * downloads that are not finished by then are cancelled (their results fail
+   * with a TimeoutException)
+   */
+  public Set<ArtifactDownloadResult> await(long timeout, TimeUnit timeoutUnit) throws InterruptedException {
+    long deadline = System.nanoTime() + timeoutUnit.toNanos(timeout);
+    for (DownloadTask task : tasks.values()) {
+      try {
+        task.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException exception) {
+        break;
+      } catch (ExecutionException exception) {
+        // in its result
+      } catch (CancellationException exception) {
+        // in its result
+      }
+    }
+    if (!isDone()) {
+      timedOut = true;
+      cancel();
+    }
+    Set<ArtifactDownloadResult> results = new HashSet<ArtifactDownloadResult>(tasks.size());
+    for (DownloadTask task : tasks.values()) {
+      results.add(task.result());
+    }
+    return results;
+  }
+}
@@ -0,0 +1,201 @@
+package adept.progress;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A text progress monitor which can be updated by many threads at the same
+ * time: updates only add to counters, and the progress is printed by a
+ * separate thread every tickMillis.
+ *
+ * Besides the progress of the current task, it can count the bytes of sub
+ * tasks (e.g. each download of a task downloading artifacts), which are shown
+ * as the number of running sub tasks and their throughput (in kB/s).
+ */
+public class TickerProgressMonitor implements ProgressMonitor {
+  static final public long TICK_MILLIS_DEFAULT = 100;
+  static final private double RATE_SMOOTHING = 0.3; // weight of the last tick in the throughput
+
+  final private PrintStream printStream;
+  final private long tickMillis;
+
+  final private AtomicLong progress = new AtomicLong(0);
+  final private AtomicLong bytes = new AtomicLong(0); // of all sub tasks
+  final private Set<SubTask> subTasks = Collections.newSetFromMap(new ConcurrentHashMap<SubTask, Boolean>());
+
+  /**
+   * Counts the bytes of a sub task, see beginSubTask. Sub tasks are told
+   * apart by their handle, not by their name (which does not have to be
+   * unique)
+   */
+  public class SubTask {
+    final private String name;
+    final private AtomicLong subTaskBytes = new AtomicLong(0);
+
+    private SubTask(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public void add(long delta) {
+      subTaskBytes.addAndGet(delta);
+      bytes.addAndGet(delta);
+    }
+
+    public long getBytes() {
+      return subTaskBytes.get();
+    }
+  }
+
+  // only used by the thread which began the task and the ticker, guarded by this:
+  private String status = null;
+  private int max = 0;
+  private ScheduledExecutorService ticker = null;
+  private int lastLength = 0;
+  private long lastTickNanos = 0;
+  private long lastTickBytes = 0;
+  private double bytesPerSecond = 0;
+
+  public TickerProgressMonitor() {
+    this(System.err, TICK_MILLIS_DEFAULT);
+  }
+
+  public TickerProgressMonitor(PrintStream printStream, long tickMillis) {
+    this.printStream = printStream;
+    this.tickMillis = tickMillis;
+  }
+
+  @Override
+  public synchronized void beginTask(String status, int max) {
+    if (max <= 0)
+      throw new RuntimeException("Cannot start a task with less than 0: " + max);
+    if (ticker != null)
+      endTask();
+    this.status = status;
+    this.max = max;
+    progress.set(0);
+    bytes.set(0);
+    subTasks.clear();
+    lastTickNanos = System.nanoTime();
+    lastTickBytes = 0;
+    bytesPerSecond = 0;
+    ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "adept-progress");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    ticker.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        tick();
+      }
+    }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void update(int i) {
+    progress.addAndGet(i);
+  }
+
+  /**
+   * Starts counting the bytes of a sub task of the current task (e.g. as
+   * bytes are downloaded), which ends when the returned handle is passed to
+   * endSubTask
+   */
+  public SubTask beginSubTask(String name) {
+    SubTask subTask = new SubTask(name);
+    subTasks.add(subTask);
+    return subTask;
+  }
+
+  public void endSubTask(SubTask subTask) {
+    subTasks.remove(subTask);
+  }
+
+  /** The running sub tasks */
+  public List<SubTask> getSubTasks() {
+    return new ArrayList<SubTask>(subTasks);
+  }
+
+  public long getProgress() {
+    return progress.get();
+  }
+
+  private synchronized void tick() {
+    if (status != null) {
+      updateRate();
+      print(render(), false);
+    }
+  }
+
+  private void updateRate() {
+    long now = System.nanoTime();
+    long currentBytes = bytes.get();
+    if (now > lastTickNanos) {
+      double lastBytesPerSecond = (currentBytes - lastTickBytes) * 1e9 / (now - lastTickNanos);
+      bytesPerSecond = bytesPerSecond == 0 ? lastBytesPerSecond : RATE_SMOOTHING * lastBytesPerSecond
+          + (1 - RATE_SMOOTHING) * bytesPerSecond;
+    }
+    lastTickNanos = now;
+    lastTickBytes = currentBytes;
+  }
+
+  private String render() {
+    StringBuilder message = new StringBuilder(status.length() + 40);
+    message.append(status).append(": ").append(Math.min(progress.get() * 100 / max, 100)).append('%');
+    if (lastTickBytes > 0) {
+      message.append(' ').append(Math.round(bytesPerSecond / 1024)).append(" kB/s");
+    }
+    int running = subTasks.size();
+    if (running > 0) {
+      message.append(" (").append(running).append(" running)");
+    }
+    return message.toString();
+  }
+
+  private void print(String message, boolean lastLine) {
+    StringBuilder line = new StringBuilder(Math.max(message.length(), lastLength) + 2);
+    line.append('\r').append(message);
+    for (int i = message.length(); i < lastLength; i++) {
+      line.append(' '); // wipe what is left of the previous message
+    }
+    if (lastLine) {
+      printStream.println(line);
+      lastLength = 0;
+    } else {
+      printStream.print(line);
+      lastLength = message.length();
+    }
+    printStream.flush();
+  }
+
+  @Override
+  public synchronized void endTask() {
+    if (ticker != null) {
+      ticker.shutdownNow();
+      ticker = null;
+    }
+    if (status != null) {
+      updateRate();
+      print(render(), true);
+    }
+    status = null;
+    max = 0;
+    subTasks.clear();
+  }
+}
@@ -0,0 +1,146 @@
+package adept.artifact
+
+import java.io.File
+import java.io.FileOutputStream
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+import adept.artifact.models.ArtifactHash
+import adept.hash.Hasher
+
+class ArtifactCacheTest extends FunSuite with Matchers {
+
+  def usingBaseDir[A](f: File => A): A = {
+    val baseDir = new File("tmp", "artifact-cache-" + System.nanoTime)
+    try {
+      f(baseDir)
+    } finally {
+      new scala.reflect.io.Directory(baseDir).deleteRecursively()
+    }
+  }
+
+  def write(file: File, bytes: Array[Byte]) = {
+    file.getParentFile.mkdirs()
+    val out = new FileOutputStream(file)
+    try out.write(bytes) finally out.close()
+  }
+
+  test("Cached files are only hashed again if they changed or when deep verifying") {
+    usingBaseDir { baseDir =>
+      val content = "some bytes".getBytes
+      val hash = new ArtifactHash(Hasher.hash(content))
+      val file = ArtifactCache.getCacheFile(baseDir, hash, "test.jar")
+      write(file, content)
+      val lastModified = (System.currentTimeMillis - 60 * 1000) / 1000 * 1000
+      file.setLastModified(lastModified)
+      ArtifactCache.getOrCreateExistingCacheFile(baseDir, hash, "test.jar", true) shouldEqual file
+
+      //same size and last modified: not hashed again
+      write(file, "other bytes".getBytes.take(content.length))
+      file.setLastModified(lastModified)
+      ArtifactCache.getOrCreateExistingCacheFile(baseDir, hash, "test.jar", true) shouldEqual file
+
+      //deep verifying finds it though
+      ArtifactCache.getOrCreateExistingCacheFile(baseDir, hash, "test.jar", true, true) shouldEqual null
+      file.exists shouldEqual false
+
+      //so does a changed last modified
+      write(file, "other bytes".getBytes.take(content.length))
+      file.setLastModified(lastModified - 10000)
+      ArtifactCache.getOrCreateExistingCacheFile(baseDir, hash, "test.jar", true) shouldEqual null
+    }
+  }
+
+  test("Cached files replaced by files with the same size and last modified are hashed again") {
+    assume(FileLinks.isSupported, "file keys are only known on Java 7 or later")
+    usingBaseDir { baseDir =>
+      val content = "some bytes".getBytes
+      val hash = new ArtifactHash(Hasher.hash(content))
+      val file = ArtifactCache.getCacheFile(baseDir, hash, "test.jar")
+      write(file, content)
+      val lastModified = (System.currentTimeMillis - 60 * 1000) / 1000 * 1000
+      file.setLastModified(lastModified)
+      ArtifactCache.getOrCreateExistingCacheFile(baseDir, hash, "test.jar", true) shouldEqual file
+
+      val replacement = new File(file.getParentFile, "replacement")
+      write(replacement, "other bytes".getBytes.take(content.length))
+      replacement.setLastModified(lastModified)
+      replacement.renameTo(file) shouldEqual true
+      ArtifactCache.getOrCreateExistingCacheFile(baseDir, hash, "test.jar", true) shouldEqual null
+    }
+  }
+
+  test("Files with the same hash are stored once") {
+    usingBaseDir { baseDir =>
+      val content = Array.fill[Byte](10000)(1)
+      val hash = new ArtifactHash(Hasher.hash(content))
+      val tmpFile = ArtifactCache.createTmpFile(baseDir, "a.jar")
+      write(tmpFile, content)
+      ArtifactCache.cache(baseDir, tmpFile, hash, "a.jar")
+      val b = ArtifactCache.getOrCreateExistingCacheFile(baseDir, hash, "b.jar", true)
+      b.length shouldEqual content.length
+      ArtifactCache.du(baseDir).duplicateBytes shouldEqual 0
+      ArtifactCache.du(baseDir).bytes shouldEqual content.length
+
+      //duplicates cached before they were linked are reclaimed by gc
+      write(ArtifactCache.getCacheFile(baseDir, hash, "c.jar"), content)
+      val usage = ArtifactCache.du(baseDir)
+      usage.files shouldEqual 3
+      usage.duplicateBytes shouldEqual content.length
+      ArtifactCache.gc(baseDir) shouldEqual content.length
+      ArtifactCache.du(baseDir).duplicateBytes shouldEqual 0
+      ArtifactCache.du(baseDir).files shouldEqual 3
+      ArtifactCache.getOrCreateExistingCacheFile(baseDir, hash, "c.jar", true, true).length shouldEqual content.length
+    }
+  }
+
+  test("Waiting for a locked hash can be interrupted") {
+    usingBaseDir { baseDir =>
+      val hash = new ArtifactHash(Hasher.hash("some bytes".getBytes))
+      val lock = ArtifactCacheLock.lock(baseDir, hash)
+      try {
+        var failure: Option[Throwable] = None
+        val waiting = new Thread {
+          override def run() = {
+            try {
+              ArtifactCacheLock.lock(baseDir, hash).release()
+            } catch {
+              case e: Throwable => failure = Some(e)
+            }
+          }
+        }
+        waiting.start()
+        Thread.sleep(100)
+        waiting.interrupt()
+        waiting.join(5000)
+        waiting.isAlive shouldEqual false
+        failure.get shouldBe a[java.io.InterruptedIOException]
+      } finally {
+        lock.release()
+      }
+    }
+  }
+
+  test("Hashes are not locked if the lock file cannot be created") {
+    usingBaseDir { baseDir =>
+      val hash = new ArtifactHash(Hasher.hash("some bytes".getBytes))
+      write(new File(new File(baseDir, ArtifactCache.ARTIFACT_CACHE_DIR), ArtifactCacheLock.LOCKS_DIR), Array.empty) //not a dir
+      val lockedHashes = ArtifactCacheLock.lockedHashes
+      an[java.io.IOException] should be thrownBy ArtifactCacheLock.lock(baseDir, hash)
+      ArtifactCacheLock.lockedHashes shouldEqual lockedHashes
+    }
+  }
+
+  test("Released hashes are forgotten") {
+    usingBaseDir { baseDir =>
+      val lockedHashes = ArtifactCacheLock.lockedHashes
+      for (i <- 1 to 10) {
+        val hash = new ArtifactHash(Hasher.hash(("bytes " + i).getBytes))
+        val lock = ArtifactCacheLock.lock(baseDir, hash)
+        ArtifactCacheLock.lock(baseDir, hash).release() //reentrant
+        ArtifactCacheLock.lockedHashes shouldEqual lockedHashes + 1
+        lock.release()
+      }
+      ArtifactCacheLock.lockedHashes shouldEqual lockedHashes
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package adept.artifact
+
+import java.io.File
+import java.util.concurrent.Executors
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+import adept.artifact.models.Artifact
+import adept.artifact.models.ArtifactHash
+import adept.artifact.models.ArtifactLocation
+import adept.hash.Hasher
+import adept.logging.TextLogger
+import adept.progress.ProgressMonitor
+import adept.test.TestHttpServer
+import adept.test.HttpUtils.usingServer
+
+class ArtifactDownloaderTest extends FunSuite with Matchers {
+  import collection.JavaConverters._
+
+  val content = Array.tabulate[Byte](300 * 1024)(i => (i % 127).toByte)
+  val hash = new ArtifactHash(Hasher.hash(content))
+
+  class CountingProgressMonitor extends ProgressMonitor {
+    @volatile var total = 0
+    @volatile var backwards = false
+    def beginTask(status: String, max: Int) = {}
+    def update(i: Int) = synchronized {
+      total += i
+      if (i < 0) backwards = true
+    }
+    def endTask() = {}
+  }
+
+  def usingBaseDir[A](f: File => A): A = {
+    val baseDir = new File("tmp", "artifact-downloader-" + System.nanoTime)
+    try {
+      f(baseDir)
+    } finally {
+      new scala.reflect.io.Directory(baseDir).deleteRecursively()
+    }
+  }
+
+  def downloader(baseDir: File, locations: Seq[String], hosts: DownloadHosts, progress: ProgressMonitor,
+    tmpFile: File = File.createTempFile("adept-", "test.jar")) = {
+    val artifact = new Artifact(hash, content.length.toLong, locations.map(new ArtifactLocation(_)).toSet.asJava)
+    new ArtifactDownloader(baseDir, artifact, "test.jar", tmpFile, 3, hosts, new TextLogger(TextLogger.ERROR), progress)
+  }
+
+  def readBytes(file: File) = {
+    val bytes = new Array[Byte](file.length.toInt)
+    val in = new java.io.DataInputStream(new java.io.FileInputStream(file))
+    try in.readFully(bytes) finally in.close()
+    bytes
+  }
+
+  test("Downloads fail over to other locations") {
+    usingServer(new TestHttpServer(Map("/test.jar" -> content))) { server =>
+      usingBaseDir { baseDir =>
+        val progress = new CountingProgressMonitor
+        val result = downloader(baseDir, Seq(server.url("/missing.jar"), "http://127.0.0.1:1/test.jar", server.url("/test.jar")),
+          new DownloadHosts(2, 10, 100), progress).call()
+        result.isSuccess shouldEqual true
+        readBytes(result.getCachedFile).toSeq shouldEqual content.toSeq
+        progress.total shouldEqual content.length / 1024
+      }
+    }
+  }
+
+  test("Downloads resume where they stopped") {
+    usingServer(new TestHttpServer(Map("/test.jar" -> content), truncated = 1)) { server =>
+      usingBaseDir { baseDir =>
+        val progress = new CountingProgressMonitor
+        val result = downloader(baseDir, Seq(server.url("/test.jar")), new DownloadHosts(2, 10, 100), progress).call()
+        result.isSuccess shouldEqual true
+        readBytes(result.getCachedFile).toSeq shouldEqual content.toSeq
+        server.ranges.size shouldEqual 2
+        server.ranges.head should startWith("bytes=")
+        server.ranges.head should not be ("bytes=0-")
+        progress.total shouldEqual content.length / 1024
+      }
+    }
+  }
+
+  test("Downloads are moved into the cache once verified") {
+    val wrongContent = content.reverse
+    usingServer(new TestHttpServer(Map("/test.jar" -> content, "/wrong.jar" -> wrongContent))) { server =>
+      usingBaseDir { baseDir =>
+        val tmpFile = ArtifactCache.createTmpFile(baseDir, "test.jar")
+        val result = downloader(baseDir, Seq(server.url("/test.jar")), new DownloadHosts(2, 10, 100), new CountingProgressMonitor, tmpFile).call()
+        result.isSuccess shouldEqual true
+        result.getCachedFile shouldEqual ArtifactCache.getCacheFile(baseDir, hash, "test.jar")
+        readBytes(result.getCachedFile).toSeq shouldEqual content.toSeq
+        tmpFile.exists shouldEqual false
+
+        val otherBaseDir = new File(baseDir, "other")
+        val wrongTmpFile = ArtifactCache.createTmpFile(otherBaseDir, "test.jar")
+        val failed = downloader(otherBaseDir, Seq(server.url("/wrong.jar")), new DownloadHosts(2, 10, 100), new CountingProgressMonitor, wrongTmpFile).call()
+        failed.isFailed shouldEqual true
+        failed.exception shouldBe an[AdeptCacheException]
+        wrongTmpFile.exists shouldEqual false
+        ArtifactCache.getCacheFile(otherBaseDir, hash, "test.jar").exists shouldEqual false
+      }
+    }
+  }
+
+  test("The same hash is only downloaded once at a time") {
+    usingServer(new TestHttpServer(Map("/test.jar" -> content), delayMillis = 200)) { server =>
+      usingBaseDir { baseDir =>
+        val hosts = new DownloadHosts(4, 10, 100)
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+          val futures = (1 to 4).toList.map { i =>
+            val artifact = new Artifact(hash, content.length.toLong, Set(new ArtifactLocation(server.url("/test.jar"))).asJava)
+            executor.submit(new ArtifactDownloader(baseDir, artifact, "test" + i + ".jar", ArtifactCache.createTmpFile(baseDir, "test.jar"),
+              3, hosts, new TextLogger(TextLogger.ERROR), new CountingProgressMonitor))
+          }
+          val results = futures.map(_.get)
+          results.map(_.isSuccess) shouldEqual List.fill(4)(true)
+          results.map(result => readBytes(result.getCachedFile).toSeq).toSet shouldEqual Set(content.toSeq)
+          server.ranges.size shouldEqual 1
+          new File(new File(baseDir, ArtifactCache.ARTIFACT_CACHE_DIR), ArtifactCache.TMP_DIR).list.toList shouldEqual Nil
+        } finally {
+          executor.shutdown()
+        }
+      }
+    }
+  }
+
+  test("Downloads from the same host are limited") {
+    val files = (1 to 4).map(i => "/test" + i + ".jar" -> content).toMap
+    usingServer(new TestHttpServer(files, delayMillis = 100)) { server =>
+      usingBaseDir { baseDir =>
+        val hosts = new DownloadHosts(2, 10, 100)
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+          val futures = files.keys.toList.map { path =>
+            val artifact = new Artifact(hash, content.length.toLong, Set(new ArtifactLocation(server.url(path))).asJava)
+            executor.submit(new ArtifactDownloader(new File(baseDir, path), artifact, "test.jar",
+              File.createTempFile("adept-", "test.jar"), 3, hosts, new TextLogger(TextLogger.ERROR), new CountingProgressMonitor))
+          }
+          futures.map(_.get.isSuccess) shouldEqual List.fill(4)(true)
+          server.maxConcurrent.get shouldEqual 2
+        } finally {
+          executor.shutdown()
+        }
+      }
+    }
+  }
+
+  test("Progress does not go backwards when downloads start over") {
+    usingServer(new TestHttpServer(Map("/a-wrong.jar" -> content.reverse, "/test.jar" -> content))) { server =>
+      usingBaseDir { baseDir =>
+        val progress = new CountingProgressMonitor
+        val result = downloader(baseDir, Seq(server.url("/a-wrong.jar"), server.url("/test.jar")),
+          new DownloadHosts(2, 10, 100), progress).call()
+        result.isSuccess shouldEqual true
+        server.ranges.size shouldEqual 2 //downloaded the wrong one first
+        progress.backwards shouldEqual false
+        progress.total shouldEqual content.length / 1024
+      }
+    }
+  }
+}
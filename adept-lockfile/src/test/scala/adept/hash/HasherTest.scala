@@ -0,0 +1,43 @@
+package adept.hash
+
+import java.io.File
+import java.io.FileOutputStream
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+
+class HasherTest extends FunSuite with Matchers {
+
+  def usingFiles[A](contents: Seq[Array[Byte]])(f: Seq[File] => A): A = {
+    val files = contents.map { bytes =>
+      val file = File.createTempFile("adept-", "-hasher-test")
+      val out = new FileOutputStream(file)
+      try out.write(bytes) finally out.close()
+      file
+    }
+    try f(files) finally files.foreach(_.delete())
+  }
+
+  test("Hashes are lowercase hex SHA-256") {
+    Hasher.hash("abc".getBytes("UTF-8")) shouldEqual "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"
+    Hasher.hex(Array[Byte](0, 15, 16, -1)) shouldEqual "000f10ff"
+  }
+
+  test("Files, streams and bytes hash the same") {
+    val random = new scala.util.Random(1)
+    val contents = Seq(0, 1, 1024, Hasher.BUFFER_SIZE, Hasher.BUFFER_SIZE + 1, 1024 * 1024).map { size =>
+      val bytes = new Array[Byte](size)
+      random.nextBytes(bytes)
+      bytes
+    }
+    usingFiles(contents) { files =>
+      val expected = contents.map(Hasher.hash)
+      files.map(Hasher.hash) shouldEqual expected
+      files.map { file =>
+        val in = new java.io.FileInputStream(file)
+        try Hasher.hash(in) finally in.close()
+      } shouldEqual expected
+      import collection.JavaConverters._
+      Hasher.hash(files.asJava).asScala.toSeq shouldEqual files.zip(expected)
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package adept.lockfile
+
+import java.io.File
+import java.io.FileOutputStream
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+
+class BinaryLockfileTest extends FunSuite with Matchers {
+  import collection.JavaConverters._
+
+  def json(artifacts: Int) = {
+    """{"requirements":[{"id":"test/foo","constraints":[{"name":"binary-version","values":["2.10","2.11"]}],"exclusions":["test/bar"]}],""" +
+      """"context":[{"info":"foo 1.0","id":"test/foo","repository":"test","locations":["git@github.com:test/test.git"],"commit":"abc","hash":"123"},""" +
+      """{"info":"bar","id":"test/bar","repository":"test","locations":[],"hash":"456"}],""" +
+      """"artifacts":[""" + (1 to artifacts).map { i =>
+        """{"hash":"hash""" + i + """","size":""" + i + ""","locations":["http://repo/foo-""" + i + """.jar"],""" +
+          """"attributes":[{"name":"configurations","values":["compile","master"]}],"filename":"foo-""" + i + """.jar"}"""
+      }.mkString(",") + "]}"
+  }
+
+  def describe(lockfile: Lockfile) = {
+    val requirements = lockfile.getRequirements.asScala.map { r =>
+      (r.id.value, r.constraints.asScala.map(c => c.name -> c.values.asScala.toSet).toSet, r.exclusions.asScala.map(_.value).toSet)
+    }.toSet
+    val context = lockfile.getContext.asScala.map { c =>
+      (c.info, c.id.value, c.repository.value, c.locations.asScala.map(_.value).toSet, Option(c.commit).map(_.value), c.hash.value)
+    }.toSet
+    val artifacts = lockfile.getArtifacts.asScala.map { a =>
+      (a.hash.value, a.size, a.locations.asScala.map(_.value).toSet, a.attributes.asScala.map(a => a.name -> a.values.asScala.toSet).toSet, a.filename)
+    }.toSet
+    (requirements, context, artifacts)
+  }
+
+  def write(file: File, content: String) = {
+    val out = new FileOutputStream(file)
+    try out.write(content.getBytes("UTF-8")) finally out.close()
+  }
+
+  test("Lockfiles are read from their binary encoding while their JSON does not change") {
+    val file = File.createTempFile("adept-", ".lockfile")
+    val binaryFile = BinaryLockfile.binaryFile(file)
+    try {
+      write(file, json(100))
+      file.setLastModified(System.currentTimeMillis - 60 * 1000)
+      val fromJson = describe(Lockfile.read(file))
+      fromJson._3.size shouldEqual 100
+      binaryFile.isFile shouldEqual true
+      val binary = BinaryLockfile.read(binaryFile, file.length, file.lastModified)
+      binary should not be (null)
+      describe(binary) shouldEqual fromJson
+      describe(Lockfile.read(file)) shouldEqual fromJson
+
+      write(file, json(2))
+      file.setLastModified(System.currentTimeMillis - 30 * 1000)
+      BinaryLockfile.read(binaryFile, file.length, file.lastModified) shouldEqual null
+      describe(Lockfile.read(file))._3.size shouldEqual 2
+      describe(BinaryLockfile.read(binaryFile, file.length, file.lastModified))._3.size shouldEqual 2
+    } finally {
+      file.delete()
+      binaryFile.delete()
+    }
+  }
+
+  test("Corrupt binary encodings are not used") {
+    val file = File.createTempFile("adept-", ".lockfile")
+    val binaryFile = BinaryLockfile.binaryFile(file)
+    try {
+      write(file, json(10))
+      file.setLastModified(System.currentTimeMillis - 60 * 1000)
+      val fromJson = describe(Lockfile.read(file))
+      val bytes = new Array[Byte](binaryFile.length.toInt)
+      val in = new java.io.DataInputStream(new java.io.FileInputStream(binaryFile))
+      try in.readFully(bytes) finally in.close()
+      def corrupt(corrupted: Array[Byte]) = {
+        val out = new FileOutputStream(binaryFile)
+        try out.write(corrupted) finally out.close()
+        BinaryLockfile.read(binaryFile, file.length, file.lastModified) shouldEqual null
+        describe(Lockfile.read(file)) shouldEqual fromJson
+      }
+      corrupt(bytes.take(bytes.length - 10)) //truncated
+      corrupt(bytes.updated(24, 0x7f.toByte)) //string count
+      corrupt(bytes.take(bytes.length - 4) ++ Array[Byte](0x7f, 0, 0, 0)) //index of the last filename
+      val sizes = java.nio.ByteBuffer.wrap(bytes)
+      val requirements = sizes.getInt(28 + 4 * sizes.getInt(24))
+      sizes.putInt(requirements, Int.MaxValue)
+      corrupt(sizes.array) //size of the requirements
+    } finally {
+      file.delete()
+      binaryFile.delete()
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package adept.lockfile
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+import adept.artifact.ArtifactCache
+import adept.artifact.ArtifactDownloadListener
+import adept.artifact.ArtifactDownloadResult
+import adept.artifact.models.ArtifactAttribute
+import adept.artifact.models.ArtifactHash
+import adept.artifact.models.ArtifactLocation
+import adept.hash.Hasher
+import adept.logging.TextLogger
+import adept.progress.ProgressMonitor
+import adept.test.TestHttpServer
+import adept.test.HttpUtils.usingServer
+
+class LockfileDownloadTest extends FunSuite with Matchers {
+  import collection.JavaConverters._
+
+  val fast = Array.fill[Byte](2048)(1)
+  val slow = Array.fill[Byte](2048)(2)
+
+  object NoProgress extends ProgressMonitor {
+    def beginTask(status: String, max: Int) = {}
+    def update(i: Int) = {}
+    def endTask() = {}
+  }
+
+  def lockfileArtifact(server: TestHttpServer, path: String, content: Array[Byte]) = {
+    new LockfileArtifact(new ArtifactHash(Hasher.hash(content)), content.length, Set(new ArtifactLocation(server.url(path))).asJava,
+      Set.empty[ArtifactAttribute].asJava, path.stripPrefix("/"))
+  }
+
+  test("Downloads are finished one by one and cancelled when they time out") {
+    usingServer(new TestHttpServer(Map("/fast.jar" -> fast, "/slow.jar" -> slow), delays = Map("/slow.jar" -> 10000L))) { server =>
+      val baseDir = new File("tmp", "lockfile-download-" + System.nanoTime)
+      try {
+        val lockfile = new Lockfile(Set.empty[LockfileRequirement].asJava, Set.empty[LockfileContext].asJava,
+          Set(lockfileArtifact(server, "/fast.jar", fast), lockfileArtifact(server, "/slow.jar", slow)).asJava)
+        @volatile var listened = List.empty[String]
+        val download = lockfile.downloadAsync(baseDir, 1, new TextLogger(TextLogger.ERROR), NoProgress, new ArtifactDownloadListener {
+          def finished(result: ArtifactDownloadResult) = synchronized { listened = result.filename :: listened }
+        })
+        val first = download.take()
+        first.filename shouldEqual "fast.jar"
+        first.isSuccess shouldEqual true
+        download.isDone shouldEqual false
+
+        val start = System.currentTimeMillis
+        val results = download.await(200, TimeUnit.MILLISECONDS)
+        (System.currentTimeMillis - start) should be < 5000L
+        results.asScala.map(result => result.filename -> result.isSuccess).toMap shouldEqual Map("fast.jar" -> true, "slow.jar" -> false)
+        results.asScala.find(_.filename == "slow.jar").get.exception shouldBe a[TimeoutException]
+        download.take().filename shouldEqual "slow.jar"
+        download.take() shouldEqual null
+        listened.reverse shouldEqual List("fast.jar", "slow.jar")
+        download.getFutures.asScala.values.forall(_.isDone) shouldEqual true
+
+        Thread.sleep(500) //the cancelled download stops in its own thread
+        new File(new File(baseDir, ArtifactCache.ARTIFACT_CACHE_DIR), ArtifactCache.TMP_DIR).list.toList shouldEqual Nil
+      } finally {
+        new scala.reflect.io.Directory(baseDir).deleteRecursively()
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package adept.progress
+
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import org.scalatest.FunSuite
+import org.scalatest.Matchers
+
+class TickerProgressMonitorTest extends FunSuite with Matchers {
+
+  test("Progress of many threads is counted and printed by the ticker") {
+    val out = new ByteArrayOutputStream
+    val progress = new TickerProgressMonitor(new PrintStream(out), 10)
+    progress.beginTask("Downloading (kB)", 30 * 1000)
+    val executor = Executors.newFixedThreadPool(30)
+    (1 to 30).foreach { i =>
+      executor.execute(new Runnable {
+        def run() = {
+          val subTask = progress.beginSubTask("task" + i)
+          (1 to 1000).foreach { _ =>
+            progress.update(1)
+            subTask.add(1024)
+          }
+          progress.endSubTask(subTask)
+        }
+      })
+    }
+    executor.shutdown()
+    executor.awaitTermination(10, TimeUnit.SECONDS) shouldEqual true
+    progress.getProgress shouldEqual 30 * 1000
+    Thread.sleep(50)
+    progress.endTask()
+    val printed = out.toString
+    printed.split("\r").last.trim should startWith("Downloading (kB): 100%")
+    printed should include("kB/s")
+    printed should endWith("\n")
+  }
+
+  test("Sub tasks count their own bytes, also if they have the same name") {
+    import collection.JavaConverters._
+    val progress = new TickerProgressMonitor(new PrintStream(new ByteArrayOutputStream), 1000)
+    progress.beginTask("Downloading (kB)", 10)
+    val a = progress.beginSubTask("a.jar")
+    a.add(100)
+    val otherA = progress.beginSubTask("a.jar")
+    otherA.add(200)
+    progress.beginSubTask("b.jar").add(300)
+    progress.getSubTasks.asScala.map(subTask => subTask.getName -> subTask.getBytes).toSet shouldEqual
+      Set("a.jar" -> 100, "a.jar" -> 200, "b.jar" -> 300)
+    progress.endSubTask(a)
+    progress.getSubTasks.asScala.map(subTask => subTask.getName -> subTask.getBytes).toSet shouldEqual
+      Set("a.jar" -> 200, "b.jar" -> 300)
+    progress.endTask()
+  }
+}
@@ -0,0 +1,69 @@
+package adept.test
+
+import java.net.InetSocketAddress
+import java.util.concurrent.atomic.AtomicInteger
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpServer
+
+/**
+ * A local HTTP server serving `files` (by path) which supports Range requests.
+ *
+ * The first `truncated` responses only send the first half of the file and
+ * every request waits `delayMillis` (or its path's delay in `delays`) before responding.
+ */
+class TestHttpServer(files: Map[String, Array[Byte]], truncated: Int = 0, delayMillis: Long = 0, delays: Map[String, Long] = Map.empty) {
+  private val server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0)
+  private val truncatedLeft = new AtomicInteger(truncated)
+  private val current = new AtomicInteger(0)
+  val maxConcurrent = new AtomicInteger(0)
+  @volatile var ranges = List.empty[String] //Range headers of requests, last first
+
+  server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool())
+  server.createContext("/", new HttpHandler {
+    def handle(exchange: HttpExchange) = {
+      val concurrent = current.incrementAndGet()
+      try {
+        maxConcurrent.synchronized { if (concurrent > maxConcurrent.get) maxConcurrent.set(concurrent) }
+        Thread.sleep(delays.getOrElse(exchange.getRequestURI.getPath, delayMillis))
+        files.get(exchange.getRequestURI.getPath) match {
+          case Some(bytes) =>
+            val range = Option(exchange.getRequestHeaders.getFirst("Range"))
+            ranges.synchronized { ranges = range.getOrElse("") :: ranges }
+            val start = range.map(_.stripPrefix("bytes=").stripSuffix("-").toInt).getOrElse(0)
+            val body = bytes.drop(start)
+            exchange.sendResponseHeaders(if (start > 0) 206 else 200, body.length)
+            val out = exchange.getResponseBody
+            if (truncatedLeft.getAndDecrement() > 0) {
+              out.write(body, 0, body.length / 2)
+              out.flush()
+              exchange.close() //closes before Content-Length bytes were sent
+            } else {
+              out.write(body)
+              out.close()
+            }
+          case None =>
+            exchange.sendResponseHeaders(404, -1)
+            exchange.close()
+        }
+      } finally {
+        current.decrementAndGet()
+      }
+    }
+  })
+  server.start()
+
+  def url(path: String) = "http://127.0.0.1:" + server.getAddress.getPort + path
+
+  def stop() = server.stop(0)
+}
+
+object HttpUtils {
+  def usingServer[A](server: TestHttpServer)(f: TestHttpServer => A): A = {
+    try {
+      f(server)
+    } finally {
+      server.stop()
+    }
+  }
+}